@@ -0,0 +1,47 @@
+# Benchmarks ArJdbc::MySQL#quote_string and #quote_table_name over a mix of
+# payloads: short identifiers, clean text, JSON documents and text heavy in
+# quotes/newlines. No database connection is needed.
+#
+#   jruby -Ilib bench/bench_quote_string.rb [times] [iterations]
+
+TIMES = (ARGV[0] || 5).to_i
+ITERATIONS = (ARGV[1] || 20_000).to_i
+
+begin
+  require 'active_record'
+rescue LoadError
+  require 'rubygems'
+  gem 'activerecord'
+  require 'active_record'
+end
+require 'benchmark'
+
+$LOAD_PATH.unshift File.dirname(__FILE__) + '/../lib'
+require 'arjdbc/jdbc/java'
+
+class Quoter
+  include ArJdbc::MySQL
+end
+
+json = '{"id":1,"name":"widget","tags":["a","b"],"description":"it\'s \"quoted\"\n"}'
+PAYLOADS = {
+  'short'      => 'widget',
+  'clean 4k'   => 'lorem ipsum dolor sit amet ' * 150,
+  'json 16k'   => json * 200,
+  'quotes 16k' => "it's a \"test\"\n\\" * 1200
+}
+TABLES = ['widgets', 'ar_bench.widgets', 'catalog.schema.widgets']
+
+quoter = Quoter.new
+TIMES.times do
+  Benchmark.bm(24) do |make|
+    PAYLOADS.each do |label, payload|
+      make.report("quote_string #{label}") do
+        ITERATIONS.times { quoter.quote_string(payload) }
+      end
+    end
+    make.report("quote_table_name") do
+      ITERATIONS.times { TABLES.each { |t| quoter.quote_table_name(t) } }
+    end
+  end
+end
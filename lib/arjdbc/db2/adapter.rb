@@ -1,3 +1,5 @@
+::ArJdbc.load_java_part :DB2
+
 module ArJdbc
   module DB2
     def self.extended(base)
@@ -142,7 +144,9 @@ module ArJdbc
       if ActiveRecord::ConnectionAdapters::JdbcConnection::select?(sql)
         @connection.execute_query(sql)
       elsif ActiveRecord::ConnectionAdapters::JdbcConnection::insert?(sql)
-        (@connection.execute_insert(sql) or last_insert_id(sql)).to_i
+        with_pinned_connection do # IDENTITY_VAL_LOCAL() is the session's
+          (@connection.execute_insert(sql) or last_insert_id(sql)).to_i
+        end
       else
         @connection.execute_update(sql)
       end
@@ -294,16 +298,22 @@ module ArJdbc
       end
     end
 
+    QUOTING = ::ArJdbc::QuotingService.new(:escape => :standard, :quoted_true => '1', :quoted_false => '0')
+
+    def quoting_service
+      QUOTING
+    end
+
     def quote_string(string)
-      string.gsub(/'/, "''") # ' (for ruby-mode)
+      QUOTING.quote_string(string)
     end
 
     def quoted_true
-      '1'
+      QUOTING.quoted_true
     end
 
     def quoted_false
-      '0'
+      QUOTING.quoted_false
     end
 
     def reorg_table(table_name)
@@ -460,6 +470,10 @@ module ArJdbc
     end
 
     def structure_dump #:nodoc:
+      with_pinned_connection { dump_tables } # the metadata result sets are read across statements
+    end
+
+    def dump_tables #:nodoc:
       definition=""
       db2_schema = db2_schema.upcase if db2_schema.present?
       rs = @connection.connection.meta_data.getTables(nil,db2_schema,nil,["TABLE"].to_java(:string))
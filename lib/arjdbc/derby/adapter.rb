@@ -1,5 +1,7 @@
 require 'arjdbc/jdbc/missing_functionality_helper'
 
+::ArJdbc.load_java_part :Derby
+
 module ::ArJdbc
   module Derby
     def self.column_selector
@@ -37,7 +39,7 @@ module ::ArJdbc
     end
 
     def configure_connection
-      execute("SET ISOLATION = SERIALIZABLE")   # This must be done or SELECT...FOR UPDATE won't work how we expect
+      execute_session("SET ISOLATION = SERIALIZABLE")   # This must be done or SELECT...FOR UPDATE won't work how we expect
     end
 
     module Column
@@ -215,6 +217,10 @@ module ::ArJdbc
     SIZEABLE = %w(VARCHAR CLOB BLOB)
 
     def structure_dump #:nodoc:
+      with_pinned_connection { dump_tables } # the metadata result sets are read across statements
+    end
+
+    def dump_tables #:nodoc:
       definition=""
       rs = @connection.connection.meta_data.getTables(nil,nil,nil,["TABLE"].to_java(:string))
       while rs.next
@@ -325,12 +331,18 @@ module ::ArJdbc
       %Q{"#{name.to_s.upcase.gsub(/\"/, '""')}"}
     end
 
+    QUOTING = ::ArJdbc::QuotingService.new(:escape => :standard, :quoted_true => '1', :quoted_false => '0')
+
+    def quoting_service
+      QUOTING
+    end
+
     def quoted_true
-      '1'
+      QUOTING.quoted_true
     end
 
     def quoted_false
-      '0'
+      QUOTING.quoted_false
     end
 
     def add_limit_offset!(sql, options) #:nodoc:
@@ -6,8 +6,8 @@ module ActiveRecord
         config[:driver] ||= "org.apache.derby.jdbc.EmbeddedDriver"
         config[:adapter_spec] = ::ArJdbc::Derby
         conn = embedded_driver(config)
-        md = conn.jdbc_connection.meta_data
-        if md.database_major_version < 10 || (md.database_major_version == 10 && md.database_minor_version < 5)
+        major, minor = conn.jdbc_connection { |c| [c.meta_data.database_major_version, c.meta_data.database_minor_version] }
+        if major < 10 || (major == 10 && minor < 5)
           raise ::ActiveRecord::ConnectionFailed, "Derby adapter requires Derby 10.5 or later"
         end
         conn
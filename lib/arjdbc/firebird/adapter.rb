@@ -107,8 +107,14 @@ module ::ArJdbc
       end
     end
 
+    QUOTING = ::ArJdbc::QuotingService.new(:escape => :standard, :quoted_true => '1', :quoted_false => '0')
+
+    def quoting_service
+      QUOTING
+    end
+
     def quote_string(string) # :nodoc:
-      string.gsub(/'/, "''")
+      QUOTING.quote_string(string)
     end
 
     def quote_column_name(column_name) # :nodoc:
@@ -116,11 +122,11 @@ module ::ArJdbc
     end
 
     def quoted_true # :nodoc:
-      quote(1)
+      QUOTING.quoted_true
     end
 
     def quoted_false # :nodoc:
-      quote(0)
+      QUOTING.quoted_false
     end
 
     private
@@ -1,5 +1,7 @@
 require 'arjdbc/hsqldb/adapter'
 
+::ArJdbc.load_java_part :H2
+
 module ArJdbc
   module H2
     include HSQLDB
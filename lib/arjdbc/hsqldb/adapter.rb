@@ -70,7 +70,7 @@ module ::ArJdbc
         if respond_to?(:h2_adapter) && value.empty?
           "''"
         elsif column && column.type == :binary
-          "'#{value.unpack("H*")[0]}'"
+          "'#{QUOTING.escape_binary(value)}'"
         elsif column && (column.type == :integer ||
                          column.respond_to?(:primary) && column.primary && column.klass != String)
           value.to_i.to_s
@@ -91,16 +91,22 @@ module ::ArJdbc
       end
     end
 
+    QUOTING = ::ArJdbc::QuotingService.new(:escape => :standard, :quoted_true => '1', :quoted_false => '0')
+
+    def quoting_service
+      QUOTING
+    end
+
     def quote_string(str)
-      str.gsub(/'/, "''")
+      QUOTING.quote_string(str)
     end
 
     def quoted_true
-      '1'
+      QUOTING.quoted_true
     end
 
     def quoted_false
-      '0'
+      QUOTING.quoted_false
     end
 
     def add_column(table_name, column_name, type, options = {})
@@ -137,8 +143,11 @@ module ::ArJdbc
     end
 
     def _execute(sql, name = nil)
-      result = super
-      ActiveRecord::ConnectionAdapters::JdbcConnection::insert?(sql) ? last_insert_id : result
+      return super unless ActiveRecord::ConnectionAdapters::JdbcConnection::insert?(sql)
+      with_pinned_connection do # IDENTITY() is the session's
+        super(sql, name)
+        last_insert_id
+      end
     end
 
     def add_limit_offset!(sql, options) #:nodoc:
@@ -1,3 +1,5 @@
+::ArJdbc.load_java_part :Informix
+
 module ::ActiveRecord
   class Base
     after_save :write_lobs
@@ -99,8 +101,14 @@ module ::ArJdbc
     end
 
     # TODO: Add some smart quoting for newlines in string and text fields.
+    QUOTING = ::ArJdbc::QuotingService.new(:escape => :standard)
+
+    def quoting_service
+      QUOTING
+    end
+
     def quote_string(string)
-      string.gsub(/\'/, "''")
+      QUOTING.quote_string(string)
     end
 
     def quote(value, column = nil)
@@ -13,6 +13,7 @@ require 'arjdbc/jdbc/connection'
 require 'arjdbc/jdbc/callbacks'
 require 'arjdbc/jdbc/extension'
 require 'arjdbc/jdbc/base_ext'
+require 'arjdbc/jdbc/warm_up'
 require 'bigdecimal'
 
 module ActiveRecord
@@ -51,9 +52,11 @@ module ActiveRecord
         ActiveRecord::ConnectionAdapters::JdbcColumn
       end
 
-      # Retrieve the raw java.sql.Connection object.
-      def jdbc_connection
-        raw_connection.connection
+      # Retrieve the raw java.sql.Connection object, yielded to the block when
+      # given. With :multiplex it is only handed out pinned (for the block,
+      # see #with_pinned_connection).
+      def jdbc_connection(&block)
+        raw_connection.connection(&block)
       end
 
       # Locate specialized adapter specification if one exists based on config data
@@ -141,6 +144,17 @@ module ActiveRecord
         @connection.native_database_types
       end
 
+      # Dialects return an ArJdbc::QuotingService configured with their
+      # literal rules so that #quote handles the common values in Java.
+      def quoting_service
+        nil
+      end
+
+      def quote(value, column = nil)
+        quoting = quoting_service
+        (quoting && quoting.quote(value, column)) || super
+      end
+
       def database_name #:nodoc:
         @connection.database_name
       end
@@ -184,6 +198,12 @@ module ActiveRecord
         @connection.active?
       end
 
+      # Checked in to the pool: a :multiplex connection stops holding on to
+      # the physical connection it might still have leased.
+      def on_checkin
+        @connection.release_connection
+      end
+
       def reconnect!
         @connection.reconnect!
         @connection
@@ -219,6 +239,20 @@ module ActiveRecord
         @connection.execute(sql)
       end
 
+      # Executes +sql+ setting up the database session, with :multiplex every
+      # connection of the shared pool runs it as well.
+      def execute_session(sql, name = nil)
+        log(sql, name) { @connection.execute_session(sql) }
+      end
+
+      # Runs the block on one connection throughout, with :multiplex
+      # statements otherwise each get whichever connection is free. Needed
+      # when reading back what a statement left in the session (the last
+      # insert id).
+      def with_pinned_connection
+        @connection.with_pinned_connection { yield }
+      end
+
       def jdbc_insert(sql, name = nil, pk = nil, id_value = nil, sequence_name = nil, binds = [])
         insert_sql(sql, name, pk, id_value, sequence_name, binds)
       end
@@ -257,6 +291,27 @@ module ActiveRecord
         id_value || id
       end
 
+      # Runs the query on one of the connection's background connections
+      # (see the :async_pool option) and returns a future right away, its
+      # #value being the rows as #select would return them.
+      def select_async(sql, name = nil, binds = [])
+        sql = substitute_binds(sql, binds)
+        log(sql, name) { @connection.execute_query_async(sql) }
+      end
+
+      # Like #select_async for statements returning an update count.
+      def update_async(sql, name = nil, binds = [])
+        sql = substitute_binds(sql, binds)
+        log(sql, name) { @connection.execute_update_async(sql) }
+      end
+
+      # Runs independent queries concurrently, returning their rows in the
+      # same order. The slot of a query that failed (or did not complete
+      # within +timeout+ seconds) holds the error instead.
+      def parallel_select(sqls, max_parallelism = nil, timeout = nil, name = nil)
+        log(sqls.join(";\n"), name) { @connection.parallel_select(sqls, max_parallelism, timeout) }
+      end
+
       ### Rails 3.1 prepared statement support
 
       # Executes +sql+ statement in the context of this connection using
@@ -304,8 +359,57 @@ module ActiveRecord
         @connection.indexes(table_name, name, schema_name)
       end
 
+      # Reads the columns, primary keys and indexes of every table in
+      # +schema+ up front, with a few catalog queries for the whole schema,
+      # and answers later lookups for those tables from memory until a DDL
+      # statement is executed.  Returns the names of the tables loaded.
+      def load_schema(schema = nil)
+        @connection.load_schema(schema)
+      end
+
+      def clear_schema_cache
+        @connection.clear_schema_cache
+      end
+
+      # Writes what load_schema reads, plus the type info, to +path+ for
+      # connections configured with :schema_snapshot to boot from (as long
+      # as no migration has run since).  Returns the number of tables.
+      def dump_schema_snapshot(path, schema = nil)
+        @connection.dump_schema_snapshot(path, @connection.schema_version, schema)
+      end
+
+      # Prepares +sqls+ on this connection ahead of their first use (see the
+      # :statement_cache_size option), statements run with binds then skip
+      # the prepare.  Returns the number of statements cached.
+      def prime_statements(sqls)
+        @connection.prime_statements(sqls)
+      end
+
       def begin_db_transaction
-        @connection.begin
+        options, @transaction_options = @transaction_options, nil
+        options ? @connection.begin(options) : @connection.begin
+      end
+
+      def begin_isolated_db_transaction(isolation)
+        @connection.begin(:isolation => isolation)
+      end
+
+      def supports_transaction_isolation?(level = nil)
+        @connection.supports_transaction_isolation?(level)
+      end
+
+      # Like #transaction, the transaction running at the :isolation level
+      # and/or in :read_only mode given. Those can not be set on a
+      # transaction open already, TransactionIsolationError is raised then.
+      def transaction_with(options, &block)
+        if open_transactions > 0 && (options[:isolation] || !options[:read_only].nil?)
+          raise ::ActiveRecord::TransactionIsolationError,
+            "cannot set the isolation level or read only mode when joining a transaction"
+        end
+        @transaction_options = options
+        transaction(&block)
+      ensure
+        @transaction_options = nil
       end
 
       def commit_db_transaction
@@ -316,6 +420,28 @@ module ActiveRecord
         @connection.rollback
       end
 
+      # Runs the block in a transaction (with the :isolation and :read_only
+      # options of transaction_with), replayed from the start in a new one
+      # (with a random back off) when it fails on a serialization failure or
+      # a deadlock, see JdbcConnection#with_transaction_retry for the options.
+      # Every attempt is a regular transaction, records saved in one that
+      # failed get rolled back. Every replay gets instrumented as
+      # transaction_replay.arjdbc.
+      def with_transaction_retry(options = {})
+        options = { :on_replay => method(:instrument_transaction_replay) }.merge(options)
+        @connection.with_transaction_retry(options) do |attempt|
+          transaction_with(options) { yield attempt }
+        end
+      end
+
+      def instrument_transaction_replay(attempt, error)
+        if defined?(::ActiveSupport::Notifications)
+          ::ActiveSupport::Notifications.instrument('transaction_replay.arjdbc',
+            :attempt => attempt, :exception => error, :connection_id => object_id)
+        end
+      end
+      private :instrument_transaction_replay
+
       def write_large_object(*args)
         @connection.write_large_object(*args)
       end
@@ -339,7 +465,11 @@ module ActiveRecord
 
       def translate_exception(e, message)
         puts e.backtrace if $DEBUG || ENV['DEBUG']
-        super
+        error = super
+        unless error.equal?(e) || error.respond_to?(:original_exception)
+          error.instance_variable_set(:@original_exception, e) # what with_transaction_retry looks at
+        end
+        error
       end
 
       def extract_sql(obj)
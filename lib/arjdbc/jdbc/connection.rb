@@ -1,3 +1,5 @@
+require 'digest/sha1'
+
 module ActiveRecord
   module ConnectionAdapters
     class JdbcConnection
@@ -23,6 +25,27 @@ module ActiveRecord
           else
             configure_jdbc
           end
+          configure_replicas
+        end
+
+        # Builds a connection factory for each entry in config[:replicas],
+        # a hash with :url (plus optional :username, :password, :driver,
+        # defaulting to the primary's) or a :jndi name.
+        def configure_replicas
+          @replica_factories = Array(config[:replicas]).map do |replica|
+            replica = replica.symbolize_keys
+            if replica[:jndi]
+              ds = javax.naming.InitialContext.new.lookup(replica[:jndi].to_s)
+              JdbcConnectionFactory.impl { ds.connection }
+            else
+              url  = replica[:url].to_s
+              user = (replica[:username] || config[:username]).to_s
+              pass = (replica[:password] || config[:password]).to_s
+              jdbc_driver = replica[:driver] ? JdbcDriver.new(replica[:driver].to_s) :
+                (config[:driver_instance] ||= JdbcDriver.new(config[:driver].to_s))
+              DriverConnectionFactory.new(JRuby.runtime, jdbc_driver.driver, url, user, pass)
+            end
+          end
         end
 
         def configure_jndi
@@ -54,7 +77,7 @@ module ActiveRecord
         end
 
         def configure_jdbc
-          unless config[:driver] && config[:url]
+          unless config[:driver] && (config[:url] || config[:urls])
             raise ::ActiveRecord::ConnectionNotEstablished, "jdbc adapter requires driver class and url"
           end
 
@@ -63,8 +86,32 @@ module ActiveRecord
           pass   = config[:password].to_s
           url    = configure_url
           jdbc_driver = (config[:driver_instance] ||= JdbcDriver.new(driver))
-          @connection_factory = JdbcConnectionFactory.impl do
-            jdbc_driver.connection(url, user, pass)
+          urls = failover_urls(url)
+          config[:url] ||= urls.first
+          if urls.size > 1
+            # shared by the pool's connections, for them to agree on host health (it
+            # probes hosts that are down while any of them is connected)
+            @connection_factory = (config[:failover_factory] ||= begin
+              hosts = urls.map { |u| DriverConnectionFactory.new(JRuby.runtime, jdbc_driver.driver, u, user, pass) }
+              options = config[:failover].is_a?(Hash) ? config[:failover] : {}
+              FailoverConnectionFactory.new(hosts.to_java(JdbcConnectionFactory), urls.to_java(:string),
+                !!options[:by_latency], ((options[:probe_interval] || 5).to_f * 1000).to_i)
+            end)
+          else
+            # resolved once, connecting again does not go through Ruby
+            @connection_factory = DriverConnectionFactory.new(JRuby.runtime, jdbc_driver.driver, url, user, pass)
+          end
+        end
+
+        # The URLs to fail over between, in order of preference: config[:urls]
+        # or the URL with config[:host] replaced by each of config[:hosts].
+        def failover_urls(url)
+          if config[:urls]
+            Array(config[:urls]).map { |u| u.to_s }
+          elsif config[:hosts] && config[:host] && url.include?(config[:host].to_s)
+            Array(config[:hosts]).map { |host| url.sub(config[:host].to_s, host.to_s) }
+          else
+            [ url ]
           end
         end
       end
@@ -78,12 +125,19 @@ module ActiveRecord
       # @native_types - This is the default type settings sans any modifications by the
       # individual adapter.  My guess is that if we loaded two adapters of different types
       # then this is used as a base to be tweaked by each adapter to create @native_database_types
+      #
+      # With config[:lazy] neither gets loaded here : the connection opens on the first call
+      # that needs it and the types get resolved when native_database_types is first asked for.
 
       def initialize(config)
         self.config = config
         configure_connection
-        connection # force the connection to load
-        set_native_database_types
+        unless config[:lazy]
+          connection # force the connection to load
+          load_configured_schema_snapshot
+          set_native_database_types
+        end
+        release_connection # with :multiplex, what was leased above goes back
         @stmts = {}
       rescue ::ActiveRecord::ActiveRecordError
         raise
@@ -96,11 +150,26 @@ module ActiveRecord
 
       def adapter=(adapter)
         @adapter = adapter
-        @native_database_types = dup_native_types
-        @adapter.modify_types(@native_database_types)
+        if @native_types
+          @native_database_types = dup_native_types
+          @adapter.modify_types(@native_database_types)
+        end
         @adapter.config.replace(config)
       end
 
+      # Loads the types (deferred with config[:lazy]), native_database_types
+      # calls this the first time around.
+      def resolve_native_database_types
+        unless @native_types
+          load_configured_schema_snapshot
+          set_native_database_types
+          release_connection
+        end
+        types = dup_native_types
+        @adapter.modify_types(types) if @adapter
+        @native_database_types = types
+      end
+
       # Duplicate all native types into new hash structure so it can be modified
       # without destroying original structure.
       def dup_native_types
@@ -123,12 +192,29 @@ module ActiveRecord
         @jndi_connection
       end
 
+      # The version a schema snapshot has to be taken at to be used: the
+      # number of migrations run plus a digest of all their versions (so one
+      # merged later with an older timestamp counts too), nil when none ran.
+      def schema_version
+        versions = execute("SELECT version FROM schema_migrations").map { |row| row['version'].to_s }
+        return nil if versions.empty?
+        "#{versions.size}-#{Digest::SHA1.hexdigest(versions.sort.join(','))}"
+      rescue ::ActiveRecord::ActiveRecordError
+        nil
+      end
+
+      # A lazy connection not opened yet counts as active, there is nothing
+      # to verify until it gets used, and so does a :multiplex one.
       def active?
-        @connection
+        @connection || connect_pending? || multiplexed?
       end
 
       private
       include ConfigHelper
+
+      def load_configured_schema_snapshot
+        load_schema_snapshot(config[:schema_snapshot].to_s, schema_version, config[:schema]) if config[:schema_snapshot]
+      end
     end
   end
 end
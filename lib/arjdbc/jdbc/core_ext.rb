@@ -8,6 +8,16 @@ module ActiveRecord # :nodoc:
     attr_accessor :sql_exception
   end
 
+  # Raised instead of connecting while the :circuit_breaker is open, after
+  # too many failed attempts to connect to the database.
+  class ConnectionCircuitOpen < ConnectionNotEstablished
+  end
+
+  # Raised when a transaction with an isolation level or read only mode
+  # would join one that is open already (as ActiveRecord 4 does).
+  class TransactionIsolationError < ActiveRecordError
+  end unless const_defined?(:TransactionIsolationError)
+
   module ConnectionAdapters     # :nodoc:
     # Allows properly re-wrapping/re-defining methods that may already
     # be alias_method_chain'd.
@@ -1,6 +1,8 @@
 module ActiveRecord
   module ConnectionAdapters
     class JdbcDriver
+      attr_reader :driver
+
       def initialize(name)
         @name = name
         @driver = driver_class.new
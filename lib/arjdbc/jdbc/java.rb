@@ -1,4 +1,5 @@
 require 'java'
+require 'jruby'
 require 'arjdbc/jdbc/adapter_java'
 
 module ActiveRecord
@@ -10,5 +11,7 @@ module ActiveRecord
     end
 
     java_import "arjdbc.jdbc.JdbcConnectionFactory"
+    java_import "arjdbc.jdbc.DriverConnectionFactory"
+    java_import "arjdbc.jdbc.FailoverConnectionFactory"
   end
 end
@@ -5,5 +5,20 @@ module ::ArJdbc
     rake_tasks do
       load File.expand_path('../rake_tasks.rb', __FILE__)
     end
+
+    # done before serving anything, see ArJdbc.warm_up
+    config.after_initialize do
+      unless ::ArJdbc::Railtie.skip_warm_up?
+        pool = ::ActiveRecord::Base.connection_handler.retrieve_connection_pool(::ActiveRecord::Base)
+        ::ArJdbc.warm_up(pool) if pool && pool.spec.config[:warm_up]
+      end
+    end
+
+    # rake tasks (db:create, assets:precompile) and consoles serve nothing
+    # and might run before there is a database to connect to
+    def self.skip_warm_up?
+      return true if defined?(::Rails::Console)
+      defined?(::Rake) && ::Rake.respond_to?(:application) && !::Rake.application.top_level_tasks.empty?
+    end
   end
 end
@@ -0,0 +1,53 @@
+require 'thread'
+
+module ::ArJdbc
+  # Fills +pool+ with +size+ connections (up to the pool size, which is also
+  # the default) and gets them ready in parallel, so connecting,
+  # authenticating and loading the types all happen at once instead of on
+  # the first requests (the pool only creates the adapters, as with :lazy,
+  # all of the connecting is done in parallel). Every connection gets the
+  # +statements+ prepared (see JdbcAdapter#prime_statements), by default
+  # those in :prime_statements.
+  #
+  # The connections are checked out of the pool and back in, blocks until all
+  # of them are ready and returns their number. Meant to run at boot before
+  # the pool is used, with :warm_up set in the database config Rails does
+  # this once initialized.
+  def self.warm_up(pool = ::ActiveRecord::Base.connection_pool, size = nil, statements = nil)
+    config = pool.spec.config
+    max = (config[:pool] || 5).to_i - pool.connections.size
+    size ||= config[:warm_up]
+    size = (size.nil? || size == true) ? max : [ size.to_i, max ].min
+    statements ||= Array(config[:prime_statements])
+
+    adapters = []
+    begin
+      lazy = config[:lazy]
+      begin
+        config[:lazy] = true # the pool connects while holding its lock
+        size.times { adapters << pool.checkout }
+      ensure
+        lazy.nil? ? config.delete(:lazy) : config[:lazy] = lazy
+      end
+
+      lock = Mutex.new
+      errors = []
+      threads = adapters.map do |adapter|
+        Thread.new do
+          begin
+            adapter.jdbc_connection { } # opens a :lazy connection
+            adapter.native_database_types
+            adapter.prime_statements(statements) unless statements.empty?
+          rescue Exception => e
+            lock.synchronize { errors << e }
+          end
+        end
+      end
+      threads.each { |thread| thread.join }
+      raise errors.first unless errors.empty?
+    ensure
+      adapters.each { |adapter| pool.checkin(adapter) }
+    end
+    adapters.size
+  end
+end
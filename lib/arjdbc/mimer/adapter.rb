@@ -67,11 +67,20 @@ module ArJdbc
       id
     end
 
+    QUOTING = ::ArJdbc::QuotingService.new(:escape => :standard, :quoted_true => '1', :quoted_false => '0')
+
+    def quoting_service
+      QUOTING
+    end
+
     def quote(value, column = nil) #:nodoc:
       return value.quoted_id if value.respond_to?(:quoted_id)
 
       if String === value && column && column.type == :binary
-        return "X'#{quote_string(value.unpack("C*").collect {|v| v.to_s(16)}.join)}'"
+        return "X'#{QUOTING.escape_binary(value)}'"
+      end
+      if quoted = QUOTING.quote(value, column)
+        return quoted
       end
       case value
       when String
@@ -91,12 +100,16 @@ module ArJdbc
       end
     end
 
+    def quote_string(string)
+      QUOTING.quote_string(string)
+    end
+
     def quoted_true
-      '1'
+      QUOTING.quoted_true
     end
 
     def quoted_false
-      '0'
+      QUOTING.quoted_false
     end
 
     def add_limit_offset!(sql, options) # :nodoc:
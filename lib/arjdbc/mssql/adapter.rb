@@ -3,6 +3,8 @@ require 'arjdbc/mssql/limit_helpers'
 require 'arjdbc/mssql/lock_helpers'
 require 'strscan'
 
+::ArJdbc.load_java_part :MSSQL
+
 module ::ArJdbc
   module MsSQL
     include TSqlMethods
@@ -217,8 +219,14 @@ module ::ArJdbc
       end
     end
 
+    QUOTING = ::ArJdbc::QuotingService.new(:escape => :standard, :quoted_true => '1', :quoted_false => '0')
+
+    def quoting_service
+      QUOTING
+    end
+
     def quote_string(string)
-      string.gsub(/\'/, "''")
+      QUOTING.quote_string(string)
     end
 
     def quote_table_name(name)
@@ -230,11 +238,11 @@ module ::ArJdbc
     end
 
     def quoted_true
-      quote true
+      QUOTING.quoted_true
     end
 
     def quoted_false
-      quote false
+      QUOTING.quoted_false
     end
 
     def adapter_name #:nodoc:
@@ -366,8 +374,7 @@ module ::ArJdbc
     def _execute(sql, name = nil)
       # Match the start of the sql to determine appropriate behaviour.  Be aware of
       # multi-line sql which might begin with 'create stored_proc' and contain 'insert into ...' lines.
-      # Possible improvements include ignoring comment blocks prior to the first statement.
-      if sql.lstrip =~ /\Ainsert/i
+      if ActiveRecord::ConnectionAdapters::JdbcConnection::insert?(sql)
         if query_requires_identity_insert?(sql)
           table_name = get_table_name(sql)
           with_identity_insert_enabled(table_name) do
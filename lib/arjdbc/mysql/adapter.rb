@@ -1,5 +1,7 @@
 require 'active_record/connection_adapters/abstract/schema_definitions'
 
+::ArJdbc.load_java_part :MySQL
+
 module ::ArJdbc
   module MySQL
     def self.column_selector
@@ -11,7 +13,7 @@ module ::ArJdbc
     end
 
     def configure_connection
-      execute("SET SQL_AUTO_IS_NULL=0")
+      execute_session("SET SQL_AUTO_IS_NULL=0")
     end
 
     def self.jdbc_connection_class
@@ -123,8 +125,7 @@ module ::ArJdbc
       if column && column.type == :primary_key
         value.to_s
       elsif column && String === value && column.type == :binary && column.class.respond_to?(:string_to_binary)
-        s = column.class.string_to_binary(value).unpack("H*")[0]
-        "x'#{s}'"
+        "x'#{QUOTING.escape_binary(column.class.string_to_binary(value))}'"
       elsif BigDecimal === value
         "'#{value.to_s("F")}'"
       else
@@ -136,12 +137,18 @@ module ::ArJdbc
       "`#{name.to_s.gsub('`', '``')}`"
     end
 
+    QUOTING = ::ArJdbc::QuotingService.new(:escape => :mysql, :quoted_true => '1', :quoted_false => '0')
+
+    def quoting_service
+      QUOTING
+    end
+
     def quoted_true
-      "1"
+      QUOTING.quoted_true
     end
 
     def quoted_false
-      "0"
+      QUOTING.quoted_false
     end
 
     def supports_savepoints? #:nodoc:
@@ -149,15 +156,37 @@ module ::ArJdbc
     end
 
     def create_savepoint
-      execute("SAVEPOINT #{current_savepoint_name}")
+      @connection.create_savepoint(current_savepoint_name)
     end
 
     def rollback_to_savepoint
-      execute("ROLLBACK TO SAVEPOINT #{current_savepoint_name}")
+      @connection.rollback_savepoint(current_savepoint_name)
     end
 
     def release_savepoint
-      execute("RELEASE SAVEPOINT #{current_savepoint_name}")
+      @connection.release_savepoint(current_savepoint_name)
+    end
+
+    # Executes +sql+ with a streaming result set, yielding each row as a
+    # hash. Rows are not buffered on the client, so this is the way to
+    # export large tables. Nothing else may be executed on this connection
+    # from within the block. Returns the number of rows yielded.
+    def select_each(sql, name = nil, binds = [], &block)
+      sql = substitute_binds(sql, binds)
+      log(sql, name) { @connection.execute_query_streaming(sql, &block) }
+    end
+
+    # Bulk loads rows into +table_name+ with LOAD DATA LOCAL INFILE, reading
+    # them from +source+ instead of a file: an IO in the default LOAD DATA
+    # format (tab separated, backslash escaped) or an enumerable yielding
+    # lines or arrays of values. Returns the number of rows loaded.
+    def load_data_local(table_name, columns, source, name = nil)
+      columns = columns.map { |c| quote_column_name(c) } if columns
+      table = quote_table_name(table_name)
+      source = source.each unless source.respond_to?(:read) || source.respond_to?(:next)
+      log("LOAD DATA LOCAL INFILE 'stream' INTO TABLE #{table}", name) do
+        @connection.load_data_local_infile(table, columns, source)
+      end
     end
 
     def disable_referential_integrity(&block) #:nodoc:
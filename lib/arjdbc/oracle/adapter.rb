@@ -1,3 +1,5 @@
+::ArJdbc.load_java_part :Oracle
+
 module ActiveRecord::ConnectionAdapters
   OracleAdapter = Class.new(AbstractAdapter) unless const_defined?(:OracleAdapter)
 end
@@ -197,12 +199,13 @@ module ::ArJdbc
     end
 
     def indexes(table, name = nil)
-      @connection.indexes(table, name, @connection.connection.meta_data.user_name)
+      user_name = @connection.connection { |c| c.meta_data.user_name }
+      @connection.indexes(table, name, user_name)
     end
 
     def _execute(sql, name = nil)
-      case sql.strip
-        when /\A\(?\s*(select|show)/i then
+      case ActiveRecord::ConnectionAdapters::JdbcConnection::sql_kind(sql)
+        when :select, :with, :show then
           @connection.execute_query(sql)
         else
           @connection.execute_update(sql)
@@ -372,8 +375,14 @@ module ::ArJdbc
       name.to_s =~ /^[a-z0-9_$#]+$/ ? name.to_s : "\"#{name}\""
     end
 
+    QUOTING = ::ArJdbc::QuotingService.new(:escape => :standard, :quoted_true => '1', :quoted_false => '0')
+
+    def quoting_service
+      QUOTING
+    end
+
     def quote_string(string) #:nodoc:
-      string.gsub(/'/, "''")
+      QUOTING.quote_string(string)
     end
 
     def quote(value, column = nil) #:nodoc:
@@ -401,11 +410,11 @@ module ::ArJdbc
     end
 
     def quoted_true #:nodoc:
-      '1'
+      QUOTING.quoted_true
     end
 
     def quoted_false #:nodoc:
-      '0'
+      QUOTING.quoted_false
     end
 
     private
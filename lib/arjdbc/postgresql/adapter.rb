@@ -1,3 +1,5 @@
+::ArJdbc.load_java_part :PostgreSQL
+
 module ActiveRecord::ConnectionAdapters
   PostgreSQLAdapter = Class.new(AbstractAdapter) unless const_defined?(:PostgreSQLAdapter)
 end
@@ -236,15 +238,15 @@ module ::ArJdbc
     end
 
     def create_savepoint
-      execute("SAVEPOINT #{current_savepoint_name}")
+      @connection.create_savepoint(current_savepoint_name)
     end
 
     def rollback_to_savepoint
-      execute("ROLLBACK TO SAVEPOINT #{current_savepoint_name}")
+      @connection.rollback_savepoint(current_savepoint_name)
     end
 
     def release_savepoint
-      execute("RELEASE SAVEPOINT #{current_savepoint_name}")
+      @connection.release_savepoint(current_savepoint_name)
     end
 
     # Returns the configured supported identifier length supported by PostgreSQL,
@@ -336,32 +338,47 @@ module ::ArJdbc
         pk, sequence_name = *pk_and_sequence_for(table) unless pk
         if pk
           sql = substitute_binds(sql, binds)
-          id_value = select_value("#{sql} RETURNING #{quote_column_name(pk)}")
+          id_value = log(sql, name) { @connection.insert_returning(sql, quote_column_name(pk)) }
           clear_query_cache #FIXME: Why now?
           return id_value
         end
       end
 
       # Otherwise, plain insert
-      execute(sql, name, binds)
-
-      # Don't need to look up id_value if we already have it.
-      # (and can't in case of non-sequence PK)
-      unless id_value
-        # If neither pk nor sequence name is given, look them up.
-        unless pk || sequence_name
-          pk, sequence_name = *pk_and_sequence_for(table)
-        end
+      with_pinned_connection do # currval is the session's
+        execute(sql, name, binds)
+
+        # Don't need to look up id_value if we already have it.
+        # (and can't in case of non-sequence PK)
+        unless id_value
+          # If neither pk nor sequence name is given, look them up.
+          unless pk || sequence_name
+            pk, sequence_name = *pk_and_sequence_for(table)
+          end
 
-        # If a pk is given, fallback to default sequence name.
-        # Don't fetch last insert id for a table without a pk.
-        if pk && sequence_name ||= default_sequence_name(table, pk)
-          id_value = last_insert_id(table, sequence_name)
+          # If a pk is given, fallback to default sequence name.
+          # Don't fetch last insert id for a table without a pk.
+          if pk && sequence_name ||= default_sequence_name(table, pk)
+            id_value = last_insert_id(table, sequence_name)
+          end
         end
       end
       id_value
     end
 
+    # Runs the INSERT +sql+ with a RETURNING clause in a single round trip.
+    # Returns the value of +columns+ when given a single column name, or an
+    # array of hashes (one per inserted row) when given an array of names,
+    # which picks up defaults computed by the database as well.
+    def insert_returning(sql, columns, binds = [], name = nil)
+      returning = columns.is_a?(Array) ?
+        columns.map { |c| quote_column_name(c) } : quote_column_name(columns)
+      sql = substitute_binds(sql, binds)
+      result = log(sql, name) { @connection.insert_returning(sql, returning) }
+      clear_query_cache
+      result
+    end
+
     def primary_key(table)
       pk_and_sequence = pk_and_sequence_for(table)
       pk_and_sequence && pk_and_sequence.first
@@ -403,6 +420,28 @@ module ::ArJdbc
       end_sql
     end
 
+    # Bulk loads rows into +table_name+ using COPY ... FROM STDIN.
+    #
+    # +source+ is either an IO-like object whose content is already in
+    # +format+ (:text or :csv), or an enumerable yielding one row at a time,
+    # as a preformatted line or as an array of values.  Rows are streamed
+    # to the server, the whole payload is never built in memory.  Returns
+    # the number of rows copied.
+    def copy_in(table_name, columns, source, format = :text, name = nil)
+      columns = columns.map { |c| quote_column_name(c) } if columns
+      table = quote_table_name(table_name)
+      log("COPY #{table} FROM STDIN", name) do
+        @connection.copy_in(table, columns, source, format.to_s)
+      end
+    end
+
+    # Runs +sql+ (a COPY ... TO STDOUT statement or a plain query) and
+    # writes the rows in COPY text format to +io+, or yields each row to
+    # the block when no io is given.  Returns the number of rows copied.
+    def copy_out(sql, io = nil, name = nil, &block)
+      log(sql, name) { @connection.copy_out(sql, io, &block) }
+    end
+
     # Sets the maximum number columns postgres has, default 32
     def multi_column_index_limit=(limit)
       @multi_column_index_limit = limit
@@ -508,7 +547,7 @@ module ::ArJdbc
       ENV['PGPASSWORD'] = @config[:password].to_s if @config[:password]
       search_path = "--schema=#{schema_search_path}" if schema_search_path
 
-      @connection.connection.close
+      disconnect!
       begin
         definition = `pg_dump -i -U "#{@config[:username]}" -s -x -O #{search_path} #{database}`
         raise "Error dumping database" if $?.exitstatus == 1
@@ -527,7 +566,7 @@ module ::ArJdbc
     # This should be not be called manually but set in database.yml.
     def schema_search_path=(schema_csv)
       if schema_csv
-        execute "SET search_path TO #{schema_csv}"
+        execute_session "SET search_path TO #{schema_csv}"
         @schema_search_path = schema_csv
       end
     end
@@ -606,12 +645,18 @@ module ::ArJdbc
       end
     end
 
+    QUOTING = ::ArJdbc::QuotingService.new(:escape => :backslash, :binary => :bytea, :usec => true)
+
+    def quoting_service
+      QUOTING
+    end
+
     def escape_bytea(s)
-      if s
-        result = ''
-        s.each_byte { |c| result << sprintf('\\\\%03o', c) }
-        result
-      end
+      QUOTING.escape_binary(s)
+    end
+
+    def quote_string(s)
+      QUOTING.quote_string(s)
     end
 
     def quote_table_name(name)
@@ -630,7 +675,9 @@ module ::ArJdbc
     end
 
     def quoted_date(value) #:nodoc:
-      if value.acts_like?(:time) && value.respond_to?(:usec)
+      if quoted = QUOTING.quoted_date(value)
+        quoted
+      elsif value.acts_like?(:time) && value.respond_to?(:usec)
         "#{super}.#{sprintf("%06d", value.usec)}"
       else
         super
@@ -13,7 +13,7 @@ class ActiveRecord::Base
       config[:adapter_class] = ActiveRecord::ConnectionAdapters::PostgreSQLAdapter
       config[:adapter_spec] = ::ArJdbc::PostgreSQL
       conn = jdbc_connection(config)
-      conn.execute("SET SEARCH_PATH TO #{config[:schema_search_path]}") if config[:schema_search_path]
+      conn.execute_session("SET SEARCH_PATH TO #{config[:schema_search_path]}") if config[:schema_search_path]
       conn
     end
     alias_method :jdbcpostgresql_connection, :postgresql_connection
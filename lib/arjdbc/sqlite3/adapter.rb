@@ -1,5 +1,7 @@
 require 'arjdbc/jdbc/missing_functionality_helper'
 
+::ArJdbc.load_java_part :SQLite3
+
 module ActiveRecord::ConnectionAdapters
   Sqlite3Adapter = Class.new(AbstractAdapter) unless const_defined?(:Sqlite3Adapter)
 end
@@ -123,22 +125,30 @@ module ::ArJdbc
       %Q("#{name.to_s.gsub('"', '""')}")
     end
 
+    QUOTING = ::ArJdbc::QuotingService.new(:escape => :standard, :usec => true)
+
+    def quoting_service
+      QUOTING
+    end
+
     def quote_string(str)
-      str.gsub(/'/, "''")
+      QUOTING.quote_string(str)
     end
 
     def quoted_true
-      %Q{'t'}
+      QUOTING.quoted_true
     end
 
     def quoted_false
-      %Q{'f'}
+      QUOTING.quoted_false
     end
 
     # Quote date/time values for use in SQL input. Includes microseconds
     # if the value is a Time responding to usec.
     def quoted_date(value) #:nodoc:
-      if value.respond_to?(:usec)
+      if quoted = QUOTING.quoted_date(value)
+        quoted
+      elsif value.respond_to?(:usec)
         "#{super}.#{sprintf("%06d", value.usec)}"
       else
         super
@@ -39,6 +39,24 @@ module ArJdbc
       tp
     end
 
+    QUOTING = ::ArJdbc::QuotingService.new(:escape => :standard, :quoted_true => '1', :quoted_false => '0')
+
+    def quoting_service
+      QUOTING
+    end
+
+    def quote_string(string)
+      QUOTING.quote_string(string)
+    end
+
+    def quoted_true
+      QUOTING.quoted_true
+    end
+
+    def quoted_false
+      QUOTING.quoted_false
+    end
+
     def remove_index(table_name, options = {})
       execute "DROP INDEX #{table_name}.#{index_name(table_name, options)}"
     end
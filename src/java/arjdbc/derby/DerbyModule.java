@@ -26,10 +26,14 @@ package arjdbc.derby;
 
 import java.sql.SQLException;
 
+import arjdbc.jdbc.QuotingService;
 import arjdbc.jdbc.RubyJdbcConnection;
+import arjdbc.jdbc.SQLClassifier;
 
 import org.jruby.Ruby;
 import org.jruby.RubyBoolean;
+import org.jruby.RubyFloat;
+import org.jruby.RubyInteger;
 import org.jruby.RubyModule;
 import org.jruby.RubyObjectAdapter;
 import org.jruby.RubyRange;
@@ -110,7 +114,6 @@ public class DerbyModule {
             if (type.equals("text") || type.equals("string")) {
             	value = make_ruby_string_for_text_column(context, recv, runtime, value);
             }
-            String metaClass = value.getMetaClass().getName();
 
             if (value instanceof RubyString) {
                 if (type.equals("string")) {
@@ -127,7 +130,7 @@ public class DerbyModule {
                         return super_quote(context, recv, runtime, value, col);
                     }
                 }
-            } else if (metaClass.equals("Float") || metaClass.equals("Fixnum") || metaClass.equals("Bignum")) {
+            } else if (isNumber(value)) {
                 if (type.equals("string")) {
                     return quote_string_with_surround(runtime, "'", RubyString.objAsString(context, value), "'");
                 }
@@ -136,25 +139,29 @@ public class DerbyModule {
         return super_quote(context, recv, runtime, value, runtime.getNil());
     }
 
+    private static boolean isNumber(IRubyObject value) {
+        return value instanceof RubyFloat || value instanceof RubyInteger;
+    }
+
+    private static QuotingService quotingService(ThreadContext context, IRubyObject recv) {
+        return (QuotingService) recv.callMethod(context, "quoting_service");
+    }
+
     /*
      * Derby is not permissive like MySql. Try and send an Integer to a CLOB or VARCHAR column and Derby will vomit.
      * This method turns non stringy things into strings.
      */
     private static IRubyObject make_ruby_string_for_text_column(ThreadContext context, IRubyObject recv, Ruby runtime, IRubyObject value) {
-    	RubyModule multibyteChars = (RubyModule)
-            ((RubyModule) ((RubyModule) runtime.getModule("ActiveSupport")).getConstant("Multibyte")).getConstantAt("Chars");
-        if (value instanceof RubyString || rubyApi.isKindOf(value, multibyteChars) || value.isNil()) {
+        if (value instanceof RubyString || value.isNil()) {
             return value;
-        }
-
-        String metaClass = value.getMetaClass().getName();
-
-        if (value instanceof RubyBoolean) {
+        } else if (value instanceof RubyBoolean) {
             return value.isTrue() ? runtime.newString("1") : runtime.newString("0");
-        } else if (metaClass.equals("Float") || metaClass.equals("Fixnum") || metaClass.equals("Bignum")) {
+        } else if (isNumber(value)) {
             return RubyString.objAsString(context, value);
-        } else if (metaClass.equals("BigDecimal")) {
+        } else if (value.getMetaClass().getName().equals("BigDecimal")) {
             return rubyApi.callMethod(value, "to_s", runtime.newString("F"));
+        } else if (rubyApi.isKindOf(value, quotingService(context, recv).multibyteChars(runtime))) {
+            return value;
         } else {
             if (rubyApi.callMethod(value, "acts_like?", runtime.newString("date")).isTrue() || rubyApi.callMethod(value, "acts_like?", runtime.newString("time")).isTrue()) {
                 return (RubyString)rubyApi.callMethod(recv, "quoted_date", value);
@@ -164,19 +171,18 @@ public class DerbyModule {
         }
     }
 
-    private final static ByteList NULL = new ByteList("NULL".getBytes());
-
     private static IRubyObject super_quote(ThreadContext context, IRubyObject recv, Ruby runtime, IRubyObject value, IRubyObject col) {
+        // plain strings, numbers, booleans and nil
+        QuotingService quoting = quotingService(context, recv);
+        IRubyObject quoted = quoting.quote(context, value, col);
+        if (quoted != null) return quoted;
+
         if (value.respondsTo("quoted_id")) {
             return rubyApi.callMethod(value, "quoted_id");
         }
 
-        String metaClass = value.getMetaClass().getName();
-
         IRubyObject type = (col.isNil()) ? col : rubyApi.callMethod(col, "type");
-        RubyModule multibyteChars = (RubyModule)
-            ((RubyModule) ((RubyModule) runtime.getModule("ActiveSupport")).getConstant("Multibyte")).getConstantAt("Chars");
-        if (value instanceof RubyString || rubyApi.isKindOf(value, multibyteChars)) {
+        if (value instanceof RubyString || rubyApi.isKindOf(value, quoting.multibyteChars(runtime))) {
             RubyString svalue = RubyString.objAsString(context, value);
             if (type == runtime.newSymbol("binary") && col.getType().respondsTo("string_to_binary")) {
                 return quote_string_with_surround(runtime, "'", (RubyString)(rubyApi.callMethod(col.getType(), "string_to_binary", svalue)), "'");
@@ -187,15 +193,13 @@ public class DerbyModule {
             } else {
                 return quote_string_with_surround(runtime, "'", svalue, "'");
             }
-        } else if (value.isNil()) {
-            return runtime.newString(NULL);
         } else if (value instanceof RubyBoolean) {
             return (value.isTrue() ?
-                    (type == runtime.newSymbol(":integer")) ? runtime.newString("1") : rubyApi.callMethod(recv, "quoted_true") :
-                    (type == runtime.newSymbol(":integer")) ? runtime.newString("0") : rubyApi.callMethod(recv, "quoted_false"));
-        } else if (metaClass.equals("Float") || metaClass.equals("Fixnum") || metaClass.equals("Bignum")) {
+                    (type == runtime.newSymbol("integer")) ? runtime.newString("1") : quoting.quoted_true(context) :
+                    (type == runtime.newSymbol("integer")) ? runtime.newString("0") : quoting.quoted_false(context));
+        } else if (isNumber(value)) {
             return RubyString.objAsString(context, value);
-        } else if (metaClass.equals("BigDecimal")) {
+        } else if (value.getMetaClass().getName().equals("BigDecimal")) {
             return rubyApi.callMethod(value, "to_s", runtime.newString("F"));
         } else if (rubyApi.callMethod(value, "acts_like?", runtime.newString("date")).isTrue() || rubyApi.callMethod(value, "acts_like?", runtime.newString("time")).isTrue()) {
             return quote_string_with_surround(runtime, "'", (RubyString)(rubyApi.callMethod(recv, "quoted_date", value)), "'");
@@ -204,23 +208,13 @@ public class DerbyModule {
         }
     }
 
-    private final static ByteList TWO_SINGLE = new ByteList(new byte[]{'\'','\''});
-
     private static IRubyObject quote_string_with_surround(Ruby runtime, String before, RubyString string, String after) {
-        ByteList input = string.getByteList();
-        ByteList output = new ByteList(before.getBytes());
-        for(int i = input.begin; i< input.begin + input.realSize; i++) {
-            switch(input.bytes[i]) {
-            case '\'':
-                output.append(input.bytes[i]);
-                //FALLTHROUGH
-            default:
-                output.append(input.bytes[i]);
-            }
-
-        }
-
+        ByteList escaped = ((RubyString) QuotingService.quoteString(runtime, string, QuotingService.STANDARD_ESCAPES)).getByteList();
+        ByteList output = new ByteList(before.length() + escaped.realSize + after.length());
+        output.append(before.getBytes());
+        output.append(escaped);
         output.append(after.getBytes());
+        output.setEncoding(escaped.getEncoding());
 
         return runtime.newString(output);
     }
@@ -260,30 +254,7 @@ public class DerbyModule {
 
     @JRubyMethod(name = "quote_string", required = 1)
     public static IRubyObject quote_string(IRubyObject recv, IRubyObject string) {
-        boolean replacementFound = false;
-        ByteList bl = ((RubyString) string).getByteList();
-
-        for(int i = bl.begin; i < bl.begin + bl.realSize; i++) {
-            switch (bl.bytes[i]) {
-            case '\'': break;
-            default: continue;
-            }
-
-            // On first replacement allocate a different bytelist so we don't manip original
-            if(!replacementFound) {
-                i-= bl.begin;
-                bl = new ByteList(bl);
-                replacementFound = true;
-            }
-
-            bl.replace(i, 1, TWO_SINGLE);
-            i+=1;
-        }
-        if(replacementFound) {
-            return recv.getRuntime().newStringShared(bl);
-        } else {
-            return string;
-        }
+        return QuotingService.quoteString(recv.getRuntime(), (RubyString) string, QuotingService.STANDARD_ESCAPES);
     }
 
     @JRubyMethod(name = "select_all", rest = true)
@@ -309,13 +280,10 @@ public class DerbyModule {
     public static IRubyObject _execute(ThreadContext context, IRubyObject recv, IRubyObject[] args) throws SQLException, java.io.IOException {
         Ruby runtime = recv.getRuntime();
         RubyJdbcConnection conn = (RubyJdbcConnection) rubyApi.getInstanceVariable(recv, "@connection");
-        String sql = args[0].toString().trim().toLowerCase();
-        if (sql.charAt(0) == '(') {
-            sql = sql.substring(1).trim();
-        }
-        if (sql.startsWith("insert")) {
+        SQLClassifier.Classification sql = SQLClassifier.classify(args[0].convertToString().getByteList());
+        if (sql.isInsert()) {
             return conn.execute_insert(context, args[0]);
-        } else if (sql.startsWith("select") || sql.startsWith("show") || sql.startsWith("values")) {
+        } else if (sql.isQuery()) {
             return conn.execute_query(context, args[0]);
         } else {
             return conn.execute_update(context, args[0]);
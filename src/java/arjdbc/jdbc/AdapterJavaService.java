@@ -41,28 +41,96 @@ import arjdbc.sqlite3.Sqlite3RubyJdbcConnection;
 
 import org.jruby.Ruby;
 import org.jruby.RubyClass;
+import org.jruby.RubyHash;
 import org.jruby.RubyModule;
 import org.jruby.RubyObjectAdapter;
+import org.jruby.anno.JRubyMethod;
 import org.jruby.javasupport.JavaEmbedUtils;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.runtime.load.BasicLibraryService;
 
+/**
+ * Sets up the generic JdbcConnection class. The Java parts of the vendor
+ * adapters (their connection classes and helper modules) are only defined
+ * when an adapter asks for them with ArJdbc.load_java_part, so that an app
+ * only pays for the database it uses. ArJdbc.java_load_times reports how
+ * long each part took to load.
+ */
 public class AdapterJavaService implements BasicLibraryService {
     private static RubyObjectAdapter rubyApi;
 
     public boolean basicLoad(final Ruby runtime) throws IOException {
-        RubyClass jdbcConnection = RubyJdbcConnection.createJdbcConnectionClass(runtime);
-        PostgresqlRubyJdbcConnection.createPostgresqlJdbcConnectionClass(runtime, jdbcConnection);
-        MssqlRubyJdbcConnection.createMssqlJdbcConnectionClass(runtime, jdbcConnection);
-        InformixRubyJdbcConnection.createInformixJdbcConnectionClass(runtime, jdbcConnection);
-        OracleRubyJdbcConnection.createOracleJdbcConnectionClass(runtime, jdbcConnection);
-        Sqlite3RubyJdbcConnection.createSqlite3JdbcConnectionClass(runtime, jdbcConnection);
-        H2RubyJdbcConnection.createH2JdbcConnectionClass(runtime, jdbcConnection);
-        MySQLRubyJdbcConnection.createMySQLJdbcConnectionClass(runtime, jdbcConnection);
-        DB2RubyJdbcConnection.createDB2JdbcConnectionClass(runtime, jdbcConnection);
+        long start = System.nanoTime();
+        RubyJdbcConnection.createJdbcConnectionClass(runtime);
         RubyModule arJdbc = runtime.getOrCreateModule("ArJdbc");
+        QuotingService.createQuotingServiceClass(runtime, arJdbc);
         rubyApi = JavaEmbedUtils.newObjectAdapter();
-        MySQLModule.load(arJdbc);
-        DerbyModule.load(arJdbc, rubyApi);
+        arJdbc.defineAnnotatedMethods(AdapterJavaService.class);
+        loaded(runtime, arJdbc, "Jdbc", start);
         return true;
     }
+
+    /*
+     * name
+     *
+     * Defines the Java part of the named adapter (:PostgreSQL, :MySQL, ...)
+     * unless it already is.  Returns false for adapters without one.
+     */
+    @JRubyMethod(name = "load_java_part", required = 1, meta = true)
+    public static IRubyObject load_java_part(ThreadContext context, IRubyObject recv, IRubyObject name) {
+        Ruby runtime = context.getRuntime();
+        RubyModule arJdbc = (RubyModule) recv;
+        String part = name.toString();
+        if (loadTimes(runtime, arJdbc).has_key_p(runtime.newString(part)).isTrue()) return runtime.getTrue();
+
+        long start = System.nanoTime();
+        RubyClass jdbcConnection = (RubyClass) RubyJdbcConnection.getConnectionAdapters(runtime).getConstant("JdbcConnection");
+        if (part.equals("PostgreSQL")) {
+            PostgresqlRubyJdbcConnection.createPostgresqlJdbcConnectionClass(runtime, jdbcConnection);
+        } else if (part.equals("MSSQL")) {
+            MssqlRubyJdbcConnection.createMssqlJdbcConnectionClass(runtime, jdbcConnection);
+        } else if (part.equals("Informix")) {
+            InformixRubyJdbcConnection.createInformixJdbcConnectionClass(runtime, jdbcConnection);
+        } else if (part.equals("Oracle")) {
+            OracleRubyJdbcConnection.createOracleJdbcConnectionClass(runtime, jdbcConnection);
+        } else if (part.equals("SQLite3")) {
+            Sqlite3RubyJdbcConnection.createSqlite3JdbcConnectionClass(runtime, jdbcConnection);
+        } else if (part.equals("H2")) {
+            H2RubyJdbcConnection.createH2JdbcConnectionClass(runtime, jdbcConnection);
+        } else if (part.equals("MySQL")) {
+            MySQLRubyJdbcConnection.createMySQLJdbcConnectionClass(runtime, jdbcConnection);
+            MySQLModule.load(arJdbc);
+        } else if (part.equals("DB2")) {
+            DB2RubyJdbcConnection.createDB2JdbcConnectionClass(runtime, jdbcConnection);
+        } else if (part.equals("Derby")) {
+            DerbyModule.load(arJdbc, rubyApi);
+        } else {
+            return runtime.getFalse();
+        }
+        loaded(runtime, arJdbc, part, start);
+        return runtime.getTrue();
+    }
+
+    /*
+     * Seconds it took to load each Java part, by name.
+     */
+    @JRubyMethod(name = "java_load_times", meta = true)
+    public static IRubyObject java_load_times(ThreadContext context, IRubyObject recv) {
+        return loadTimes(context.getRuntime(), (RubyModule) recv).dup();
+    }
+
+    private static RubyHash loadTimes(Ruby runtime, RubyModule arJdbc) {
+        IRubyObject times = arJdbc.getInstanceVariable("@java_load_times");
+        if (times == null || times.isNil()) {
+            times = RubyHash.newHash(runtime);
+            arJdbc.setInstanceVariable("@java_load_times", times);
+        }
+        return (RubyHash) times;
+    }
+
+    private static void loaded(Ruby runtime, RubyModule arJdbc, String part, long start) {
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        loadTimes(runtime, arJdbc).fastASet(runtime.newString(part), runtime.newFloat(seconds));
+    }
 }
@@ -0,0 +1,207 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs statements for one JdbcConnection off the calling thread. Each
+ * worker borrows a connection from a small pool of extra connections made
+ * by the same connection factory (a JDBC connection can not be used from
+ * several threads at once), so both the number of threads and the number
+ * of connections are bounded by the pool size. Submitting more work than
+ * the queue holds fails instead of growing without limit.
+ *
+ * A result left open for the thread asking for the value keeps its
+ * connection until read, or until its future is garbage collected unread.
+ * Workers wait at most <tt>timeout</tt> for a connection.
+ */
+final class AsyncExecutor {
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final JdbcConnectionFactory factory;
+    private final BlockingQueue<Connection> idle;
+    private final ThreadPoolExecutor executor;
+    private final int size;
+    private final long timeout; // millis
+    private final String aliveSQL;
+    private final ReferenceQueue<Object> abandoned = new ReferenceQueue<Object>();
+    private final Map<Reference<?>, QueryFuture.PendingResult> unread =
+        new ConcurrentHashMap<Reference<?>, QueryFuture.PendingResult>();
+    private int created = 0;
+    private volatile boolean shutdown = false;
+
+    private static final long RECLAIM_INTERVAL = 100; // millis
+
+    AsyncExecutor(JdbcConnectionFactory factory, int size, int queueSize, long timeout, String aliveSQL) {
+        this.factory = factory;
+        this.size = size;
+        this.timeout = timeout;
+        this.aliveSQL = aliveSQL;
+        this.idle = new ArrayBlockingQueue<Connection>(size);
+        this.executor = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "arjdbc-async-" + THREAD_COUNT.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    int size() {
+        return size;
+    }
+
+    <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Borrow a connection, opening a new one while below the pool size and
+     * waiting (at most the timeout) for one to be released otherwise.
+     */
+    Connection acquire() throws InterruptedException, SQLException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            reclaim();
+
+            Connection connection = idle.poll();
+            if (connection != null) return connection;
+
+            boolean reserved = false;
+            synchronized (this) {
+                if (created < size) {
+                    created++;
+                    reserved = true;
+                }
+            }
+            if (reserved) { // connecting outside the lock, releases don't wait on it
+                boolean connected = false;
+                try {
+                    connection = factory.newConnection();
+                    connected = true;
+                    return connection;
+                } finally {
+                    if (!connected) {
+                        synchronized (this) {
+                            created--;
+                        }
+                    }
+                }
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new SQLException("could not get a connection within " + timeout + "ms, all " + size +
+                        " are in use (by results not read yet?)");
+            }
+            connection = idle.poll(Math.min(remaining, RECLAIM_INTERVAL), TimeUnit.MILLISECONDS);
+            if (connection != null) return connection;
+        }
+    }
+
+    void release(Connection connection, boolean broken) {
+        if (!broken && !shutdown && idle.offer(connection)) return;
+
+        synchronized (this) {
+            created--;
+        }
+        RubyJdbcConnection.close(connection);
+    }
+
+    /**
+     * Broken when the :connection_alive_sql fails or, without one, when the
+     * driver reports the connection closed.
+     */
+    boolean isBroken(Connection connection) {
+        try {
+            if (aliveSQL == null) return connection.isClosed();
+
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute(aliveSQL);
+            } finally {
+                RubyJdbcConnection.close(statement);
+            }
+            return false;
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Keep track of a result left open for the owner's value, so it can be
+     * closed should the owner be collected without reading it.
+     */
+    void handedOver(QueryFuture owner, QueryFuture.PendingResult result) {
+        Reference<QueryFuture> reference = new WeakReference<QueryFuture>(owner, abandoned);
+        result.reference = reference;
+        unread.put(reference, result);
+    }
+
+    void done(QueryFuture.PendingResult result) {
+        if (result.reference != null) unread.remove(result.reference);
+    }
+
+    /** Close the results whose futures got collected unread. */
+    private void reclaim() {
+        Reference<?> reference;
+        while ((reference = abandoned.poll()) != null) {
+            QueryFuture.PendingResult result = unread.remove(reference);
+            if (result != null) result.close();
+        }
+    }
+
+    void shutdown() {
+        shutdown = true;
+        executor.shutdownNow();
+
+        for (QueryFuture.PendingResult result : unread.values()) result.close();
+        unread.clear();
+
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            RubyJdbcConnection.close(connection);
+        }
+    }
+}
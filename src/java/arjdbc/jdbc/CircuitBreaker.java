@@ -0,0 +1,130 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stops connection attempts to a database that keeps failing to connect.
+ * After <tt>failureThreshold</tt> consecutive failures the breaker opens and
+ * connecting fails right away for the <tt>coolDown</tt> period, then a single
+ * attempt is let through (half open): the breaker closes again when it
+ * succeeds and stays open for another period when it does not.
+ *
+ * Breakers are shared by all the connections to the same database (driver
+ * and URL or JNDI name) configured with the same :circuit_breaker options.
+ */
+final class CircuitBreaker {
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    final String scope;
+    private final int failureThreshold;
+    private final long coolDown; // millis
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private long failures, successes, rejections, trips;
+
+    static CircuitBreaker forScope(String scope, int failureThreshold, long coolDown) {
+        String key = scope + "|" + failureThreshold + "|" + coolDown;
+        CircuitBreaker breaker = BREAKERS.get(key);
+        if (breaker == null) {
+            synchronized (BREAKERS) {
+                breaker = BREAKERS.get(key);
+                if (breaker == null) BREAKERS.put(key, breaker = new CircuitBreaker(scope, failureThreshold, coolDown));
+            }
+        }
+        return breaker;
+    }
+
+    CircuitBreaker(String scope, int failureThreshold, long coolDown) {
+        this.scope = scope;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.coolDown = coolDown;
+    }
+
+    /**
+     * Whether a connection attempt may go ahead, the caller has to report
+     * how it went with {@link #succeeded()} or {@link #failed()}.
+     */
+    synchronized boolean allowAttempt() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (System.currentTimeMillis() - openedAt >= coolDown) {
+                state = State.HALF_OPEN; // this attempt is the trial
+                return true;
+            }
+            rejections++;
+            return false;
+        default:
+            rejections++;
+            return false;
+        }
+    }
+
+    /** Closes the breaker, as if the last attempt succeeded. */
+    synchronized void reset() {
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+
+    synchronized void succeeded() {
+        successes++;
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+
+    synchronized void failed() {
+        failures++;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (state != State.OPEN) trips++;
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /** Seconds until the next attempt gets let through, 0 when closed. */
+    synchronized long retryIn() {
+        if (state != State.OPEN) return 0;
+        return Math.max(0, (openedAt + coolDown - System.currentTimeMillis() + 999) / 1000);
+    }
+
+    /** failures, successes, rejections, trips and consecutive failures. */
+    synchronized long[] stats() {
+        return new long[] { failures, successes, rejections, trips, consecutiveFailures };
+    }
+}
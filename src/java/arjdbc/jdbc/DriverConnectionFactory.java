@@ -0,0 +1,72 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.jruby.Ruby;
+import org.jruby.exceptions.RaiseException;
+
+/**
+ * Connects through a resolved driver with a fixed URL and properties, so
+ * that (re)connecting does not call back into Ruby. The driver is used
+ * directly rather than through DriverManager, which does not see drivers
+ * that were loaded dynamically.
+ */
+public final class DriverConnectionFactory implements JdbcConnectionFactory {
+    private final Ruby runtime;
+    private final Driver driver;
+    private final String url;
+    private final Properties properties = new Properties();
+
+    public DriverConnectionFactory(Ruby runtime, Driver driver, String url, String user, String password) {
+        this.runtime = runtime;
+        this.driver = driver;
+        this.url = url;
+        properties.setProperty("user", user);
+        properties.setProperty("password", password);
+    }
+
+    public Connection newConnection() {
+        try {
+            return connect();
+        } catch (SQLException e) {
+            throw RaiseException.createNativeRaiseException(runtime, e);
+        }
+    }
+
+    /** Connects without going through Ruby at all, for threads of our own. */
+    Connection connect() throws SQLException {
+        Connection connection = driver.connect(url, properties);
+        if (connection == null) {
+            throw new SQLException(driver.getClass().getName() + " does not accept the URL " + url);
+        }
+        return connection;
+    }
+}
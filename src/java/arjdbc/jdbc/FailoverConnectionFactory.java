@@ -0,0 +1,224 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to the first healthy one of several hosts (each behind its own
+ * factory, so any driver or a JNDI data source will do), in the order they
+ * are preferred or by their connect latency. A host failing to connect is
+ * marked down and only tried when all the others fail as well; a background
+ * probe marks it up again once it accepts connections, after which
+ * connections on a less preferred host move back (see
+ * {@link #hasBetterHostThan(Connection)}). The probe runs while connections
+ * use the factory, from the first {@link #retain()} to the last
+ * {@link #release()}.
+ */
+public final class FailoverConnectionFactory implements JdbcConnectionFactory {
+    private static final double LATENCY_WEIGHT = 0.2; // of a new connect time in the moving average
+    private static ScheduledExecutorService prober;
+
+    private final JdbcConnectionFactory[] hosts;
+    private final String[] names;
+    private final boolean byLatency;
+    private final boolean[] down;
+    private final long[] latencies; // moving average of connect times (nanos)
+    private final long[] failures;
+    private final Map<Connection, Integer> connected = new WeakHashMap<Connection, Integer>();
+    private volatile int recoveries = 0;
+    private final long probeInterval; // millis
+    private ScheduledFuture<?> probe;
+    private int users = 0;
+
+    public FailoverConnectionFactory(JdbcConnectionFactory[] hosts, String[] names, boolean byLatency, long probeInterval) {
+        this.hosts = hosts;
+        this.names = names;
+        this.byLatency = byLatency;
+        this.down = new boolean[hosts.length];
+        this.latencies = new long[hosts.length];
+        this.failures = new long[hosts.length];
+        this.probeInterval = probeInterval;
+    }
+
+    /** A connection started using the factory, probing starts with the first one. */
+    public synchronized void retain() {
+        users++;
+        if (probe == null && probeInterval > 0) startProbe(probeInterval);
+    }
+
+    /** A connection got disconnected, the last one stops the probe. */
+    public synchronized void release() {
+        if (users > 0 && --users == 0) close();
+    }
+
+    public Connection newConnection() {
+        RuntimeException failure = null;
+        for (int host : candidates()) {
+            long start = System.nanoTime();
+            try {
+                Connection connection = hosts[host].newConnection();
+                connected(host, connection, System.nanoTime() - start);
+                return connection;
+            } catch (RuntimeException e) {
+                failed(host);
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /** The hosts to try in order: the ones up (the best first) and then those down. */
+    private synchronized int[] candidates() {
+        int[] order = new int[hosts.length];
+        int count = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < hosts.length; i++) {
+                if (down[i] != (pass == 1)) continue;
+                int at = count++;
+                // insertion by latency among the hosts up, keeping the order otherwise
+                while (byLatency && pass == 0 && at > 0 && latencies[order[at - 1]] > latencies[i]) {
+                    order[at] = order[at - 1];
+                    at--;
+                }
+                order[at] = i;
+            }
+        }
+        return order;
+    }
+
+    private synchronized void connected(int host, Connection connection, long nanos) {
+        if (down[host]) recovered(host);
+        latencies[host] = latencies[host] == 0 ? nanos :
+            (long) (latencies[host] * (1 - LATENCY_WEIGHT) + nanos * LATENCY_WEIGHT);
+        connected.put(connection, host);
+    }
+
+    private synchronized void failed(int host) {
+        down[host] = true;
+        failures[host]++;
+    }
+
+    private void recovered(int host) {
+        down[host] = false;
+        recoveries++;
+    }
+
+    /**
+     * Bumped whenever a host comes back up, connections only need to check
+     * {@link #hasBetterHostThan(Connection)} when it changed.
+     */
+    public int getRecoveries() {
+        return recoveries;
+    }
+
+    /** Whether a new connection would go to a better host than this one is on. */
+    public synchronized boolean hasBetterHostThan(Connection connection) {
+        Integer host = connected.get(connection);
+        if (host == null) return false;
+
+        int[] order = candidates();
+        return order[0] != host && !down[order[0]];
+    }
+
+    public String[] getHosts() {
+        return names.clone();
+    }
+
+    public synchronized boolean isDown(int host) {
+        return down[host];
+    }
+
+    /** Moving average of the time connecting to the host took, in micro seconds. */
+    public synchronized long getConnectLatency(int host) {
+        return latencies[host] / 1000;
+    }
+
+    public synchronized long getFailures(int host) {
+        return failures[host];
+    }
+
+    /** Tries to connect to the hosts that are down, marking those that work up again. */
+    public void probe() {
+        for (int host = 0; host < hosts.length; host++) {
+            if (!isDown(host)) continue;
+
+            long start = System.nanoTime();
+            Connection connection = null;
+            try {
+                // a driver's errors are not turned into Ruby ones, this runs off any Ruby thread
+                connection = hosts[host] instanceof DriverConnectionFactory ?
+                    ((DriverConnectionFactory) hosts[host]).connect() : hosts[host].newConnection();
+                long nanos = System.nanoTime() - start;
+                synchronized (this) {
+                    recovered(host);
+                    latencies[host] = nanos;
+                }
+            } catch (SQLException e) {
+                synchronized (this) { failures[host]++; }
+            } catch (RuntimeException e) {
+                synchronized (this) { failures[host]++; }
+            } finally {
+                RubyJdbcConnection.close(connection);
+            }
+        }
+    }
+
+    private void startProbe(long millis) {
+        synchronized (FailoverConnectionFactory.class) {
+            if (prober == null) {
+                prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "arjdbc-failover-probe");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            probe = prober.scheduleWithFixedDelay(new Runnable() {
+                public void run() { probe(); }
+            }, millis, millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Stops the background probe. */
+    public synchronized void close() {
+        if (probe != null) probe.cancel(false);
+        probe = null;
+    }
+
+    public synchronized boolean isProbing() {
+        return probe != null;
+    }
+}
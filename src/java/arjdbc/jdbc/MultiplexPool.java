@@ -0,0 +1,212 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Physical connections shared by all the connections to a database in
+ * :multiplex mode (with the same options), which only hold one of these while a statement runs or
+ * a transaction is open. At most <tt>size</tt> connections are out at once,
+ * a lease waits up to <tt>timeout</tt> for one to come back. The idle
+ * connection returned last is handed out first, keeping few of them busy.
+ *
+ * Every physical connection keeps its own statement cache. Statements
+ * setting up the session (see {@link #addSessionSQL(String)}) are run again
+ * on a physical connection that has not run them all yet as it gets leased.
+ */
+final class MultiplexPool {
+    private static final Map<String, MultiplexPool> POOLS = new ConcurrentHashMap<String, MultiplexPool>();
+
+    private final JdbcConnectionFactory factory;
+    private final int size;
+    private final long timeout; // millis
+    private final int statementCacheSize;
+    private final Semaphore permits;
+    static final String TIMEOUT_STATE = "HYT00";
+
+    private final LinkedList<Connection> idle = new LinkedList<Connection>(); // guarded by itself
+    private final Map<Connection, StatementCache> statements = new IdentityHashMap<Connection, StatementCache>();
+    private final Map<Connection, Integer> sessionApplied = new IdentityHashMap<Connection, Integer>(); // guarded by statements
+    private final List<String> session = new ArrayList<String>(); // guarded by itself
+    private int sessionVersion = 0;
+    private final AtomicLong leases = new AtomicLong(), waits = new AtomicLong(), timeouts = new AtomicLong();
+
+    static MultiplexPool forScope(String scope, JdbcConnectionFactory factory, int size, long timeout,
+            int statementCacheSize) {
+        String key = scope + "|" + size + "|" + timeout + "|" + statementCacheSize;
+        MultiplexPool pool = POOLS.get(key);
+        if (pool == null) {
+            synchronized (POOLS) {
+                pool = POOLS.get(key);
+                if (pool == null) {
+                    POOLS.put(key, pool = new MultiplexPool(factory, size, timeout, statementCacheSize));
+                }
+            }
+        }
+        return pool;
+    }
+
+    MultiplexPool(JdbcConnectionFactory factory, int size, long timeout, int statementCacheSize) {
+        this.factory = factory;
+        this.size = size;
+        this.timeout = timeout;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(size, true);
+    }
+
+    Connection lease() throws SQLException {
+        if (!permits.tryAcquire()) {
+            waits.incrementAndGet();
+            try {
+                if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                    timeouts.incrementAndGet();
+                    throw new SQLException("could not get a connection within " + timeout + "ms, all " + size + " in use",
+                            TIMEOUT_STATE);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted waiting for a connection", TIMEOUT_STATE);
+            }
+        }
+        leases.incrementAndGet();
+
+        Connection connection;
+        synchronized (idle) {
+            connection = idle.poll();
+        }
+        if (connection == null) {
+            try {
+                connection = factory.newConnection();
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+            synchronized (statements) {
+                statements.put(connection, new StatementCache(statementCacheSize));
+            }
+        }
+        try {
+            initSession(connection);
+        } catch (SQLException e) {
+            release(connection, false);
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Adds a statement setting up the session, run on the physical
+     * connections as they get leased next (the one it ran on included, they
+     * are meant to be harmless to run again). Running the same one again
+     * moves it to the end, the statements run in the order they were added.
+     */
+    void addSessionSQL(String sql) {
+        synchronized (session) {
+            if (!session.isEmpty() && session.get(session.size() - 1).equals(sql)) return;
+            session.remove(sql);
+            session.add(sql);
+            sessionVersion++;
+        }
+    }
+
+    private void initSession(Connection connection) throws SQLException {
+        List<String> sqls;
+        int version;
+        synchronized (session) {
+            version = sessionVersion;
+            if (version == 0) return;
+            sqls = new ArrayList<String>(session);
+        }
+        synchronized (statements) {
+            Integer applied = sessionApplied.get(connection);
+            if (applied != null && applied == version) return;
+        }
+
+        Statement statement = connection.createStatement();
+        try {
+            for (String sql : sqls) statement.execute(sql);
+        } finally {
+            RubyJdbcConnection.close(statement);
+        }
+        synchronized (statements) {
+            sessionApplied.put(connection, version);
+        }
+    }
+
+    /**
+     * Hands a leased connection back, to be leased again when <tt>reuse</tt>
+     * (it has to be in auto-commit mode) or to be closed otherwise.
+     */
+    void release(Connection connection, boolean reuse) {
+        try {
+            if (reuse) {
+                synchronized (idle) {
+                    idle.addFirst(connection);
+                }
+            } else {
+                StatementCache cache;
+                synchronized (statements) {
+                    cache = statements.remove(connection);
+                    sessionApplied.remove(connection);
+                }
+                if (cache != null) cache.clear();
+                RubyJdbcConnection.close(connection);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    StatementCache statementsOf(Connection connection) {
+        synchronized (statements) {
+            return statements.get(connection);
+        }
+    }
+
+    /** size, open, idle, leases, waits and timeouts. */
+    long[] stats() {
+        int open, idleCount;
+        synchronized (statements) {
+            open = statements.size();
+        }
+        synchronized (idle) {
+            idleCount = idle.size();
+        }
+        return new long[] { size, open, idleCount, leases.get(), waits.get(), timeouts.get() };
+    }
+}
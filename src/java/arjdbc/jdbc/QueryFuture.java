@@ -0,0 +1,259 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import java.lang.ref.Reference;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * JdbcConnection::QueryFuture, the pending result of an asynchronous
+ * statement (see JdbcConnection#execute_query_async).
+ */
+public class QueryFuture extends RubyObject {
+    private final RubyJdbcConnection connection;
+    private Future<Object> future;
+    private volatile Statement running;
+    private boolean cancelled = false;
+    private PendingResult pending;
+    private volatile IRubyObject value;
+    private volatile boolean finished = false; // set by the worker, before the future completes
+
+    QueryFuture(Ruby runtime, RubyClass metaClass, RubyJdbcConnection connection) {
+        super(runtime, metaClass);
+        this.connection = connection;
+    }
+
+    public static RubyClass createQueryFutureClass(Ruby runtime, RubyClass jdbcConnection) {
+        RubyClass queryFuture = jdbcConnection.defineClassUnder("QueryFuture",
+                runtime.getObject(), ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        queryFuture.defineAnnotatedMethods(QueryFuture.class);
+
+        return queryFuture;
+    }
+
+    void setFuture(Future<Object> future) {
+        this.future = future;
+    }
+
+    /** The statement being executed by the worker, so that it can be cancelled. */
+    void setRunning(Statement statement) {
+        this.running = statement;
+    }
+
+    void finished() {
+        this.finished = true;
+    }
+
+    /** Whether the worker is done with the statement (it might still be returning). */
+    boolean isFinished() {
+        return finished || future.isDone();
+    }
+
+    /**
+     * Hand over a result set to be unmarshalled by #value, released right
+     * away when the future got cancelled meanwhile.
+     */
+    synchronized void setPending(PendingResult result) {
+        if (cancelled) {
+            result.close();
+        } else {
+            pending = result;
+        }
+    }
+
+    private synchronized PendingResult takePending() {
+        PendingResult result = pending;
+        pending = null;
+        return result;
+    }
+
+    /**
+     * Block until the statement completed and return its result, raising
+     * the statement's error if it failed.
+     */
+    @JRubyMethod(name = "value")
+    public IRubyObject value(ThreadContext context) {
+        if (value != null) return value;
+
+        Object result;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RaiseException) throw (RaiseException) cause;
+            throw connection.wrap(context, cause);
+        } catch (CancellationException e) {
+            throw connection.wrap(context, new SQLException("query was cancelled"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw connection.wrap(context, e);
+        }
+
+        synchronized (this) {
+            if (value != null) return value;
+
+            if (result instanceof PendingResult) {
+                PendingResult resultSet = takePending();
+                if (resultSet == null) {
+                    throw connection.wrap(context, new SQLException("query was cancelled"));
+                }
+                try {
+                    result = resultSet.unmarshal(context, connection);
+                } catch (SQLException e) {
+                    throw connection.wrap(context, e);
+                }
+            }
+            return value = (IRubyObject) result;
+        }
+    }
+
+    /**
+     * The value, or the error raised while computing it.
+     */
+    IRubyObject outcome(ThreadContext context) {
+        try {
+            return value(context);
+        } catch (RaiseException e) {
+            return e.getException();
+        }
+    }
+
+    /**
+     * Wait for the statement to complete, at most timeout seconds when
+     * given. Returns whether it did complete.
+     */
+    @JRubyMethod(name = "wait", optional = 1)
+    public IRubyObject wait(ThreadContext context, IRubyObject[] args) {
+        Ruby runtime = context.getRuntime();
+        try {
+            if (args.length == 0 || args[0].isNil()) {
+                future.get();
+            } else {
+                long timeout = (long) (RubyNumeric.num2dbl(args[0]) * 1000);
+                future.get(timeout, TimeUnit.MILLISECONDS);
+            }
+        } catch (TimeoutException e) {
+            return runtime.getFalse();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return runtime.getFalse();
+        } catch (ExecutionException e) {
+            // failure is reported by #value
+        } catch (CancellationException e) {
+            // so is cancellation
+        }
+        return runtime.getTrue();
+    }
+
+    @JRubyMethod(name = "done?")
+    public IRubyObject done_p(ThreadContext context) {
+        return context.getRuntime().newBoolean(future.isDone());
+    }
+
+    /**
+     * Cancel the statement, aborting it on the database when it is already
+     * running. Returns false if it had completed already.
+     */
+    @JRubyMethod(name = "cancel")
+    public IRubyObject cancel(ThreadContext context) {
+        synchronized (this) {
+            if (value != null) return context.getRuntime().getFalse();
+            cancelled = true;
+        }
+
+        Statement statement = running;
+        boolean result = future.cancel(false);
+        if (result && statement != null) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                // the worker sees the failure and cleans up
+            }
+        }
+
+        PendingResult unread = takePending();
+        if (unread != null) unread.close();
+        return context.getRuntime().newBoolean(result);
+    }
+
+    /**
+     * A result set left open on its pooled connection so that it is turned
+     * into Ruby objects by the thread asking for the value.
+     */
+    static final class PendingResult {
+        private final AsyncExecutor executor;
+        private final Connection connection;
+        private final Statement statement;
+        private final ResultSet resultSet;
+        Reference<?> reference; // to the owning future, see AsyncExecutor#handedOver
+
+        PendingResult(AsyncExecutor executor, Connection connection, Statement statement, ResultSet resultSet) {
+            this.executor = executor;
+            this.connection = connection;
+            this.statement = statement;
+            this.resultSet = resultSet;
+        }
+
+        IRubyObject unmarshal(ThreadContext context, RubyJdbcConnection conn) throws SQLException {
+            boolean broken = false;
+            try {
+                return conn.unmarshalResult(context, connection.getMetaData(), resultSet, false);
+            } catch (SQLException e) {
+                broken = executor.isBroken(connection);
+                throw e;
+            } finally {
+                executor.done(this);
+                RubyJdbcConnection.close(statement);
+                executor.release(connection, broken);
+            }
+        }
+
+        void close() {
+            executor.done(this);
+            RubyJdbcConnection.close(resultSet);
+            RubyJdbcConnection.close(statement);
+            executor.release(connection, false);
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.RubyString;
+import org.jruby.RubySymbol;
+import org.jruby.RubyTime;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * ArJdbc::QuotingService, the per dialect quoting rules (string escapes,
+ * boolean literals, date formats and binary encoding) used to turn values
+ * into SQL literals without going through Ruby for the common cases.
+ *
+ * <tt>quote</tt> only handles values of the core classes it knows about
+ * (exact class, so subclasses and objects with singleton methods are left
+ * alone) and returns nil for anything else, in which case the adapter falls
+ * back to the regular ActiveRecord quoting. Times are among those: they
+ * are quoted through the adapter's quoted_date, which adapters may override
+ * (and implement with the quoted_date here).
+ */
+public class QuotingService extends RubyObject {
+    /** Replacement bytes indexed by (unsigned) byte value, null when unchanged. */
+    public static final byte[][] STANDARD_ESCAPES = new byte[256][];
+    public static final byte[][] BACKSLASH_ESCAPES = new byte[256][];
+    public static final byte[][] MYSQL_ESCAPES = new byte[256][];
+    static {
+        STANDARD_ESCAPES['\''] = new byte[] {'\'', '\''};
+
+        BACKSLASH_ESCAPES['\''] = new byte[] {'\'', '\''};
+        BACKSLASH_ESCAPES['\\'] = new byte[] {'\\', '\\'};
+
+        MYSQL_ESCAPES[0] = new byte[] {'\\', '0'};
+        MYSQL_ESCAPES['\n'] = new byte[] {'\\', 'n'};
+        MYSQL_ESCAPES['\r'] = new byte[] {'\\', 'r'};
+        MYSQL_ESCAPES[26] = new byte[] {'\\', 'Z'};
+        MYSQL_ESCAPES['"'] = new byte[] {'\\', '"'};
+        MYSQL_ESCAPES['\''] = new byte[] {'\\', '\''};
+        MYSQL_ESCAPES['\\'] = new byte[] {'\\', '\\'};
+    }
+
+    private static final int BINARY_HEX = 0;
+    private static final int BINARY_BYTEA = 1;
+
+    private static final ByteList NULL = new ByteList(new byte[] {'N', 'U', 'L', 'L'}, false);
+    private static final ByteList ONE = new ByteList(new byte[] {'1'}, false);
+    private static final ByteList ZERO = new ByteList(new byte[] {'0'}, false);
+    private static final byte[] HEX = {'0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f'};
+
+    private byte[][] escapes = BACKSLASH_ESCAPES;
+    private ByteList quotedTrue = new ByteList(new byte[] {'\'', 't', '\''}, false);
+    private ByteList quotedFalse = new ByteList(new byte[] {'\'', 'f', '\''}, false);
+    private int binary = BINARY_HEX;
+    private boolean usec = false;
+    private boolean zoneConversion = true;
+
+    private RubySymbol binarySymbol, integerSymbol, floatSymbol, utcSymbol;
+    private RubyClass bigDecimalClass;
+    private RubyModule multibyteChars;
+    private IRubyObject activeRecordBase;
+
+    protected QuotingService(Ruby runtime, RubyClass metaClass) {
+        super(runtime, metaClass);
+        binarySymbol = runtime.newSymbol("binary");
+        integerSymbol = runtime.newSymbol("integer");
+        floatSymbol = runtime.newSymbol("float");
+        utcSymbol = runtime.newSymbol("utc");
+    }
+
+    public static RubyClass createQuotingServiceClass(Ruby runtime, RubyModule arJdbc) {
+        RubyClass quotingService = arJdbc.defineClassUnder("QuotingService",
+                runtime.getObject(), QUOTING_SERVICE_ALLOCATOR);
+        quotingService.defineAnnotatedMethods(QuotingService.class);
+
+        return quotingService;
+    }
+
+    private static ObjectAllocator QUOTING_SERVICE_ALLOCATOR = new ObjectAllocator() {
+        public IRubyObject allocate(Ruby runtime, RubyClass klass) {
+            return new QuotingService(runtime, klass);
+        }
+    };
+
+    /*
+     * options = {}
+     *
+     * :escape       => :standard (' doubled), :backslash (' and \ doubled,
+     *                  the ActiveRecord default) or :mysql (C style escapes)
+     * :quoted_true  => literal for true, "'t'" by default
+     * :quoted_false => literal for false, "'f'" by default
+     * :binary       => :hex or :bytea (PostgreSQL octal escapes)
+     * :usec         => append microseconds to quoted times
+     */
+    @JRubyMethod(name = "initialize", optional = 1)
+    public IRubyObject initialize(ThreadContext context, IRubyObject[] args) {
+        Ruby runtime = context.getRuntime();
+        if (args.length > 0 && args[0] instanceof RubyHash) {
+            RubyHash options = (RubyHash) args[0];
+
+            IRubyObject escape = option(runtime, options, "escape");
+            if (escape != null) {
+                String style = escape.toString();
+                if (style.equals("standard")) escapes = STANDARD_ESCAPES;
+                else if (style.equals("mysql")) escapes = MYSQL_ESCAPES;
+                else if (style.equals("backslash")) escapes = BACKSLASH_ESCAPES;
+                else throw runtime.newArgumentError("unknown escape style: " + style);
+            }
+
+            IRubyObject value = option(runtime, options, "quoted_true");
+            if (value != null) quotedTrue = new ByteList(value.convertToString().getByteList());
+            value = option(runtime, options, "quoted_false");
+            if (value != null) quotedFalse = new ByteList(value.convertToString().getByteList());
+
+            value = option(runtime, options, "binary");
+            if (value != null) binary = value.toString().equals("bytea") ? BINARY_BYTEA : BINARY_HEX;
+
+            value = option(runtime, options, "usec");
+            if (value != null) usec = value.isTrue();
+        }
+
+        // ActiveRecord 2.x quotes times in their own zone
+        RubyModule activeRecord = runtime.getModule("ActiveRecord");
+        if (activeRecord != null && activeRecord.getConstantAt("VERSION") != null) {
+            IRubyObject major = ((RubyModule) activeRecord.getConstantAt("VERSION")).getConstantAt("MAJOR");
+            zoneConversion = major == null || RubyNumeric.fix2int(major) >= 3;
+        }
+
+        return this;
+    }
+
+    private static IRubyObject option(Ruby runtime, RubyHash options, String key) {
+        IRubyObject value = options.fastARef(runtime.newSymbol(key));
+        return value == null || value.isNil() ? null : value;
+    }
+
+    /**
+     * Quote +value+ for +column+ or return nil when it is not one of the
+     * values handled here.
+     */
+    @JRubyMethod(name = "quote", required = 1, optional = 1)
+    public IRubyObject quote(ThreadContext context, IRubyObject[] args) {
+        IRubyObject result = quote(context, args[0], args.length > 1 ? args[1] : context.getRuntime().getNil());
+
+        return result == null ? context.getRuntime().getNil() : result;
+    }
+
+    /**
+     * Java entry point for quoting, returns null for values the caller has
+     * to quote by other means.
+     */
+    public IRubyObject quote(ThreadContext context, IRubyObject value, IRubyObject column) {
+        Ruby runtime = context.getRuntime();
+        RubyClass klass = value.getMetaClass();
+
+        if (klass == runtime.getString()) {
+            if (!column.isNil()) {
+                IRubyObject type = column.callMethod(context, "type");
+                if (type == binarySymbol || type == integerSymbol || type == floatSymbol) return null;
+            }
+            return quoteWithSurround(runtime, '\'', (RubyString) value, '\'', escapes);
+        } else if (klass == runtime.getNilClass()) {
+            return RubyString.newStringShared(runtime, NULL);
+        } else if (klass == runtime.getTrueClass() || klass == runtime.getFalseClass()) {
+            boolean isTrue = value.isTrue();
+            if (!column.isNil() && column.callMethod(context, "type") == integerSymbol) {
+                return RubyString.newStringShared(runtime, isTrue ? ONE : ZERO);
+            }
+            return RubyString.newStringShared(runtime, isTrue ? quotedTrue : quotedFalse);
+        } else if (klass == runtime.getFixnum() || klass == runtime.getBignum() || klass == runtime.getFloat()) {
+            return RubyString.objAsString(context, value);
+        } else if (klass == bigDecimalClass(runtime)) {
+            return value.callMethod(context, "to_s", runtime.newString("F"));
+        }
+
+        return null;
+    }
+
+    @JRubyMethod(name = "quote_string", required = 1)
+    public IRubyObject quote_string(ThreadContext context, IRubyObject string) {
+        return quoteString(context.getRuntime(), string.convertToString(), escapes);
+    }
+
+    /**
+     * Format a Time the way ActiveRecord's quoted_date does (converted to
+     * the default timezone), returns nil for other date-like values.
+     */
+    @JRubyMethod(name = "quoted_date", required = 1)
+    public IRubyObject quoted_date(ThreadContext context, IRubyObject value) {
+        Ruby runtime = context.getRuntime();
+        if (value.getMetaClass() != runtime.getTime()) return runtime.getNil();
+
+        RubyString quoted = runtime.newString(new ByteList(26));
+        appendTime(context, quoted.getByteList(), (RubyTime) value);
+        return quoted;
+    }
+
+    @JRubyMethod(name = "escape_binary", required = 1)
+    public IRubyObject escape_binary(ThreadContext context, IRubyObject string) {
+        if (string.isNil()) return string;
+
+        ByteList input = string.convertToString().getByteList();
+        byte[] bytes = input.getUnsafeBytes();
+        int begin = input.getBegin();
+        int end = begin + input.getRealSize();
+        byte[] output;
+        int o = 0;
+
+        if (binary == BINARY_BYTEA) { // \\ooo per byte
+            output = new byte[input.getRealSize() * 5];
+            for (int i = begin; i < end; i++) {
+                int b = bytes[i] & 0xff;
+                output[o++] = '\\';
+                output[o++] = '\\';
+                output[o++] = (byte) ('0' + (b >> 6));
+                output[o++] = (byte) ('0' + ((b >> 3) & 7));
+                output[o++] = (byte) ('0' + (b & 7));
+            }
+        } else {
+            output = new byte[input.getRealSize() * 2];
+            for (int i = begin; i < end; i++) {
+                int b = bytes[i] & 0xff;
+                output[o++] = HEX[b >> 4];
+                output[o++] = HEX[b & 0x0f];
+            }
+        }
+
+        return context.getRuntime().newString(new ByteList(output, false));
+    }
+
+    @JRubyMethod(name = "quoted_true")
+    public IRubyObject quoted_true(ThreadContext context) {
+        return RubyString.newStringShared(context.getRuntime(), quotedTrue);
+    }
+
+    @JRubyMethod(name = "quoted_false")
+    public IRubyObject quoted_false(ThreadContext context) {
+        return RubyString.newStringShared(context.getRuntime(), quotedFalse);
+    }
+
+    /**
+     * ActiveSupport::Multibyte::Chars, resolved on first use.
+     */
+    public RubyModule multibyteChars(Ruby runtime) {
+        if (multibyteChars == null) {
+            RubyModule activeSupport = runtime.getModule("ActiveSupport");
+            IRubyObject multibyte = activeSupport == null ? null : activeSupport.getConstantAt("Multibyte");
+            IRubyObject chars = multibyte instanceof RubyModule ? ((RubyModule) multibyte).getConstantAt("Chars") : null;
+            multibyteChars = chars instanceof RubyModule ? (RubyModule) chars : runtime.getString();
+        }
+        return multibyteChars;
+    }
+
+    private RubyClass bigDecimalClass(Ruby runtime) {
+        if (bigDecimalClass == null) bigDecimalClass = runtime.getClass("BigDecimal");
+        return bigDecimalClass;
+    }
+
+    private void appendTime(ThreadContext context, ByteList out, RubyTime time) {
+        DateTime dt = time.getDateTime();
+        if (zoneConversion) {
+            Ruby runtime = context.getRuntime();
+            if (activeRecordBase == null) {
+                activeRecordBase = runtime.getModule("ActiveRecord").getConstant("Base");
+            }
+            boolean utc = activeRecordBase.callMethod(context, "default_timezone") == utcSymbol;
+            dt = dt.withZone(utc ? DateTimeZone.UTC : RubyTime.getLocalTimeZone(runtime));
+        }
+
+        appendDigits(out, dt.getYear(), 4);
+        out.append('-');
+        appendDigits(out, dt.getMonthOfYear(), 2);
+        out.append('-');
+        appendDigits(out, dt.getDayOfMonth(), 2);
+        out.append(' ');
+        appendDigits(out, dt.getHourOfDay(), 2);
+        out.append(':');
+        appendDigits(out, dt.getMinuteOfHour(), 2);
+        out.append(':');
+        appendDigits(out, dt.getSecondOfMinute(), 2);
+        if (usec) {
+            out.append('.');
+            appendDigits(out, dt.getMillisOfSecond() * 1000 + (int) time.getUSec(), 6);
+        }
+    }
+
+    private static void appendDigits(ByteList out, int value, int width) {
+        if (value < 0) {
+            out.append('-');
+            value = -value;
+        }
+        String digits = Integer.toString(value);
+        for (int i = digits.length(); i < width; i++) out.append('0');
+        for (int i = 0; i < digits.length(); i++) out.append(digits.charAt(i));
+    }
+
+    /**
+     * Escape +string+ using the given table. A first pass counts the extra
+     * bytes needed, returning the original string when there is nothing to
+     * escape, so the second pass can write into an exactly sized buffer.
+     */
+    public static IRubyObject quoteString(Ruby runtime, RubyString string, byte[][] escapes) {
+        ByteList bytes = string.getByteList();
+        int extra = escapedLength(bytes, escapes);
+
+        if (extra == 0) return string;
+
+        byte[] output = new byte[bytes.getRealSize() + extra];
+        int o = escape(bytes, escapes, output, 0);
+        return runtime.newString(new ByteList(output, 0, o, bytes.getEncoding(), false));
+    }
+
+    /**
+     * Escape +string+ between the +before+ and +after+ quote characters in
+     * one pre-sized buffer.
+     */
+    public static RubyString quoteWithSurround(Ruby runtime, char before, RubyString string, char after, byte[][] escapes) {
+        ByteList bytes = string.getByteList();
+        byte[] output = new byte[bytes.getRealSize() + escapedLength(bytes, escapes) + 2];
+
+        output[0] = (byte) before;
+        int o = escape(bytes, escapes, output, 1);
+        output[o++] = (byte) after;
+        return runtime.newString(new ByteList(output, 0, o, bytes.getEncoding(), false));
+    }
+
+    private static int escapedLength(ByteList bytes, byte[][] escapes) {
+        byte[] input = bytes.getUnsafeBytes();
+        int extra = 0;
+        for (int i = bytes.getBegin(), end = bytes.getBegin() + bytes.getRealSize(); i < end; i++) {
+            byte[] rep = escapes[input[i] & 0xff];
+            if (rep != null) extra += rep.length - 1;
+        }
+        return extra;
+    }
+
+    private static int escape(ByteList bytes, byte[][] escapes, byte[] output, int o) {
+        byte[] input = bytes.getUnsafeBytes();
+        for (int i = bytes.getBegin(), end = bytes.getBegin() + bytes.getRealSize(); i < end; i++) {
+            byte b = input[i];
+            byte[] rep = escapes[b & 0xff];
+            if (rep == null) {
+                output[o++] = b;
+            } else {
+                for (int j = 0; j < rep.length; j++) output[o++] = rep[j];
+            }
+        }
+        return o;
+    }
+}
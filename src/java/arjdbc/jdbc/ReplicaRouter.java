@@ -0,0 +1,116 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Picks the replica connection reads are sent to. Connections to replicas
+ * are opened on first use; a replica that fails is skipped for a while.
+ * After a write all reads stay on the primary for the sticky window, so
+ * that a client sees its own writes despite replication lag.
+ */
+final class ReplicaRouter {
+    private static final long DOWN_MILLIS = 5000;
+
+    private final JdbcConnectionFactory[] factories;
+    private final Connection[] connections;
+    private final long[] latencies; // moving average of read times (nanos)
+    private final long[] downUntil;
+    private final boolean byLatency;
+    private final long stickyMillis;
+    private int next = 0;
+    private long stickyUntil = 0;
+
+    ReplicaRouter(JdbcConnectionFactory[] factories, boolean byLatency, long stickyMillis) {
+        this.factories = factories;
+        this.connections = new Connection[factories.length];
+        this.latencies = new long[factories.length];
+        this.downUntil = new long[factories.length];
+        this.byLatency = byLatency;
+        this.stickyMillis = stickyMillis;
+    }
+
+    /** Returns the index of the replica to read from, -1 when none is available. */
+    int choose() {
+        long now = System.currentTimeMillis();
+        int chosen = -1;
+
+        for (int i = 0; i < factories.length; i++) {
+            int candidate = byLatency ? i : (next + i) % factories.length;
+            if (downUntil[candidate] > now) continue;
+
+            if (!byLatency) {
+                next = candidate + 1;
+                return candidate;
+            }
+            if (chosen == -1 || latencies[candidate] < latencies[chosen]) chosen = candidate;
+        }
+        return chosen;
+    }
+
+    Connection connection(int replica) throws SQLException {
+        Connection connection = connections[replica];
+        if (connection == null) {
+            connection = factories[replica].newConnection();
+            try {
+                connection.setReadOnly(true);
+            } catch (SQLException e) {
+                // only a hint
+            }
+            connections[replica] = connection;
+        }
+        return connection;
+    }
+
+    void succeeded(int replica, long nanos) {
+        long average = latencies[replica];
+        latencies[replica] = average == 0 ? nanos : (average * 7 + nanos) / 8;
+    }
+
+    void failed(int replica) {
+        RubyJdbcConnection.close(connections[replica]);
+        connections[replica] = null;
+        latencies[replica] = 0;
+        downUntil[replica] = System.currentTimeMillis() + DOWN_MILLIS;
+    }
+
+    void wrote() {
+        if (stickyMillis > 0) stickyUntil = System.currentTimeMillis() + stickyMillis;
+    }
+
+    boolean isSticky() {
+        return stickyUntil != 0 && System.currentTimeMillis() < stickyUntil;
+    }
+
+    void close() {
+        for (int i = 0; i < connections.length; i++) {
+            RubyJdbcConnection.close(connections[i]);
+            connections[i] = null;
+        }
+    }
+}
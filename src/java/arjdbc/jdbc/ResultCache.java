@@ -0,0 +1,545 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyHash;
+import org.jruby.RubyString;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * JVM wide cache of query results, shared by every connection that enables
+ * it with the :result_cache config. Entries are tagged with the tables the
+ * query reads from and dropped whenever a statement writes to one of them
+ * (through any connection to the same database as the same user and
+ * schema, the scope). Least recently used entries are evicted beyond the
+ * entry or (estimated) byte limits.
+ *
+ * Every table has a version bumped on writes. Entries remember the
+ * versions they were read at and are only served while those are still
+ * current, so lookups need no lock and a slow query can not put back
+ * stale rows. Queries calling functions whose result changes from one
+ * call to the next (now(), random(), current_user ...) are not cached.
+ */
+public final class ResultCache {
+    private static final ResultCache INSTANCE = new ResultCache();
+
+    private static final String ALL_TABLES = "*";
+
+    public static ResultCache getInstance() {
+        return INSTANCE;
+    }
+
+    static final class Key {
+        final Ruby runtime;
+        final String scope;
+        final String sql;
+        final int maxRows;
+
+        Key(Ruby runtime, String scope, String sql, int maxRows) {
+            this.runtime = runtime;
+            this.scope = scope;
+            this.sql = sql;
+            this.maxRows = maxRows;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key key = (Key) other;
+            return runtime == key.runtime && maxRows == key.maxRows && scope.equals(key.scope) && sql.equals(key.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return (scope.hashCode() * 31 + sql.hashCode()) * 31 + maxRows;
+        }
+    }
+
+    private static final class Entry {
+        final RubyArray result;
+        final String[] tables;
+        final long[] versions; // of the scope and the tables, when read
+        final long bytes;
+        volatile long lastUsed;
+
+        Entry(RubyArray result, String[] tables, long[] versions, long bytes, long lastUsed) {
+            this.result = result;
+            this.tables = tables;
+            this.versions = versions;
+            this.bytes = bytes;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+    private final Map<String, Map<String, AtomicLong>> versions = new ConcurrentHashMap<String, Map<String, AtomicLong>>();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+        evictions = new AtomicLong(), invalidations = new AtomicLong();
+    private volatile int maxEntries = 1000;
+    private volatile long maxBytes = 16 * 1024 * 1024;
+
+    private ResultCache() {}
+
+    public void configure(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    RubyArray get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null && !isCurrent(key.scope, entry)) {
+            remove(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        entry.lastUsed = clock.incrementAndGet();
+        hits.incrementAndGet();
+        return entry.result;
+    }
+
+    /** Current versions of the tables (and the scope), to be passed to #put. */
+    long[] versions(String scope, String[] tables) {
+        Map<String, AtomicLong> scoped = versionsOf(scope);
+        long[] snapshot = new long[tables.length + 1];
+        snapshot[0] = version(scoped, ALL_TABLES);
+        for (int i = 0; i < tables.length; i++) snapshot[i + 1] = version(scoped, tables[i]);
+        return snapshot;
+    }
+
+    void put(Key key, RubyArray result, String[] tables, long[] snapshot) {
+        if (!Arrays.equals(snapshot, versions(key.scope, tables))) return;
+
+        long size = estimateBytes(result);
+        if (size > maxBytes) return;
+
+        Entry previous = entries.put(key, new Entry(result, tables, snapshot, size, clock.incrementAndGet()));
+        if (previous != null) bytes.addAndGet(-previous.bytes);
+        bytes.addAndGet(size);
+        if (entries.size() > maxEntries || bytes.get() > maxBytes) evict();
+    }
+
+    /**
+     * Drop the entries reading from the given tables, all entries of the
+     * scope when tables is null.
+     */
+    public void invalidate(String scope, String[] tables) {
+        Map<String, AtomicLong> scoped = versionsOf(scope);
+        Set<String> written = null;
+        if (tables == null) {
+            bump(scoped, ALL_TABLES);
+        } else {
+            written = new HashSet<String>();
+            for (String table : tables) {
+                bump(scoped, table);
+                written.add(table);
+            }
+        }
+
+        // entries are stale by now anyway, removing them frees the memory
+        for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+            if (!entry.getKey().scope.equals(scope)) continue;
+            if (written == null || readsAny(entry.getValue().tables, written)) {
+                if (remove(entry.getKey(), entry.getValue())) invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public void clear() {
+        for (Map.Entry<Key, Entry> entry : entries.entrySet()) remove(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * [hits, misses, entries, bytes, evictions, invalidations]
+     */
+    public long[] stats() {
+        return new long[] { hits.get(), misses.get(), entries.size(), bytes.get(), evictions.get(), invalidations.get() };
+    }
+
+    private boolean isCurrent(String scope, Entry entry) {
+        Map<String, AtomicLong> scoped = versionsOf(scope);
+        if (entry.versions[0] != version(scoped, ALL_TABLES)) return false;
+        for (int i = 0; i < entry.tables.length; i++) {
+            if (entry.versions[i + 1] != version(scoped, entry.tables[i])) return false;
+        }
+        return true;
+    }
+
+    private boolean remove(Key key, Entry entry) {
+        if (!entries.remove(key, entry)) return false;
+        bytes.addAndGet(-entry.bytes);
+        return true;
+    }
+
+    private static boolean readsAny(String[] tables, Set<String> written) {
+        for (String table : tables) {
+            if (written.contains(table)) return true;
+        }
+        return false;
+    }
+
+    private Map<String, AtomicLong> versionsOf(String scope) {
+        Map<String, AtomicLong> scoped = versions.get(scope);
+        if (scoped == null) {
+            synchronized (versions) {
+                scoped = versions.get(scope);
+                if (scoped == null) versions.put(scope, scoped = new ConcurrentHashMap<String, AtomicLong>());
+            }
+        }
+        return scoped;
+    }
+
+    private static long version(Map<String, AtomicLong> scoped, String table) {
+        AtomicLong version = scoped.get(table);
+        return version == null ? 0 : version.get();
+    }
+
+    private static void bump(Map<String, AtomicLong> scoped, String table) {
+        AtomicLong version = scoped.get(table);
+        if (version == null) {
+            synchronized (scoped) {
+                version = scoped.get(table);
+                if (version == null) scoped.put(table, version = new AtomicLong());
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Drops the least recently used entries, down to 90% of the limits so
+     * that this does not run for every put once the cache is full.
+     */
+    private synchronized void evict() {
+        int entryLimit = maxEntries;
+        long byteLimit = maxBytes;
+        if (entries.size() <= entryLimit && bytes.get() <= byteLimit) return;
+
+        List<Map.Entry<Key, Entry>> all = new ArrayList<Map.Entry<Key, Entry>>(entries.entrySet());
+        Collections.sort(all, new Comparator<Map.Entry<Key, Entry>>() {
+            public int compare(Map.Entry<Key, Entry> a, Map.Entry<Key, Entry> b) {
+                long x = a.getValue().lastUsed, y = b.getValue().lastUsed;
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+
+        int keepEntries = entryLimit - entryLimit / 10;
+        long keepBytes = byteLimit - byteLimit / 10;
+        for (Map.Entry<Key, Entry> eldest : all) {
+            if (entries.size() <= keepEntries && bytes.get() <= keepBytes) break;
+            if (remove(eldest.getKey(), eldest.getValue())) evictions.incrementAndGet();
+        }
+    }
+
+    private static long estimateBytes(RubyArray result) {
+        long size = 64;
+        for (int i = 0; i < result.getLength(); i++) {
+            IRubyObject row = result.eltInternal(i);
+            size += 64;
+            if (row instanceof RubyHash) {
+                for (Object value : ((RubyHash) row).directValues()) {
+                    size += value instanceof RubyString ? 40 + ((RubyString) value).getByteList().getRealSize() : 24;
+                }
+            }
+        }
+        return size;
+    }
+
+    /** Whether the result is an array of row hashes, the only results cached. */
+    static boolean isRows(IRubyObject result) {
+        if (!(result instanceof RubyArray)) return false;
+        RubyArray rows = (RubyArray) result;
+        for (int i = 0; i < rows.getLength(); i++) {
+            if (!(rows.eltInternal(i) instanceof RubyHash)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * A copy of a cached result the caller is free to modify: rows are new
+     * hashes and string values new strings (sharing their bytes until
+     * written to).
+     */
+    static RubyArray copy(Ruby runtime, RubyArray result) {
+        int length = result.getLength();
+        IRubyObject[] rows = new IRubyObject[length];
+        for (int i = 0; i < length; i++) {
+            IRubyObject row = result.eltInternal(i);
+            if (row instanceof RubyHash) {
+                RubyHash source = (RubyHash) row;
+                RubyHash copy = RubyHash.newHash(runtime);
+                for (Object entry : source.directEntrySet()) {
+                    IRubyObject value = (IRubyObject) ((Map.Entry<?, ?>) entry).getValue();
+                    if (value instanceof RubyString) value = ((RubyString) value).strDup(runtime);
+                    copy.fastASet((IRubyObject) ((Map.Entry<?, ?>) entry).getKey(), value);
+                }
+                rows[i] = copy;
+            } else {
+                rows[i] = row;
+            }
+        }
+        return runtime.newArrayNoCopy(rows);
+    }
+
+    private static final int ANALYSIS_LIMIT = 2048;
+    private static final String[] NOT_CACHEABLE = new String[0];
+    private static final Map<String, String[]> CACHEABLE = new ConcurrentHashMap<String, String[]>();
+    private static final Map<String, String[]> BACKSLASH_CACHEABLE = new ConcurrentHashMap<String, String[]>();
+
+    /**
+     * The tables a cacheable query reads from, an empty array when the
+     * query reads no table or calls a volatile function. Remembered per
+     * statement text (and whether backslashes escape in quoted strings).
+     */
+    static String[] cacheableTables(String sql, boolean backslashEscapes) {
+        Map<String, String[]> cacheable = backslashEscapes ? BACKSLASH_CACHEABLE : CACHEABLE;
+        String[] tables = cacheable.get(sql);
+        if (tables != null) return tables;
+
+        List<String> tokens = tokenize(sql, backslashEscapes);
+        tables = NOT_CACHEABLE;
+        if (!callsVolatile(tokens)) {
+            tables = readTables(tokens);
+            if (tables.length == 0) tables = NOT_CACHEABLE;
+        }
+
+        if (cacheable.size() >= ANALYSIS_LIMIT) cacheable.clear();
+        cacheable.put(sql, tables);
+        return tables;
+    }
+
+    /** Functions (and niladic keywords) returning something else on every call or session. */
+    private static final Set<String> VOLATILE = new HashSet<String>(Arrays.asList(
+        "now", "current_timestamp", "current_date", "current_time", "localtime", "localtimestamp",
+        "clock_timestamp", "statement_timestamp", "transaction_timestamp", "timeofday", "sysdate",
+        "systimestamp", "getdate", "getutcdate", "sysdatetime", "curdate", "curtime", "utc_timestamp",
+        "utc_date", "utc_time", "unix_timestamp", "random", "rand", "newid", "uuid", "gen_random_uuid",
+        "uuid_generate_v4", "sys_guid", "random_uuid", "current_user", "session_user", "user",
+        "system_user", "current_role", "current_schema", "current_schemas", "connection_id",
+        "last_insert_id", "lastval", "currval", "nextval", "identity", "scope_identity", "pg_backend_pid"));
+
+    private static boolean callsVolatile(List<String> tokens) {
+        for (String token : tokens) {
+            if (VOLATILE.contains(token)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether the statement changes the schemas (or database) unqualified
+     * names resolve to for the rest of the session: SET search_path,
+     * SET SCHEMA, USE and the like.
+     */
+    static boolean changesSchema(String sql, boolean backslashEscapes) {
+        List<String> tokens = tokenize(sql, backslashEscapes);
+        if (tokens.isEmpty()) return false;
+
+        String verb = tokens.get(0);
+        if (verb.equals("use")) return true;
+        if (!verb.equals("set") && !verb.equals("alter")) return false;
+        for (int i = 1; i < tokens.size() && i < 4; i++) {
+            String token = tokens.get(i);
+            if (token.equals("search_path") || token.equals("schema") || token.equals("current_schema")) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The tables a query reads from: names following FROM and JOIN (and
+     * the comma separated ones after FROM), lower cased without schema or
+     * quotes. Returns an empty array when none are found.
+     */
+    private static String[] readTables(List<String> tokens) {
+        List<String> tables = new ArrayList<String>();
+
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            if (!token.equals("from") && !token.equals("join")) continue;
+
+            int j = i + 1;
+            while (j < tokens.size() && isIdentifier(tokens.get(j))) {
+                j = tableName(tokens, j, tables);
+                if (j < tokens.size() && tokens.get(j).equals("as")) j++;
+                if (j < tokens.size() && isIdentifier(tokens.get(j)) && !CLAUSES.contains(tokens.get(j))) j++;
+                if (token.equals("from") && j < tokens.size() && tokens.get(j).equals(",")) {
+                    j++;
+                } else {
+                    break;
+                }
+            }
+        }
+        return tables.toArray(new String[tables.size()]);
+    }
+
+    /**
+     * The tables a statement writes to, null when that can not be told
+     * (DDL, procedure calls, anything unusual) meaning it might write to
+     * any table.
+     */
+    static String[] writtenTables(String sql, boolean backslashEscapes) {
+        List<String> tokens = tokenize(sql, backslashEscapes);
+        List<String> tables = new ArrayList<String>();
+        if (tokens.isEmpty()) return null;
+
+        String verb = tokens.get(0);
+        int i = 1;
+        if (verb.equals("insert") || verb.equals("replace")) {
+            while (i < tokens.size() && !tokens.get(i).equals("into")) i++;
+            if (i + 1 >= tokens.size() || !isIdentifier(tokens.get(i + 1))) return null;
+            targetName(tokens, i + 1, tables);
+        } else if (verb.equals("update")) {
+            while (i < tokens.size() && MODIFIERS.contains(tokens.get(i))) i++;
+            if (i >= tokens.size()) return null;
+            tableName(tokens, i, tables);
+            for (String joined : readTables(tokens)) tables.add(joined);
+        } else if (verb.equals("delete")) {
+            for (String from : readTables(tokens)) tables.add(from);
+        } else if (verb.equals("copy")) { // COPY table FROM ...
+            if (i >= tokens.size() || !isIdentifier(tokens.get(i))) return null;
+            targetName(tokens, i, tables);
+        } else if (verb.equals("load")) { // LOAD DATA ... INTO TABLE table
+            while (i < tokens.size() && !tokens.get(i).equals("into")) i++;
+            if (i + 1 < tokens.size() && tokens.get(i + 1).equals("table")) i++;
+            if (i + 1 >= tokens.size() || !isIdentifier(tokens.get(i + 1))) return null;
+            targetName(tokens, i + 1, tables);
+        } else {
+            return null;
+        }
+        return tables.isEmpty() ? null : tables.toArray(new String[tables.size()]);
+    }
+
+    private static final Set<String> CLAUSES = new HashSet<String>(Arrays.asList(
+        "where", "join", "inner", "left", "right", "outer", "full", "cross", "natural", "on", "using",
+        "group", "order", "having", "limit", "offset", "union", "except", "intersect", "for", "fetch",
+        "window", "returning", "set", "values", "select", "straight_join"));
+
+    /** Marks quoted identifiers, so that they never match a keyword. */
+    private static final char QUOTED = '\u0001';
+
+    private static final Set<String> MODIFIERS = new HashSet<String>(Arrays.asList(
+        "only", "low_priority", "ignore"));
+
+    /** Adds the (last part of a dotted) name starting at i, returns the index after it. */
+    private static int tableName(List<String> tokens, int i, List<String> tables) {
+        i = lastPart(tokens, i);
+        if (i + 1 < tokens.size() && tokens.get(i + 1).equals("(")) return i + 1; // a function
+        return addName(tokens, i, tables);
+    }
+
+    /** As tableName, for the table a statement writes to (which may be followed by a column list). */
+    private static int targetName(List<String> tokens, int i, List<String> tables) {
+        return addName(tokens, lastPart(tokens, i), tables);
+    }
+
+    private static int lastPart(List<String> tokens, int i) {
+        while (i + 2 < tokens.size() && tokens.get(i + 1).equals(".") && isIdentifier(tokens.get(i + 2))) i += 2;
+        return i;
+    }
+
+    private static int addName(List<String> tokens, int i, List<String> tables) {
+        String name = tokens.get(i);
+        tables.add(name.charAt(0) == QUOTED ? name.substring(1) : name);
+        return i + 1;
+    }
+
+    private static boolean isIdentifier(String token) {
+        char c = token.charAt(0);
+        return Character.isLetter(c) || c == '_' || c == QUOTED;
+    }
+
+    /**
+     * Lower cased words (quoted identifiers unquoted) and single character
+     * punctuation, leaving out literals, numbers and comments. Backslashes
+     * escape in strings (and double quotes) with <tt>backslashEscapes</tt>,
+     * otherwise only in E'' strings.
+     */
+    private static List<String> tokenize(String sql, boolean backslashEscapes) {
+        List<String> tokens = new ArrayList<String>();
+        int length = sql.length();
+
+        for (int i = 0; i < length; i++) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) continue;
+
+            if (c == '\'') {
+                i = skipQuoted(sql, i, c, backslashEscapes || isEscapeString(sql, i));
+            } else if (c == '"' || c == '`' || c == '[') {
+                char close = c == '[' ? ']' : c;
+                int start = i + 1;
+                i = skipQuoted(sql, i, close, backslashEscapes && c == '"');
+                if (i > start) tokens.add(QUOTED + sql.substring(start, Math.min(i, length)).toLowerCase());
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                for (i += 2; i < length && sql.charAt(i) != '\n'; i++);
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                for (i += 2; i + 1 < length && !(sql.charAt(i) == '*' && sql.charAt(i + 1) == '/'); i++);
+                i++;
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '$') {
+                int start = i;
+                while (i + 1 < length && (Character.isLetterOrDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '_' || sql.charAt(i + 1) == '$')) i++;
+                if (!Character.isDigit(c)) tokens.add(sql.substring(start, i + 1).toLowerCase());
+            } else {
+                tokens.add(String.valueOf(c));
+            }
+        }
+        return tokens;
+    }
+
+    /** Returns the index of the closing quote (or the length). */
+    private static int skipQuoted(String sql, int i, char close, boolean backslashEscapes) {
+        for (i++; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\\' && backslashEscapes) {
+                i++;
+            } else if (c == close) {
+                return i;
+            }
+        }
+        return sql.length();
+    }
+
+    /** An E'' (PostgreSQL escape) string starts at the quote at i. */
+    private static boolean isEscapeString(String sql, int i) {
+        return i > 0 && Character.toLowerCase(sql.charAt(i - 1)) == 'e' &&
+            (i == 1 || !(Character.isLetterOrDigit(sql.charAt(i - 2)) || sql.charAt(i - 2) == '_' || sql.charAt(i - 2) == '$'));
+    }
+}
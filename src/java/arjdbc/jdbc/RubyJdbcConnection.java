@@ -26,17 +26,21 @@
 package arjdbc.jdbc;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.math.BigInteger;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
@@ -45,12 +49,25 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyBignum;
 import org.jruby.RubyClass;
+import org.jruby.RubyFloat;
+import org.jruby.RubyInteger;
 import org.jruby.RubyHash;
 import org.jruby.RubyModule;
 import org.jruby.RubyNumeric;
@@ -60,6 +77,7 @@ import org.jruby.RubyString;
 import org.jruby.RubySymbol;
 import org.jruby.RubyTime;
 import org.jruby.anno.JRubyMethod;
+import org.jruby.exceptions.JumpException;
 import org.jruby.exceptions.RaiseException;
 import org.jruby.javasupport.Java;
 import org.jruby.javasupport.JavaEmbedUtils;
@@ -81,6 +99,43 @@ public class RubyJdbcConnection extends RubyObject {
 
     private static RubyObjectAdapter rubyApi;
 
+    private AsyncExecutor asyncExecutor;
+    private ReplicaRouter replicaRouter;
+    private boolean replicasConfigured = false;
+    private ResultCache resultCache;
+    private String resultCacheScope; // url, user and schema
+    private String resultCacheBaseScope; // without the schema
+    private boolean readFromReplica = false; // set when withReadConnection used one, never cached
+    private boolean resultCacheConfigured = false;
+    private boolean transactionWroteAll = false;
+    private final Set<String> transactionTables = new HashSet<String>();
+    private boolean asyncConvertOnValue;
+    private Boolean autoCommit; // null until the driver has been asked
+    private Integer isolation; // same for the transaction isolation
+    private Boolean readOnly; // and read only mode
+    private Integer restoreIsolation; // to go back to once the transaction ends
+    private Boolean restoreReadOnly;
+    private final Map<String, Savepoint> savepoints = new LinkedHashMap<String, Savepoint>();
+    private final Map<String, TableSchema> schemaCache = new ConcurrentHashMap<String, TableSchema>();
+    private List<Map<String, Object>> snapshotTypeInfo;
+    private volatile Object[] convertedConnectionFactory; // @connection_factory and its Java side
+    private boolean disconnected = false; // disconnect! called, a lazy connection stays closed
+    private StatementCache statementCache;
+    private boolean statementCacheConfigured = false;
+    private WorkloadRecorder workloadRecorder;
+    private boolean workloadRecorderConfigured = false;
+    private boolean workloadPending = false; // reconnected, the hot statements still to be prepared
+    private final List<String> sessionSQL = new ArrayList<String>(); // see execute_session, without :multiplex
+    private CircuitBreaker circuitBreaker;
+    private boolean circuitBreakerConfigured = false;
+    private FailoverConnectionFactory failover; // when connecting through one
+    private int failoverRecoveries;
+    private FailoverConnectionFactory retainedFailover; // until disconnect!, keeping its probe running
+    private MultiplexPool multiplexPool;
+    private boolean multiplexConfigured = false;
+    private int leaseDepth = 0; // nested withConnectionAndRetry calls on a leased connection
+    private long transactionReplays, transactionRetriesExhausted;
+
     protected RubyJdbcConnection(Ruby runtime, RubyClass metaClass) {
         super(runtime, metaClass);
     }
@@ -89,6 +144,7 @@ public class RubyJdbcConnection extends RubyObject {
         RubyClass jdbcConnection = getConnectionAdapters(runtime).defineClassUnder("JdbcConnection",
                 runtime.getObject(), JDBCCONNECTION_ALLOCATOR);
         jdbcConnection.defineAnnotatedMethods(RubyJdbcConnection.class);
+        QueryFuture.createQueryFutureClass(runtime, jdbcConnection);
 
         rubyApi = JavaEmbedUtils.newObjectAdapter();
 
@@ -114,15 +170,103 @@ public class RubyJdbcConnection extends RubyObject {
         final Ruby runtime = context.getRuntime();
         return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
           public Object call(Connection c) throws SQLException {
-            getConnection(true).setAutoCommit(false);
+            setAutoCommit(c, false);
+            return runtime.getNil();
+          }
+        });
+    }
+
+    /*
+     * options
+     *
+     * Begins a transaction with the :isolation level (:read_uncommitted,
+     * :read_committed, :repeatable_read or :serializable) and/or :read_only
+     * mode given, set on the connection before the transaction starts and
+     * put back the way they were once it is committed or rolled back.
+     */
+    @JRubyMethod(name = "begin")
+    public IRubyObject begin(final ThreadContext context, final IRubyObject options) throws SQLException {
+        final Ruby runtime = context.getRuntime();
+        if (options.isNil()) return begin(context);
+
+        RubyHash hash = options.convertToHash();
+        IRubyObject isolationOption = hash.op_aref(context, runtime.newSymbol("isolation"));
+        final int level = isolationOption.isNil() ? -1 : isolationLevel(runtime, isolationOption);
+        final IRubyObject readOnlyOption = hash.op_aref(context, runtime.newSymbol("read_only"));
+
+        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+          public Object call(Connection c) throws SQLException {
+            if (!isAutoCommit(c)) throw new SQLException("transaction already started");
+
+            try {
+                if (level != -1) {
+                    int previous = getTransactionIsolation(c);
+                    if (previous != level) {
+                        setTransactionIsolation(c, level);
+                        restoreIsolation = previous;
+                    }
+                }
+                if (!readOnlyOption.isNil()) {
+                    boolean previous = isReadOnly(c);
+                    if (previous != readOnlyOption.isTrue()) {
+                        setReadOnly(c, readOnlyOption.isTrue());
+                        restoreReadOnly = previous;
+                    }
+                }
+                setAutoCommit(c, false);
+            } catch (SQLException e) { // no transaction began, nothing else puts the settings back
+                try {
+                    restoreTransactionSettings(c);
+                } catch (SQLException ignored) {
+                    // the connection is in trouble already, report what failed first
+                }
+                throw e;
+            }
             return runtime.getNil();
           }
         });
     }
 
+    /*
+     * level = nil
+     *
+     * Whether the database supports the transaction isolation level given
+     * (as for begin), or any of them without one.
+     */
+    @JRubyMethod(name = "supports_transaction_isolation?", optional = 1)
+    public IRubyObject supports_transaction_isolation_p(final ThreadContext context, final IRubyObject[] args) {
+        final Ruby runtime = context.getRuntime();
+        final int level = args.length == 0 || args[0].isNil() ? -1 : isolationLevel(runtime, args[0]);
+
+        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+            public Object call(Connection c) throws SQLException {
+                DatabaseMetaData metadata = c.getMetaData();
+                if (level != -1) return runtime.newBoolean(metadata.supportsTransactionIsolationLevel(level));
+
+                for (int each : new int[] { Connection.TRANSACTION_READ_UNCOMMITTED, Connection.TRANSACTION_READ_COMMITTED,
+                        Connection.TRANSACTION_REPEATABLE_READ, Connection.TRANSACTION_SERIALIZABLE }) {
+                    if (metadata.supportsTransactionIsolationLevel(each)) return runtime.getTrue();
+                }
+                return runtime.getFalse();
+            }
+        });
+    }
+
+    private static int isolationLevel(Ruby runtime, IRubyObject level) {
+        String name = level.toString();
+        if (name.equals("read_uncommitted")) return Connection.TRANSACTION_READ_UNCOMMITTED;
+        if (name.equals("read_committed")) return Connection.TRANSACTION_READ_COMMITTED;
+        if (name.equals("repeatable_read")) return Connection.TRANSACTION_REPEATABLE_READ;
+        if (name.equals("serializable")) return Connection.TRANSACTION_SERIALIZABLE;
+        throw runtime.newArgumentError("unknown transaction isolation level: " + name);
+    }
+
     @JRubyMethod(name = {"columns", "columns_internal"}, required = 1, optional = 2)
     public IRubyObject columns_internal(final ThreadContext context, final IRubyObject[] args)
             throws SQLException, IOException {
+        TableSchema cached = cachedSchema(args[0], args.length > 2 ? args[2] : null);
+        if (cached != null) return context.getRuntime().newArray(columnsOf(context, cached));
+
         return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
             public Object call(Connection c) throws SQLException {
                 ResultSet results = null, pkeys = null;
@@ -151,24 +295,84 @@ public class RubyJdbcConnection extends RubyObject {
 
     @JRubyMethod(name = "commit")
     public IRubyObject commit(ThreadContext context) throws SQLException {
+        if (getConnection() == null && getMultiplexPool(context) != null) return context.getRuntime().getNil();
         Connection connection = getConnection(true);
 
-        if (!connection.getAutoCommit()) {
+        if (!isAutoCommit(connection)) {
             try {
                 connection.commit();
             } finally {
-                connection.setAutoCommit(true);
+                savepoints.clear();
+                setAutoCommit(connection, true);
+                restoreTransactionSettings(connection);
+                transactionEnded(context);
+                releaseIfIdle();
             }
         }
 
         return context.getRuntime().getNil();
     }
 
+    @JRubyMethod(name = "clear_schema_cache")
+    public IRubyObject clear_schema_cache(ThreadContext context) {
+        schemaCache.clear();
+        return context.getRuntime().getNil();
+    }
+
+    @JRubyMethod(name = "connect_pending?")
+    public IRubyObject connect_pending_p(ThreadContext context) {
+        return context.getRuntime().newBoolean(isConnectPending(context));
+    }
+
+    /*
+     * &block
+     *
+     * The java.sql.Connection, yielded to the block when one is given. A
+     * connection leased in :multiplex mode goes back to the pool after the
+     * statement, so there it is only handed out while pinned: for the
+     * block, inside with_pinned_connection or a transaction.
+     */
     @JRubyMethod(name = "connection", frame = false)
-    public IRubyObject connection() {
+    public IRubyObject connection(ThreadContext context, Block block) {
+        if (getMultiplexPool(context) != null) {
+            if (!block.isGiven()) {
+                if (leaseDepth == 0 && (getConnection() == null || autoCommit == Boolean.TRUE)) {
+                    throw context.getRuntime().newArgumentError(
+                            "with :multiplex the connection is only available pinned, pass a block");
+                }
+                return wrappedConnection(getConnection(true));
+            }
+            pinConnection(context);
+            try {
+                return block.yield(context, wrappedConnection(getConnection(true)));
+            } finally {
+                releaseConnection(context);
+            }
+        }
+
         if (getConnection() == null) reconnect();
 
-        return getInstanceVariable("@connection");
+        IRubyObject connection = getInstanceVariable("@connection");
+        return block.isGiven() ? block.yield(context, connection) : connection;
+    }
+
+    /*
+     * name
+     *
+     * Sets a savepoint in the current transaction using the driver's
+     * savepoint API (no SQL gets parsed or sent by us).
+     */
+    @JRubyMethod(name = "create_savepoint", required = 1)
+    public IRubyObject create_savepoint(final ThreadContext context, final IRubyObject name) {
+        final String key = name.toString();
+        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+            public Object call(Connection c) throws SQLException {
+                Savepoint savepoint = c.setSavepoint(key);
+                savepoints.remove(key); // re-created, it now goes last
+                savepoints.put(key, savepoint);
+                return name;
+            }
+        });
     }
 
     @JRubyMethod(name = "database_name", frame = false)
@@ -187,12 +391,45 @@ public class RubyJdbcConnection extends RubyObject {
 
     @JRubyMethod(name = "disconnect!", frame = false)
     public IRubyObject disconnect() {
+        synchronized (this) {
+            if (asyncExecutor != null) {
+                asyncExecutor.shutdown();
+                asyncExecutor = null;
+            }
+        }
+        if (replicaRouter != null) {
+            replicaRouter.close();
+            replicaRouter = null;
+            replicasConfigured = false;
+        }
+        if (retainedFailover != null) {
+            retainedFailover.release();
+            retainedFailover = null;
+        }
+        disconnected = true;
+        if (multiplexPool != null) {
+            unpin(autoCommit == Boolean.TRUE);
+            return this;
+        }
         return setConnection(null);
     }
 
     @JRubyMethod
     public IRubyObject execute(final ThreadContext context, final IRubyObject sql) {
-        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+        ResultCache cache = getResultCache(context);
+        if (cache != null) {
+            return cachedQuery(context, cache, sql.convertToString().getUnicodeValue(), 0, new QueryRunner() {
+                public IRubyObject run() {
+                    return executeUncached(context, sql);
+                }
+            });
+        }
+
+        return executeUncached(context, sql);
+    }
+
+    private IRubyObject executeUncached(final ThreadContext context, final IRubyObject sql) {
+        return (IRubyObject) withReadConnection(context, sql.convertToString().getByteList(), new SQLBlock() {
             public Object call(Connection c) throws SQLException {
                 Statement stmt = null;
                 String query = rubyApi.convertToRubyString(sql).getUnicodeValue();
@@ -201,6 +438,7 @@ public class RubyJdbcConnection extends RubyObject {
                     if (genericExecute(stmt, query)) {
                         return unmarshalResults(context, c.getMetaData(), stmt, false);
                     } else {
+                        wrote(context, query);
                         return unmarshalKeysOrUpdateCount(context, c, stmt);
                     }
                 } catch (SQLException sqe) {
@@ -231,10 +469,39 @@ public class RubyJdbcConnection extends RubyObject {
         }
     }
 
+    /*
+     * path, version, schema = nil
+     *
+     * Writes the type info and the columns, primary keys and indexes of all
+     * the tables in +schema+ to a snapshot file for load_schema_snapshot.
+     */
+    @JRubyMethod(name = "dump_schema_snapshot", required = 2, optional = 1)
+    public IRubyObject dump_schema_snapshot(final ThreadContext context, final IRubyObject[] args) {
+        final Ruby runtime = context.getRuntime();
+        final String schemaName = args.length > 2 ? toStringOrNull(args[2]) : null;
+
+        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+            public Object call(Connection c) throws SQLException {
+                DatabaseMetaData metadata = c.getMetaData();
+                RubyArray types = (RubyArray) unmarshalResult(context, metadata, metadata.getTypeInfo(), true);
+                List<Map<String, Object>> typeInfo = new ArrayList<Map<String, Object>>(types.getLength());
+                for (int i = 0; i < types.getLength(); i++) typeInfo.add(typeInfoRow((RubyHash) types.eltInternal(i)));
+
+                List<TableSchema> tables = new ArrayList<TableSchema>(readSchema(context, c, schemaName).values());
+                try {
+                    new SchemaSnapshot(toStringOrNull(args[1]), schemaName, typeInfo, tables).write(new File(args[0].toString()));
+                } catch (IOException e) {
+                    throw runtime.newIOErrorFromException(e);
+                }
+                return runtime.newFixnum(tables.size());
+            }
+        });
+    }
+
     @JRubyMethod(name = "execute_id_insert", required = 2)
     public IRubyObject execute_id_insert(final ThreadContext context, final IRubyObject sql,
             final IRubyObject id) throws SQLException {
-        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+        IRubyObject result = (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
             public Object call(Connection c) throws SQLException {
                 String insert = rubyApi.convertToRubyString(sql).getUnicodeValue();
                 PreparedStatement ps = c.prepareStatement(insert);
@@ -252,12 +519,14 @@ public class RubyJdbcConnection extends RubyObject {
                 return id;
             }
         });
+        wrote(context, sql);
+        return result;
     }
 
     @JRubyMethod(name = "execute_insert", required = 1)
     public IRubyObject execute_insert(final ThreadContext context, final IRubyObject sql)
             throws SQLException {
-        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+        IRubyObject result = (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
             public Object call(Connection c) throws SQLException {
                 Statement stmt = null;
                 String insert = rubyApi.convertToRubyString(sql).getUnicodeValue();
@@ -275,6 +544,8 @@ public class RubyJdbcConnection extends RubyObject {
                 }
             }
         });
+        wrote(context, sql);
+        return result;
     }
 
     @JRubyMethod(name = "execute_query", required = 1)
@@ -295,7 +566,20 @@ public class RubyJdbcConnection extends RubyObject {
     }
 
     protected IRubyObject executeQuery(final ThreadContext context, final String query, final int maxRows) {
-        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+        ResultCache cache = getResultCache(context);
+        if (cache != null) {
+            return cachedQuery(context, cache, query, maxRows, new QueryRunner() {
+                public IRubyObject run() {
+                    return executeQueryUncached(context, query, maxRows);
+                }
+            });
+        }
+
+        return executeQueryUncached(context, query, maxRows);
+    }
+
+    private IRubyObject executeQueryUncached(final ThreadContext context, final String query, final int maxRows) {
+        return (IRubyObject) withReadConnection(context, query, new SQLBlock() {
             public Object call(Connection c) throws SQLException {
                 Statement stmt = null;
                 try {
@@ -315,10 +599,191 @@ public class RubyJdbcConnection extends RubyObject {
         });
     }
 
+    /**
+     * Run the query on a worker thread and return a QueryFuture for its
+     * result (the same as #execute_query would return).
+     */
+    @JRubyMethod(name = "execute_query_async", required = 1)
+    public IRubyObject execute_query_async(final ThreadContext context, IRubyObject sql) {
+        return submitAsync(context, rubyApi.convertToRubyString(sql).getUnicodeValue(), true);
+    }
+
+    /**
+     * Run the update on a worker thread and return a QueryFuture for the
+     * update count.
+     */
+    @JRubyMethod(name = "execute_update_async", required = 1)
+    public IRubyObject execute_update_async(final ThreadContext context, IRubyObject sql) {
+        return submitAsync(context, rubyApi.convertToRubyString(sql).getUnicodeValue(), false);
+    }
+
+    /*
+     * [sql, ...], max_parallelism = nil, timeout = nil
+     *
+     * Runs the queries concurrently on the asynchronous connection pool
+     * (no more than max_parallelism or :async_pool at once) and returns
+     * their results in the given order. A failing query does not affect
+     * the others, its slot holds the error instead of rows. Queries still
+     * running once timeout seconds passed are cancelled.
+     */
+    @JRubyMethod(name = "parallel_select", required = 1, optional = 2)
+    public IRubyObject parallel_select(final ThreadContext context, final IRubyObject[] args) {
+        Ruby runtime = context.getRuntime();
+        RubyArray queries = args[0].convertToArray();
+        int count = queries.getLength();
+        int parallelism = getAsyncExecutor(context).size();
+        if (args.length > 1 && !args[1].isNil()) {
+            parallelism = Math.max(1, Math.min(parallelism, RubyNumeric.fix2int(args[1])));
+        }
+        long deadline = args.length > 2 && !args[2].isNil() ?
+            System.currentTimeMillis() + (long) (RubyNumeric.num2dbl(args[2]) * 1000) : 0;
+
+        // results are always converted on the workers: nothing here reads a
+        // value before all the queries got submitted, so a result left open
+        // would keep its pooled connection from the queries still waiting
+        QueryFuture[] futures = new QueryFuture[count];
+        BlockingQueue<QueryFuture> completed = new LinkedBlockingQueue<QueryFuture>();
+        int submitted = 0, finished = 0;
+        try {
+            while (submitted < count && submitted < parallelism) {
+                futures[submitted] = submitAsync(context, queries.eltInternal(submitted).convertToString().getUnicodeValue(), true, false, completed);
+                submitted++;
+            }
+
+            while (finished < submitted) {
+                QueryFuture done;
+                if (deadline == 0) {
+                    done = completed.take();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    done = remaining > 0 ? completed.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                    if (done == null) break;
+                }
+                finished++;
+                if (submitted < count) {
+                    futures[submitted] = submitAsync(context, queries.eltInternal(submitted).convertToString().getUnicodeValue(), true, false, completed);
+                    submitted++;
+                }
+            }
+        } catch (InterruptedException e) {
+            for (int i = 0; i < submitted; i++) futures[i].cancel(context);
+            Thread.currentThread().interrupt(); // keep it for the caller to see
+            throw wrap(context, e);
+        } catch (RaiseException e) { // could not submit
+            for (int i = 0; i < submitted; i++) futures[i].cancel(context);
+            throw e;
+        }
+
+        IRubyObject[] results = new IRubyObject[count];
+        for (int i = 0; i < count; i++) {
+            if (futures[i] == null) {
+                results[i] = ((RaiseException) wrap(context, new SQLException("parallel select timed out before running the query"))).getException();
+            } else {
+                if (!futures[i].isFinished()) futures[i].cancel(context);
+                results[i] = futures[i].outcome(context);
+            }
+        }
+        return runtime.newArrayNoCopy(results);
+    }
+
+    private IRubyObject submitAsync(final ThreadContext context, final String sql, final boolean query) {
+        getAsyncExecutor(context); // sets asyncConvertOnValue up
+        return submitAsync(context, sql, query, asyncConvertOnValue, null);
+    }
+
+    private QueryFuture submitAsync(final ThreadContext context, final String sql, final boolean query,
+            final boolean convertOnValue, final BlockingQueue<QueryFuture> completed) {
+        final Ruby runtime = context.getRuntime();
+        final AsyncExecutor executor = getAsyncExecutor(context);
+        final QueryFuture future = new QueryFuture(runtime,
+                (RubyClass) getMetaClass().getRealClass().getConstant("QueryFuture"), this);
+
+        // reads racing the update may cache what it is about to change, so
+        // its tables are dropped once more (from the worker) when it is done
+        final ResultCache cache = query ? null : getResultCache(context);
+        final String cacheScope = resultCacheScope;
+        final String[] written = cache == null ? null : ResultCache.writtenTables(sql, backslashEscapes());
+        final ReplicaRouter router = query ? null : getReplicaRouter(context);
+        if (!query) wrote(context, sql);
+
+        Callable<Object> task = new Callable<Object>() {
+            public Object call() throws Exception {
+                Connection c = executor.acquire();
+                Statement stmt = null;
+                boolean handedOver = false, broken = false;
+                try {
+                    stmt = c.createStatement();
+                    future.setRunning(stmt);
+                    if (!query) {
+                        long count = stmt.executeUpdate(sql);
+                        if (router != null) router.wrote();
+                        if (cache != null) cache.invalidate(cacheScope, written);
+                        return runtime.newFixnum(count);
+                    }
+
+                    ResultSet resultSet = stmt.executeQuery(sql);
+                    if (convertOnValue) {
+                        QueryFuture.PendingResult pending = new QueryFuture.PendingResult(executor, c, stmt, resultSet);
+                        handedOver = true;
+                        executor.handedOver(future, pending);
+                        future.setPending(pending);
+                        return pending;
+                    }
+                    return unmarshalResult(runtime.getCurrentContext(), c.getMetaData(), resultSet, false);
+                } catch (SQLException e) {
+                    if (runtime.isDebug()) System.out.println("Error SQL: " + sql);
+                    broken = executor.isBroken(c);
+                    throw e;
+                } finally {
+                    future.setRunning(null);
+                    if (!handedOver) {
+                        close(stmt);
+                        executor.release(c, broken);
+                    }
+                    future.finished();
+                    if (completed != null) completed.offer(future);
+                }
+            }
+        };
+
+        try {
+            future.setFuture(executor.submit(task));
+        } catch (RejectedExecutionException e) {
+            throw wrap(context, new SQLException("too many pending asynchronous statements"));
+        }
+        return future;
+    }
+
+    /**
+     * The executor is set up on first use from the connection config:
+     * :async_pool (worker threads and connections, 4 by default),
+     * :async_queue (pending statements, 64 by default) and
+     * :async_conversion (:worker or :value, where result sets are turned
+     * into Ruby objects) and :async_timeout (seconds a statement waits for
+     * a pooled connection, 5 by default).
+     */
+    private synchronized AsyncExecutor getAsyncExecutor(ThreadContext context) {
+        if (asyncExecutor == null) {
+            IRubyObject pool = config_value(context, "async_pool");
+            IRubyObject queue = config_value(context, "async_queue");
+            IRubyObject conversion = config_value(context, "async_conversion");
+            IRubyObject timeout = config_value(context, "async_timeout");
+            IRubyObject alive = config_value(context, "connection_alive_sql");
+
+            int size = pool.isNil() ? 4 : Math.max(1, RubyNumeric.fix2int(pool));
+            int queueSize = queue.isNil() ? 64 : Math.max(1, RubyNumeric.fix2int(queue));
+            asyncConvertOnValue = !conversion.isNil() && conversion.toString().equals("value");
+            asyncExecutor = new AsyncExecutor(getConnectionFactory(), size, queueSize,
+                    timeout.isNil() ? 5000 : (long) (RubyNumeric.num2dbl(timeout) * 1000),
+                    !alive.isNil() && select_p(context, this, alive).isTrue() ? alive.toString() : null);
+        }
+        return asyncExecutor;
+    }
+
     @JRubyMethod(name = "execute_update", required = 1)
     public IRubyObject execute_update(final ThreadContext context, final IRubyObject sql)
             throws SQLException {
-        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+        IRubyObject result = (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
             public Object call(Connection c) throws SQLException {
                 Statement stmt = null;
                 String update = rubyApi.convertToRubyString(sql).getUnicodeValue();
@@ -335,10 +800,15 @@ public class RubyJdbcConnection extends RubyObject {
                 }
             }
         });
+        wrote(context, sql);
+        return result;
     }
 
     @JRubyMethod(name = "indexes")
     public IRubyObject indexes(ThreadContext context, IRubyObject tableName, IRubyObject name, IRubyObject schemaName) {
+        TableSchema cached = cachedSchema(tableName, schemaName);
+        if (cached != null) return context.getRuntime().newArray(indexesOf(context, cached));
+
         return indexes(context, toStringOrNull(tableName), toStringOrNull(name), toStringOrNull(schemaName));
     }
 
@@ -369,6 +839,7 @@ public class RubyJdbcConnection extends RubyObject {
                     resultSet = metadata.getIndexInfo(null, schemaName, tableName, false, true);
                     List primaryKeys = primaryKeys(context, tableName);
                     String currentIndex = null;
+                    RubyArray currentColumns = null;
                     RubyModule indexDefinitionClass = getConnectionAdapters(runtime).getClass("IndexDefinition");
 
                     while (resultSet.next()) {
@@ -389,24 +860,19 @@ public class RubyJdbcConnection extends RubyObject {
                             tableName = caseConvertIdentifierForRails(metadata, resultSet.getString(INDEX_TABLE_NAME));
                             boolean nonUnique = resultSet.getBoolean(INDEX_NON_UNIQUE);
 
-                            IRubyObject indexDefinition = indexDefinitionClass.callMethod(context, "new",
+                            // empty list for column names, we'll add to that in just a bit
+                            currentColumns = runtime.newArray();
+                            indexes.add(indexDefinitionClass.callMethod(context, "new",
                                     new IRubyObject[] {
                                 RubyString.newUnicodeString(runtime, tableName),
                                 RubyString.newUnicodeString(runtime, indexName),
                                 runtime.newBoolean(!nonUnique),
-                                runtime.newArray()
-                            });
-
-                            // empty list for column names, we'll add to that in just a bit
-                            indexes.add(indexDefinition);
+                                currentColumns
+                            }));
                         }
 
                         // One or more columns can be associated with an index
-                        IRubyObject lastIndex = (IRubyObject) indexes.get(indexes.size() - 1);
-
-                        if (lastIndex != null) {
-                            lastIndex.callMethod(context, "columns").callMethod(context, "<<", columnName);
-                        }
+                        currentColumns.append(columnName);
                     }
 
                     return runtime.newArray(indexes);
@@ -421,7 +887,7 @@ public class RubyJdbcConnection extends RubyObject {
     public static IRubyObject insert_p(ThreadContext context, IRubyObject recv, IRubyObject _sql) {
         ByteList sql = rubyApi.convertToRubyString(_sql).getByteList();
 
-        return context.getRuntime().newBoolean(startsWithNoCaseCmp(sql, INSERT));
+        return context.getRuntime().newBoolean(SQLClassifier.classify(sql).isInsert());
     }
 
     /*
@@ -430,24 +896,92 @@ public class RubyJdbcConnection extends RubyObject {
     @JRubyMethod(name = "insert_bind", required = 3, rest = true)
     public IRubyObject insert_bind(final ThreadContext context, final IRubyObject[] args) throws SQLException {
         final Ruby runtime = context.getRuntime();
-        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+        IRubyObject result = (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
             public Object call(Connection c) throws SQLException {
                 PreparedStatement ps = null;
                 try {
-                    ps = c.prepareStatement(rubyApi.convertToRubyString(args[0]).toString(), Statement.RETURN_GENERATED_KEYS);
+                    ps = prepare(context, c, rubyApi.convertToRubyString(args[0]).toString(), true, true);
                     setValuesOnPS(ps, context, args[1], args[2]);
                     ps.executeUpdate();
                     return unmarshal_id_result(runtime, ps.getGeneratedKeys());
                 } finally {
-                    close(ps);
+                    release(ps);
+                }
+            }
+        });
+        wrote(context, args[0]);
+        return result;
+    }
+
+    /*
+     * schema = nil
+     *
+     * Reads the columns, primary keys and indexes of all the tables in
+     * +schema+ (the default one when nil) with a few schema wide catalog
+     * queries instead of several queries per table.  They are kept so that
+     * columns, primary_keys and indexes for these tables do not go to the
+     * database again until a DDL statement runs (or clear_schema_cache).
+     * Drivers that insist on a table name for primary key or index metadata
+     * get asked table by table for those.  Returns the table names.
+     */
+    @JRubyMethod(name = "load_schema", optional = 1)
+    public IRubyObject load_schema(final ThreadContext context, final IRubyObject[] args) {
+        final Ruby runtime = context.getRuntime();
+        final String schemaName = args.length > 0 ? toStringOrNull(args[0]) : null;
+
+        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+            public Object call(Connection c) throws SQLException {
+                List<IRubyObject> names = new ArrayList<IRubyObject>();
+                for (TableSchema table : readSchema(context, c, schemaName).values()) {
+                    schemaCache.put(schemaCacheKey(table.name, schemaName), table);
+                    names.add(RubyString.newUnicodeString(runtime, table.name));
                 }
+                return runtime.newArray(names);
             }
         });
     }
 
+    /*
+     * path, version, schema = nil
+     *
+     * Answers columns, primary_keys and indexes (and sets up the native
+     * database types) from the snapshot at +path+ instead of the catalog,
+     * provided it was taken of +schema+ at schema +version+.  Returns false,
+     * leaving live metadata in use, when there is no such file or it is
+     * stale or of another schema.
+     */
+    @JRubyMethod(name = "load_schema_snapshot", required = 2, optional = 1)
+    public IRubyObject load_schema_snapshot(ThreadContext context, IRubyObject[] args) {
+        Ruby runtime = context.getRuntime();
+        File file = new File(args[0].toString());
+        if (!file.isFile()) return runtime.getFalse();
+
+        SchemaSnapshot snapshot;
+        try {
+            snapshot = SchemaSnapshot.read(file);
+        } catch (IOException e) {
+            if (runtime.isDebug()) e.printStackTrace(System.out);
+            return runtime.getFalse();
+        }
+        String current = toStringOrNull(args[1]);
+        if (current == null || !current.equals(snapshot.version)) return runtime.getFalse();
+        String schemaName = args.length > 2 ? toStringOrNull(args[2]) : null;
+        if (schemaName == null ? snapshot.schema != null : !schemaName.equals(snapshot.schema)) {
+            return runtime.getFalse();
+        }
+
+        for (TableSchema table : snapshot.tables) schemaCache.put(schemaCacheKey(table.name, snapshot.schema), table);
+        snapshotTypeInfo = snapshot.typeInfo;
+        return runtime.getTrue();
+    }
+
     @JRubyMethod(name = "native_database_types", frame = false)
-    public IRubyObject native_database_types() {
-        return getInstanceVariable("@native_database_types");
+    public IRubyObject native_database_types(ThreadContext context) {
+        IRubyObject types = getInstanceVariable("@native_database_types");
+        if (types == null || types.isNil()) { // lazy, not asked for yet
+            types = callMethod(context, "resolve_native_database_types");
+        }
+        return types;
     }
 
 
@@ -457,6 +991,18 @@ public class RubyJdbcConnection extends RubyObject {
     }
 
     protected List primaryKeys(final ThreadContext context, final String tableNameArg) {
+        TableSchema cached = null;
+        if (!schemaCache.isEmpty()) {
+            int dot = tableNameArg.lastIndexOf('.');
+            cached = dot < 0 ? schemaCache.get(schemaCacheKey(tableNameArg, null)) :
+                schemaCache.get(schemaCacheKey(tableNameArg.substring(dot + 1), tableNameArg.substring(0, dot)));
+        }
+        if (cached != null) {
+            List<IRubyObject> keyNames = new ArrayList<IRubyObject>();
+            for (String key : cached.primaryKeys) keyNames.add(RubyString.newUnicodeString(context.getRuntime(), key));
+            return keyNames;
+        }
+
         return (List) withConnectionAndRetry(context, new SQLBlock() {
             public Object call(Connection c) throws SQLException {
                 Ruby runtime = context.getRuntime();
@@ -483,10 +1029,62 @@ public class RubyJdbcConnection extends RubyObject {
 
     @JRubyMethod(name = "reconnect!")
     public IRubyObject reconnect() {
-        return setConnection(getConnectionFactory().newConnection());
+        ThreadContext context = getRuntime().getCurrentContext();
+        if (getMultiplexPool(context) != null) {
+            unpin(false); // the next statement leases a (working) one
+            return this;
+        }
+        JdbcConnectionFactory factory = getConnectionFactory();
+        failover = factory instanceof FailoverConnectionFactory ? (FailoverConnectionFactory) factory : null;
+        if (failover != null) failoverRecoveries = failover.getRecoveries();
+        if (failover != retainedFailover) {
+            if (retainedFailover != null) retainedFailover.release();
+            if (failover != null) failover.retain();
+            retainedFailover = failover;
+        }
+
+        CircuitBreaker breaker = getCircuitBreaker(context);
+        if (breaker == null) {
+            setConnection(getConnectionFactory().newConnection());
+        } else {
+            if (!breaker.allowAttempt()) throw circuitOpen(context, breaker);
+            boolean connected = false;
+            try {
+                setConnection(getConnectionFactory().newConnection());
+                connected = true;
+            } finally {
+                if (connected) breaker.succeeded();
+                else breaker.failed();
+            }
+        }
+        if (!sessionSQL.isEmpty()) initSession(context, getConnection());
+        workloadPending = true;
+        return this;
     }
 
 
+    /*
+     * name
+     *
+     * Releases the savepoint along with any savepoints set after it.
+     */
+    @JRubyMethod(name = "release_savepoint", required = 1)
+    public IRubyObject release_savepoint(final ThreadContext context, final IRubyObject name) {
+        final Ruby runtime = context.getRuntime();
+        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+            public Object call(Connection c) throws SQLException {
+                Savepoint savepoint = savepoint(name.toString());
+                forgetSavepointsAfter(savepoint, true);
+                try {
+                    c.releaseSavepoint(savepoint);
+                } catch (SQLFeatureNotSupportedException e) {
+                    // released on commit/rollback anyway
+                }
+                return runtime.getNil();
+            }
+        });
+    }
+
     @JRubyMethod(name = "rollback")
     public IRubyObject rollback(ThreadContext context) throws SQLException {
         final Ruby runtime = context.getRuntime();
@@ -494,11 +1092,14 @@ public class RubyJdbcConnection extends RubyObject {
           public Object call(Connection c) throws SQLException {
             Connection connection = getConnection(true);
 
-            if (!connection.getAutoCommit()) {
+            if (!isAutoCommit(connection)) {
                 try {
                     connection.rollback();
                 } finally {
-                    connection.setAutoCommit(true);
+                    savepoints.clear();
+                    setAutoCommit(connection, true);
+                    restoreTransactionSettings(connection);
+                    transactionEnded(context);
                 }
             }
 
@@ -507,75 +1108,398 @@ public class RubyJdbcConnection extends RubyObject {
         });
     }
 
+    /*
+     * name
+     *
+     * Rolls back to the savepoint, which stays usable, while any savepoints
+     * set after it are gone.
+     */
+    @JRubyMethod(name = "rollback_savepoint", required = 1)
+    public IRubyObject rollback_savepoint(final ThreadContext context, final IRubyObject name) {
+        final Ruby runtime = context.getRuntime();
+        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+            public Object call(Connection c) throws SQLException {
+                Savepoint savepoint = savepoint(name.toString());
+                c.rollback(savepoint);
+                forgetSavepointsAfter(savepoint, false);
+                return runtime.getNil();
+            }
+        });
+    }
+
     @JRubyMethod(name = "select?", required = 1, meta = true, frame = false)
     public static IRubyObject select_p(ThreadContext context, IRubyObject recv, IRubyObject _sql) {
         ByteList sql = rubyApi.convertToRubyString(_sql).getByteList();
 
-        return context.getRuntime().newBoolean(startsWithNoCaseCmp(sql, SELECT) || startsWithNoCaseCmp(sql, WITH) ||
-                startsWithNoCaseCmp(sql, SHOW) || startsWithNoCaseCmp(sql, CALL));
+        return context.getRuntime().newBoolean(SQLClassifier.classify(sql).isQuery());
     }
 
-    @JRubyMethod(name = "set_native_database_types")
-    public IRubyObject set_native_database_types(ThreadContext context) throws SQLException, IOException {
-        Ruby runtime = context.getRuntime();
-        DatabaseMetaData metadata = getConnection(true).getMetaData();
-        IRubyObject types = unmarshalResult(context, metadata, metadata.getTypeInfo(), true);
-        IRubyObject typeConverter = getConnectionAdapters(runtime).getConstant("JdbcTypeConverter");
-        IRubyObject value = rubyApi.callMethod(rubyApi.callMethod(typeConverter, "new", types), "choose_best_types");
-        setInstanceVariable("@native_types", value);
+    @JRubyMethod(name = "read_only?", required = 1, meta = true, frame = false)
+    public static IRubyObject read_only_p(ThreadContext context, IRubyObject recv, IRubyObject _sql) {
+        ByteList sql = rubyApi.convertToRubyString(_sql).getByteList();
 
-        return runtime.getNil();
+        return context.getRuntime().newBoolean(SQLClassifier.classify(sql).isReadOnly());
     }
 
-    @JRubyMethod(name = "tables")
-    public IRubyObject tables(ThreadContext context) {
-        return tables(context, null, null, null, TABLE_TYPE);
-    }
+    @JRubyMethod(name = "ddl?", required = 1, meta = true, frame = false)
+    public static IRubyObject ddl_p(ThreadContext context, IRubyObject recv, IRubyObject _sql) {
+        ByteList sql = rubyApi.convertToRubyString(_sql).getByteList();
 
-    @JRubyMethod(name = "tables")
-    public IRubyObject tables(ThreadContext context, IRubyObject catalog) {
-        return tables(context, toStringOrNull(catalog), null, null, TABLE_TYPE);
+        return context.getRuntime().newBoolean(SQLClassifier.classify(sql).isDDL());
     }
 
-    @JRubyMethod(name = "tables")
-    public IRubyObject tables(ThreadContext context, IRubyObject catalog, IRubyObject schemaPattern) {
-        return tables(context, toStringOrNull(catalog), toStringOrNull(schemaPattern), null, TABLE_TYPE);
-    }
+    /*
+     * sql => :select, :with, :values, :show, :call, :insert, :update, :delete, :ddl or :other
+     */
+    @JRubyMethod(name = "sql_kind", required = 1, meta = true, frame = false)
+    public static IRubyObject sql_kind(ThreadContext context, IRubyObject recv, IRubyObject _sql) {
+        ByteList sql = rubyApi.convertToRubyString(_sql).getByteList();
 
-    @JRubyMethod(name = "tables")
-    public IRubyObject tables(ThreadContext context, IRubyObject catalog, IRubyObject schemaPattern, IRubyObject tablePattern) {
-        return tables(context, toStringOrNull(catalog), toStringOrNull(schemaPattern), toStringOrNull(tablePattern), TABLE_TYPE);
+        return context.getRuntime().newSymbol(SQLClassifier.classify(sql).kind.name().toLowerCase());
     }
 
-    @JRubyMethod(name = "tables", required = 4, rest = true)
-    public IRubyObject tables(ThreadContext context, IRubyObject[] args) {
-        return tables(context, toStringOrNull(args[0]), toStringOrNull(args[1]), toStringOrNull(args[2]), getTypes(args[3]));
-    }
+    @JRubyMethod(name = "placeholder_count", required = 1, meta = true, frame = false)
+    public static IRubyObject placeholder_count(ThreadContext context, IRubyObject recv, IRubyObject _sql) {
+        ByteList sql = rubyApi.convertToRubyString(_sql).getByteList();
 
-    protected IRubyObject tables(ThreadContext context, String catalog, String schemaPattern, String tablePattern, String[] types) {
-        return (IRubyObject) withConnectionAndRetry(context, tableLookupBlock(context.getRuntime(), catalog, schemaPattern, tablePattern, types, false));
+        return context.getRuntime().newFixnum(SQLClassifier.classify(sql).placeholders);
     }
 
-    /*
-     * sql, values, types, name = nil
+    @JRubyMethod(name = "set_native_database_types")
+    public IRubyObject set_native_database_types(ThreadContext context) throws SQLException, IOException {
+        Ruby runtime = context.getRuntime();
+        IRubyObject scope = config_value(context, "url");
+        if (scope.isNil()) scope = config_value(context, "jndi");
+        IRubyObject key = scope.isNil() ? null : runtime.newString(config_value(context, "driver") + "|" + scope);
+
+        RubyHash cached = nativeTypesCache(runtime);
+        IRubyObject nativeTypes = null;
+        if (key != null) {
+            synchronized (cached) { nativeTypes = cached.fastARef(key); }
+        }
+        if (nativeTypes == null) {
+            nativeTypes = chooseNativeTypes(context);
+            if (key != null) {
+                synchronized (cached) { cached.fastASet(key, nativeTypes); }
+            }
+        }
+        setInstanceVariable("@native_types", nativeTypes);
+
+        return runtime.getNil();
+    }
+
+    /**
+     * The types chosen by set_native_database_types for each driver and URL
+     * (or JNDI name), so connecting again does not go through getTypeInfo
+     * and the type converter.  Kept on the JdbcConnection class, it goes
+     * away with the runtime.
+     */
+    private static RubyHash nativeTypesCache(Ruby runtime) {
+        RubyModule jdbcConnection = (RubyModule) getConnectionAdapters(runtime).getConstant("JdbcConnection");
+        synchronized (jdbcConnection) {
+            IRubyObject cache = jdbcConnection.getInstanceVariable("@native_types_cache");
+            if (cache == null || cache.isNil()) {
+                cache = RubyHash.newHash(runtime);
+                jdbcConnection.setInstanceVariable("@native_types_cache", cache);
+            }
+            return (RubyHash) cache;
+        }
+    }
+
+    /**
+     * Runs the type info through the type converter, freezing the result as
+     * it is shared by all the connections to the same database.
+     */
+    private IRubyObject chooseNativeTypes(ThreadContext context) throws SQLException {
+        Ruby runtime = context.getRuntime();
+        IRubyObject types;
+        if (snapshotTypeInfo != null) {
+            List<IRubyObject> rows = new ArrayList<IRubyObject>(snapshotTypeInfo.size());
+            for (Map<String, Object> row : snapshotTypeInfo) rows.add(typeInfoRow(runtime, row));
+            types = runtime.newArray(rows);
+        } else {
+            DatabaseMetaData metadata = getConnection(true).getMetaData();
+            types = unmarshalResult(context, metadata, metadata.getTypeInfo(), true);
+        }
+        IRubyObject typeConverter = getConnectionAdapters(runtime).getConstant("JdbcTypeConverter");
+        IRubyObject value = rubyApi.callMethod(rubyApi.callMethod(typeConverter, "new", types), "choose_best_types");
+        deepFreeze(value);
+
+        return value;
+    }
+
+    private static void deepFreeze(IRubyObject value) {
+        if (value instanceof RubyHash) {
+            for (Object nested : ((RubyHash) value).directValues()) deepFreeze((IRubyObject) nested);
+        }
+        if (value instanceof RubyHash || value instanceof RubyString) value.setFrozen(true);
+    }
+
+    @JRubyMethod(name = "tables")
+    public IRubyObject tables(ThreadContext context) {
+        return tables(context, null, null, null, TABLE_TYPE);
+    }
+
+    @JRubyMethod(name = "tables")
+    public IRubyObject tables(ThreadContext context, IRubyObject catalog) {
+        return tables(context, toStringOrNull(catalog), null, null, TABLE_TYPE);
+    }
+
+    @JRubyMethod(name = "tables")
+    public IRubyObject tables(ThreadContext context, IRubyObject catalog, IRubyObject schemaPattern) {
+        return tables(context, toStringOrNull(catalog), toStringOrNull(schemaPattern), null, TABLE_TYPE);
+    }
+
+    @JRubyMethod(name = "tables")
+    public IRubyObject tables(ThreadContext context, IRubyObject catalog, IRubyObject schemaPattern, IRubyObject tablePattern) {
+        return tables(context, toStringOrNull(catalog), toStringOrNull(schemaPattern), toStringOrNull(tablePattern), TABLE_TYPE);
+    }
+
+    @JRubyMethod(name = "tables", required = 4, rest = true)
+    public IRubyObject tables(ThreadContext context, IRubyObject[] args) {
+        return tables(context, toStringOrNull(args[0]), toStringOrNull(args[1]), toStringOrNull(args[2]), getTypes(args[3]));
+    }
+
+    protected IRubyObject tables(ThreadContext context, String catalog, String schemaPattern, String tablePattern, String[] types) {
+        return (IRubyObject) withConnectionAndRetry(context, tableLookupBlock(context.getRuntime(), catalog, schemaPattern, tablePattern, types, false));
+    }
+
+    /*
+     * sql, values, types, name = nil
      */
     @JRubyMethod(name = "update_bind", required = 3, rest = true)
     public IRubyObject update_bind(final ThreadContext context, final IRubyObject[] args) throws SQLException {
         final Ruby runtime = context.getRuntime();
         Arity.checkArgumentCount(runtime, args, 3, 4);
-        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+        IRubyObject result = (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
             public Object call(Connection c) throws SQLException {
                 PreparedStatement ps = null;
                 try {
-                    ps = c.prepareStatement(rubyApi.convertToRubyString(args[0]).toString());
+                    ps = prepare(context, c, rubyApi.convertToRubyString(args[0]).toString(), false, true);
                     setValuesOnPS(ps, context, args[1], args[2]);
                     ps.executeUpdate();
                 } finally {
-                    close(ps);
+                    release(ps);
                 }
                 return runtime.getNil();
             }
         });
+        wrote(context, args[0]);
+        return result;
+    }
+
+    /*
+     * sql, values, types
+     */
+    @JRubyMethod(name = "select_bind", required = 3)
+    public IRubyObject select_bind(final ThreadContext context, final IRubyObject sql,
+            final IRubyObject values, final IRubyObject types) throws SQLException {
+        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+            public Object call(Connection c) throws SQLException {
+                PreparedStatement ps = null;
+                try {
+                    ps = prepare(context, c, rubyApi.convertToRubyString(sql).toString(), false, true);
+                    setValuesOnPS(ps, context, values, types);
+                    return unmarshalResult(context, c.getMetaData(), ps.executeQuery(), false);
+                } finally {
+                    release(ps);
+                }
+            }
+        });
+    }
+
+    /*
+     * [sql, ...]
+     *
+     * Prepares the statements ahead of their first use, keeping them in the
+     * statement cache (one gets set up when :statement_cache_size is not
+     * configured).  Inserts are prepared the way insert_bind uses them.
+     * Returns the number of statements cached.
+     */
+    @JRubyMethod(name = "prime_statements", required = 1)
+    public IRubyObject prime_statements(final ThreadContext context, final IRubyObject sqls) {
+        final List<String> statements = new ArrayList<String>();
+        for (IRubyObject sql : rubyApi.convertToJavaArray(sqls)) statements.add(sql.toString());
+
+        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+            public Object call(Connection c) throws SQLException {
+                primeStatements(context, c, statements, false);
+                return context.getRuntime().newFixnum(statementCache.size());
+            }
+        });
+    }
+
+    private void primeStatements(ThreadContext context, Connection c, List<String> statements,
+            boolean skipFailing) throws SQLException {
+        if (getStatementCache(context) == null && getMultiplexPool(context) == null) {
+            statementCache = new StatementCache(Math.max(DEFAULT_STATEMENT_CACHE_SIZE, statements.size()));
+        }
+        for (String sql : statements) {
+            boolean insert = SQLClassifier.kindOf(new ByteList(ByteList.plain(sql), false)) == SQLClassifier.Kind.INSERT;
+            try {
+                statementCache.prepare(c, sql, insert);
+            } catch (SQLException e) {
+                if (!skipFailing) throw e;
+            }
+        }
+    }
+
+    /**
+     * Prepares the statements the workload recorder found to be the hot ones
+     * on a (re)opened connection, once its first statement with binds comes
+     * along rather than while reconnecting. Statements that fail to prepare
+     * are left out.
+     */
+    private void primeWorkload(ThreadContext context, WorkloadRecorder recorder, Connection c) {
+        workloadPending = false;
+        if (getMultiplexPool(context) != null) return; // statements are cached per leased connection
+
+        try {
+            primeStatements(context, c, recorder.hotStatements(), true);
+        } catch (SQLException e) {
+            // not reached, failing statements are skipped
+        }
+    }
+
+    /*
+     * Writes the statements the workload recorder found hot to the
+     * :workload_file right away, returns them (nil without a recorder).
+     */
+    @JRubyMethod(name = "flush_workload")
+    public IRubyObject flush_workload(ThreadContext context) throws IOException {
+        Ruby runtime = context.getRuntime();
+        WorkloadRecorder recorder = getWorkloadRecorder(context);
+        if (recorder == null) return runtime.getNil();
+
+        recorder.flush();
+        List<String> hot = recorder.hotStatements();
+        RubyArray statements = runtime.newArray(hot.size());
+        for (String sql : hot) statements.append(RubyString.newUnicodeString(runtime, sql));
+        return statements;
+    }
+
+    @JRubyMethod(name = "circuit_breaker_stats")
+    public IRubyObject circuit_breaker_stats(ThreadContext context) {
+        Ruby runtime = context.getRuntime();
+        CircuitBreaker breaker = getCircuitBreaker(context);
+        if (breaker == null) return runtime.getNil();
+
+        long[] stats = breaker.stats();
+        RubyHash hash = RubyHash.newHash(runtime);
+        hash.op_aset(context, runtime.newSymbol("state"), runtime.newSymbol(breaker.getState().name().toLowerCase()));
+        hash.op_aset(context, runtime.newSymbol("failures"), runtime.newFixnum(stats[0]));
+        hash.op_aset(context, runtime.newSymbol("successes"), runtime.newFixnum(stats[1]));
+        hash.op_aset(context, runtime.newSymbol("rejections"), runtime.newFixnum(stats[2]));
+        hash.op_aset(context, runtime.newSymbol("trips"), runtime.newFixnum(stats[3]));
+        hash.op_aset(context, runtime.newSymbol("consecutive_failures"), runtime.newFixnum(stats[4]));
+        hash.op_aset(context, runtime.newSymbol("retry_in"), runtime.newFixnum(breaker.retryIn()));
+        return hash;
+    }
+
+    /*
+     * Closes the circuit breaker this connection shares, letting connection
+     * attempts through again right away.
+     */
+    @JRubyMethod(name = "reset_circuit_breaker")
+    public IRubyObject reset_circuit_breaker(ThreadContext context) {
+        CircuitBreaker breaker = getCircuitBreaker(context);
+        if (breaker != null) breaker.reset();
+        return context.getRuntime().getNil();
+    }
+
+    @JRubyMethod(name = "statement_cache_stats")
+    public IRubyObject statement_cache_stats(ThreadContext context) {
+        Ruby runtime = context.getRuntime();
+        StatementCache cache = getStatementCache(context);
+        if (cache == null) return runtime.getNil();
+
+        RubyHash hash = RubyHash.newHash(runtime);
+        hash.op_aset(context, runtime.newSymbol("hits"), runtime.newFixnum(cache.getHits()));
+        hash.op_aset(context, runtime.newSymbol("misses"), runtime.newFixnum(cache.getMisses()));
+        hash.op_aset(context, runtime.newSymbol("statements"), runtime.newFixnum(cache.size()));
+        return hash;
+    }
+
+    /*
+     * options = nil, &block
+     *
+     * Runs the block, which runs a transaction (JdbcAdapter#with_transaction_retry
+     * runs it through transaction), again when it fails on a serialization
+     * failure or deadlock.  Options are :max_retries (3), :base_delay and
+     * :max_delay (0.05 and 1.0 seconds, the random back off between runs),
+     * :sql_states and :error_codes (40001, 40P01 and MySQL's 1213) and
+     * :on_replay, called with the attempt that failed and its error before
+     * every new run.  The block gets passed the attempt number, a transaction
+     * it leaves open when failing gets rolled back.  Inside a transaction
+     * already the block just runs, there is no replaying part of a
+     * transaction.
+     */
+    @JRubyMethod(name = "with_transaction_retry", optional = 1)
+    public IRubyObject with_transaction_retry(final ThreadContext context, final IRubyObject[] args,
+            final Block block) throws SQLException {
+        final Ruby runtime = context.getRuntime();
+        if (inTransaction(context)) return block.yield(context, runtime.newFixnum(1));
+
+        IRubyObject options = args.length > 0 ? args[0] : runtime.getNil();
+        TransactionRetry retry = new TransactionRetry(context, options);
+        for (int attempt = 1; ; attempt++) {
+            RaiseException raised;
+            boolean finished = false;
+            try {
+                IRubyObject result = block.yield(context, runtime.newFixnum(attempt));
+                finished = true;
+                return result;
+            } catch (RaiseException e) {
+                raised = e;
+            } finally {
+                if (!finished && inTransaction(context)) {
+                    try {
+                        rollback(context);
+                    } catch (RaiseException e) {
+                        // the failure is what matters
+                    }
+                }
+            }
+
+            boolean retryable = retry.isRetryable(failureOf(context, raised));
+            if (attempt > retry.maxRetries || !retryable) {
+                if (retryable) transactionRetriesExhausted++; // another failure after the last replay
+                throw raised;
+            }
+            transactionReplays++;
+            if (!retry.onReplay.isNil()) {
+                retry.onReplay.callMethod(context, "call", new IRubyObject[] { runtime.newFixnum(attempt), raised.getException() });
+            }
+            retry.backOff(attempt);
+        }
+    }
+
+    /**
+     * The SQLException behind an error raised, following errors translated
+     * from a JDBCError (through original_exception) back to its sql_exception.
+     */
+    private static Throwable failureOf(ThreadContext context, RaiseException raised) {
+        if (raised.getCause() instanceof SQLException) return raised.getCause();
+
+        IRubyObject error = raised.getException();
+        for (int depth = 0; depth < 8 && error != null && !error.isNil(); depth++) {
+            if (error.respondsTo("sql_exception")) {
+                Object failure = JavaEmbedUtils.rubyToJava(error.callMethod(context, "sql_exception"));
+                if (failure instanceof Throwable) return (Throwable) failure;
+            }
+            error = error.respondsTo("original_exception") ? error.callMethod(context, "original_exception") :
+                error.getInstanceVariables().getInstanceVariable("@original_exception");
+        }
+        return raised.getCause();
+    }
+
+    @JRubyMethod(name = "transaction_retry_stats")
+    public IRubyObject transaction_retry_stats(ThreadContext context) {
+        Ruby runtime = context.getRuntime();
+        RubyHash hash = RubyHash.newHash(runtime);
+        hash.op_aset(context, runtime.newSymbol("replays"), runtime.newFixnum(transactionReplays));
+        hash.op_aset(context, runtime.newSymbol("exhausted"), runtime.newFixnum(transactionRetriesExhausted));
+        return hash;
     }
 
     @JRubyMethod(name = "with_connection_retry_guard", frame = true)
@@ -594,7 +1518,7 @@ public class RubyJdbcConnection extends RubyObject {
     public IRubyObject write_large_object(ThreadContext context, final IRubyObject[] args)
             throws SQLException, IOException {
         final Ruby runtime = context.getRuntime();
-        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+        IRubyObject result = (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
             public Object call(Connection c) throws SQLException {
                 String sql = "UPDATE " + rubyApi.convertToRubyString(args[2])
                         + " SET " + rubyApi.convertToRubyString(args[1])
@@ -605,8 +1529,8 @@ public class RubyJdbcConnection extends RubyObject {
                     ps = c.prepareStatement(sql);
                     if (args[0].isTrue()) { // binary
                         ByteList outp = rubyApi.convertToRubyString(args[5]).getByteList();
-                        ps.setBinaryStream(1, new ByteArrayInputStream(outp.bytes,
-                                outp.begin, outp.realSize), outp.realSize);
+                        ps.setBinaryStream(1, new ByteArrayInputStream(outp.getUnsafeBytes(),
+                                outp.getBegin(), outp.getRealSize()), outp.getRealSize());
                     } else { // clob
                         String ss = rubyApi.convertToRubyString(args[5]).getUnicodeValue();
                         ps.setCharacterStream(1, new StringReader(ss), ss.length());
@@ -618,6 +1542,8 @@ public class RubyJdbcConnection extends RubyObject {
                 return runtime.getNil();
             }
         });
+        wrote(context, "UPDATE " + args[2]);
+        return result;
     }
 
     /**
@@ -704,6 +1630,13 @@ public class RubyJdbcConnection extends RubyObject {
 
     protected Connection getConnection(boolean error) {
         Connection conn = (Connection) dataGetStruct();
+        if (error && conn == null && getMultiplexPool(getRuntime().getCurrentContext()) != null) {
+            return lease(getRuntime().getCurrentContext());
+        }
+        if (error && conn == null && isConnectPending(getRuntime().getCurrentContext())) {
+            reconnect();
+            conn = (Connection) dataGetStruct();
+        }
         if(error && conn == null) {
             RubyClass err = getRuntime().getModule("ActiveRecord").getClass("ConnectionNotEstablished");
             throw new RaiseException(getRuntime(), err, "no connection available", false);
@@ -711,6 +1644,14 @@ public class RubyJdbcConnection extends RubyObject {
         return conn;
     }
 
+    /**
+     * With <tt>:lazy</tt> configured the connection is not opened until a
+     * call actually needs it (unless disconnect! got called meanwhile).
+     */
+    protected boolean isConnectPending(ThreadContext context) {
+        return !disconnected && dataGetStruct() == null && config_value(context, "lazy").isTrue();
+    }
+
     protected IRubyObject getAdapter(ThreadContext context) {
         return callMethod(context, "adapter");
     }
@@ -721,6 +1662,9 @@ public class RubyJdbcConnection extends RubyObject {
 
     protected JdbcConnectionFactory getConnectionFactory() throws RaiseException {
         IRubyObject connection_factory = getInstanceVariable("@connection_factory");
+        Object[] converted = convertedConnectionFactory;
+        if (converted != null && converted[0] == connection_factory) return (JdbcConnectionFactory) converted[1];
+
         JdbcConnectionFactory factory = null;
         try {
             factory = (JdbcConnectionFactory) JavaEmbedUtils.rubyToJava(
@@ -731,6 +1675,7 @@ public class RubyJdbcConnection extends RubyObject {
         if (factory == null) {
             throw getRuntime().newRuntimeError("@connection_factory not set properly");
         }
+        convertedConnectionFactory = new Object[] { connection_factory, factory };
         return factory;
     }
 
@@ -882,7 +1827,15 @@ public class RubyJdbcConnection extends RubyObject {
 
     private IRubyObject setConnection(Connection c) {
         close(getConnection()); // Close previously open connection if there is one
-
+        autoCommit = null;
+        isolation = null;
+        readOnly = null;
+        restoreIsolation = null;
+        restoreReadOnly = null;
+        savepoints.clear();
+        if (statementCache != null) statementCache.clear();
+
+        if (c != null) disconnected = false;
         IRubyObject rubyconn = c != null ? wrappedConnection(c) : getRuntime().getNil();
         setInstanceVariable("@connection", rubyconn);
         dataWrapStruct(c);
@@ -939,7 +1892,7 @@ public class RubyJdbcConnection extends RubyObject {
         }
     }
 
-    private static void setValuesOnPS(PreparedStatement ps, ThreadContext context,
+    protected static void setValuesOnPS(PreparedStatement ps, ThreadContext context,
             IRubyObject valuesArg, IRubyObject typesArg) throws SQLException {
         RubyArray values = (RubyArray) valuesArg;
         RubyArray types = (RubyArray) typesArg;
@@ -1043,6 +1996,7 @@ public class RubyJdbcConnection extends RubyObject {
         return RubyString.newUnicodeString(runtime, str);
     }
 
+    protected static final int TABLE_NAME = 3;
     protected static final int COLUMN_NAME = 4;
     protected static final int DATA_TYPE = 5;
     protected static final int TYPE_NAME = 6;
@@ -1075,11 +2029,231 @@ public class RubyJdbcConnection extends RubyObject {
         return type;
     }
 
-    private IRubyObject defaultValueFromResultSet(Ruby runtime, ResultSet resultSet)
+    private static Map<String, Object> typeInfoRow(RubyHash row) {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        for (Object e : row.directEntrySet()) {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) e;
+            IRubyObject value = (IRubyObject) entry.getValue();
+            Object javaValue;
+            if (value.isNil()) {
+                javaValue = null;
+            } else if (value instanceof RubyInteger) {
+                javaValue = Long.valueOf(RubyNumeric.num2long(value));
+            } else if (value instanceof RubyFloat) {
+                javaValue = Double.valueOf(((RubyFloat) value).getDoubleValue());
+            } else if (value == value.getRuntime().getTrue() || value == value.getRuntime().getFalse()) {
+                javaValue = Boolean.valueOf(value.isTrue());
+            } else {
+                javaValue = value.toString();
+            }
+            values.put(entry.getKey().toString(), javaValue);
+        }
+        return values;
+    }
+
+    private static IRubyObject typeInfoRow(Ruby runtime, Map<String, Object> row) {
+        RubyHash hash = RubyHash.newHash(runtime);
+        for (Map.Entry<String, Object> entry : row.entrySet()) {
+            Object value = entry.getValue();
+            IRubyObject rubyValue;
+            if (value == null) {
+                rubyValue = runtime.getNil();
+            } else if (value instanceof Long) {
+                rubyValue = runtime.newFixnum(((Long) value).longValue());
+            } else if (value instanceof Double) {
+                rubyValue = runtime.newFloat(((Double) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                rubyValue = runtime.newBoolean(((Boolean) value).booleanValue());
+            } else {
+                rubyValue = RubyString.newUnicodeString(runtime, (String) value);
+            }
+            hash.op_aset(runtime.getCurrentContext(), RubyString.newUnicodeString(runtime, entry.getKey()), rubyValue);
+        }
+        return hash;
+    }
+
+    private static String schemaCacheKey(String table, String schema) {
+        return schema == null || schema.length() == 0 ? table : schema + "." + table;
+    }
+
+    private TableSchema cachedSchema(IRubyObject table, IRubyObject schema) {
+        if (schemaCache.isEmpty() || table.isNil()) return null;
+
+        return schemaCache.get(schemaCacheKey(table.toString(), schema == null ? null : toStringOrNull(schema)));
+    }
+
+    /**
+     * Reads the columns, primary keys and indexes of all the tables in the
+     * schema, keyed by their JDBC table names.
+     */
+    private Map<String, TableSchema> readSchema(ThreadContext context, Connection c, String schemaName)
             throws SQLException {
-        String defaultValue = resultSet.getString(COLUMN_DEF);
+        DatabaseMetaData metadata = c.getMetaData();
+        TableNameComponents components = extractTableNameComponents(c, schemaName, "%");
+        Map<String, TableSchema> tables = new LinkedHashMap<String, TableSchema>();
+
+        loadColumns(metadata, components, tables);
+        loadPrimaryKeys(metadata, components, tables);
+        loadIndexes(context, metadata, components, tables, schemaName);
+        return tables;
+    }
+
+    private void loadColumns(DatabaseMetaData metadata, TableNameComponents components,
+            Map<String, TableSchema> tables) throws SQLException {
+        ResultSet rs = null;
+        try {
+            rs = metadata.getTables(components.catalog, components.schema, components.table, getTableTypes());
+            while (rs.next()) {
+                String tableName = rs.getString(TABLE_NAME);
+                tables.put(tableName, new TableSchema(caseConvertIdentifierForRails(metadata, tableName)));
+            }
+            close(rs);
+
+            rs = metadata.getColumns(components.catalog, components.schema, components.table, null);
+            while (rs.next()) {
+                TableSchema table = tables.get(rs.getString(TABLE_NAME));
+                if (table != null) table.columns.add(columnFromResultSet(metadata, rs));
+            }
+        } finally {
+            close(rs);
+        }
+    }
+
+    private void loadPrimaryKeys(DatabaseMetaData metadata, TableNameComponents components,
+            Map<String, TableSchema> tables) throws SQLException {
+        ResultSet rs = null;
+        try {
+            boolean found = false;
+            try {
+                rs = metadata.getPrimaryKeys(components.catalog, components.schema, null);
+                while (rs.next()) {
+                    TableSchema table = tables.get(rs.getString(TABLE_NAME));
+                    if (table == null) continue;
+
+                    table.primaryKeys.add(caseConvertIdentifierForRails(metadata, rs.getString(COLUMN_NAME)));
+                    found = true;
+                }
+            } catch (SQLException e) {
+                found = false;
+            }
+            if (!found) { // the driver wants a table name
+                for (Map.Entry<String, TableSchema> entry : tables.entrySet()) {
+                    close(rs);
+                    rs = metadata.getPrimaryKeys(components.catalog, components.schema, entry.getKey());
+                    List<String> keys = entry.getValue().primaryKeys;
+                    keys.clear();
+                    while (rs.next()) keys.add(caseConvertIdentifierForRails(metadata, rs.getString(COLUMN_NAME)));
+                }
+            }
+        } finally {
+            close(rs);
+        }
+    }
+
+    private void loadIndexes(ThreadContext context, DatabaseMetaData metadata, TableNameComponents components,
+            Map<String, TableSchema> tables, String schemaName) throws SQLException {
+        ResultSet rs = null;
+        boolean found = false;
+        try {
+            rs = metadata.getIndexInfo(components.catalog, components.schema, null, false, true);
+            TableSchema.Index current = null;
+            TableSchema currentTable = null;
+
+            while (rs.next()) {
+                String indexName = rs.getString(INDEX_NAME);
+                TableSchema table = tables.get(rs.getString(INDEX_TABLE_NAME));
+                if (table == null) continue;
+
+                found = true; // primary key indexes count too
+                if (indexName == null) continue;
+
+                String columnName = caseConvertIdentifierForRails(metadata, rs.getString(INDEX_COLUMN_NAME));
+                if (table.primaryKeys.contains(columnName)) continue;
+
+                indexName = caseConvertIdentifierForRails(metadata, indexName);
+                if (table != currentTable || !indexName.equals(current.name)) {
+                    currentTable = table;
+                    current = new TableSchema.Index(indexName, !rs.getBoolean(INDEX_NON_UNIQUE));
+                    table.indexes.add(current);
+                }
+                current.columns.add(columnName);
+            }
+        } catch (SQLException e) {
+            found = false;
+        } finally {
+            close(rs);
+        }
 
-        return defaultValue == null ? runtime.getNil() : RubyString.newUnicodeString(runtime, defaultValue);
+        if (!found) { // the driver wants a table name
+            for (TableSchema table : tables.values()) {
+                table.indexes.clear();
+                RubyArray indexes = (RubyArray) indexes(context, table.name, null, schemaName);
+                for (int i = 0; i < indexes.getLength(); i++) {
+                    IRubyObject definition = indexes.eltInternal(i);
+                    TableSchema.Index index = new TableSchema.Index(definition.callMethod(context, "name").toString(),
+                            definition.callMethod(context, "unique").isTrue());
+                    RubyArray columns = (RubyArray) definition.callMethod(context, "columns");
+                    for (int j = 0; j < columns.getLength(); j++) index.columns.add(columns.eltInternal(j).toString());
+                    table.indexes.add(index);
+                }
+            }
+        }
+    }
+
+    private TableSchema.Column columnFromResultSet(DatabaseMetaData metadata, ResultSet rs) throws SQLException {
+        String name = rs.getString(COLUMN_NAME);
+        return new TableSchema.Column(name, caseConvertIdentifierForRails(metadata, name),
+                rs.getString(COLUMN_DEF), typeFromResultSet(rs), !rs.getString(IS_NULLABLE).trim().equals("NO"));
+    }
+
+    private IRubyObject newColumn(ThreadContext context, IRubyObject jdbcCol, TableSchema.Column column) {
+        Ruby runtime = context.getRuntime();
+        return jdbcCol.callMethod(context, "new",
+                new IRubyObject[] {
+                    getInstanceVariable("@config"),
+                    RubyString.newUnicodeString(runtime, column.railsName),
+                    column.defaultValue == null ? runtime.getNil() : RubyString.newUnicodeString(runtime, column.defaultValue),
+                    RubyString.newUnicodeString(runtime, column.type),
+                    runtime.newBoolean(column.nullable)
+                });
+    }
+
+    private List<IRubyObject> columnsOf(ThreadContext context, TableSchema table) {
+        List<IRubyObject> columns = table.rubyColumns;
+        if (columns == null) {
+            IRubyObject jdbcCol = getJdbcColumnClass(context);
+            columns = new ArrayList<IRubyObject>(table.columns.size());
+            for (TableSchema.Column column : table.columns) {
+                IRubyObject rubyColumn = newColumn(context, jdbcCol, column);
+                if (table.primaryKeys.contains(column.railsName)) {
+                    rubyColumn.callMethod(context, "primary=", context.getRuntime().getTrue());
+                }
+                columns.add(rubyColumn);
+            }
+            table.rubyColumns = columns;
+        }
+        return columns;
+    }
+
+    private List<IRubyObject> indexesOf(ThreadContext context, TableSchema table) {
+        List<IRubyObject> indexes = table.rubyIndexes;
+        if (indexes == null) {
+            Ruby runtime = context.getRuntime();
+            RubyModule indexDefinitionClass = getConnectionAdapters(runtime).getClass("IndexDefinition");
+            indexes = new ArrayList<IRubyObject>(table.indexes.size());
+            for (TableSchema.Index index : table.indexes) {
+                RubyArray columns = runtime.newArray();
+                for (String column : index.columns) columns.append(RubyString.newUnicodeString(runtime, column));
+                indexes.add(indexDefinitionClass.callMethod(context, "new", new IRubyObject[] {
+                    RubyString.newUnicodeString(runtime, table.name),
+                    RubyString.newUnicodeString(runtime, index.name),
+                    runtime.newBoolean(index.unique),
+                    columns
+                }));
+            }
+            table.rubyIndexes = indexes;
+        }
+        return indexes;
     }
 
     private IRubyObject unmarshal_columns(ThreadContext context, DatabaseMetaData metadata,
@@ -1090,7 +2264,7 @@ public class RubyJdbcConnection extends RubyObject {
             List pkeyNames = new ArrayList();
             String clzName = metadata.getClass().getName().toLowerCase();
 
-            RubyHash types = (RubyHash) native_database_types();
+            RubyHash types = (RubyHash) native_database_types(context);
             IRubyObject jdbcCol = getJdbcColumnClass(context);
 
             while (pkeys.next()) {
@@ -1098,19 +2272,11 @@ public class RubyJdbcConnection extends RubyObject {
             }
 
             while (rs.next()) {
-                String colName = rs.getString(COLUMN_NAME);
-                IRubyObject column = jdbcCol.callMethod(context, "new",
-                        new IRubyObject[] {
-                            getInstanceVariable("@config"),
-                            RubyString.newUnicodeString(runtime,
-                                    caseConvertIdentifierForRails(metadata, colName)),
-                            defaultValueFromResultSet(runtime, rs),
-                            RubyString.newUnicodeString(runtime, typeFromResultSet(rs)),
-                            runtime.newBoolean(!rs.getString(IS_NULLABLE).trim().equals("NO"))
-                        });
+                TableSchema.Column col = columnFromResultSet(metadata, rs);
+                IRubyObject column = newColumn(context, jdbcCol, col);
                 columns.add(column);
 
-                if (pkeyNames.contains(colName)) {
+                if (pkeyNames.contains(col.name)) {
                     column.callMethod(context, "primary=", runtime.getTrue());
                 }
             }
@@ -1172,15 +2338,608 @@ public class RubyJdbcConnection extends RubyObject {
         return runtime.newArray(results);
     }
 
+    protected Object withReadConnection(ThreadContext context, String sql, SQLBlock block) {
+        if (getReplicaRouter(context) == null) return withConnectionAndRetry(context, block);
+
+        return withReadConnection(context, new ByteList(ByteList.plain(sql), false), block);
+    }
+
+    /**
+     * Run a plain read (see SQLClassifier.Classification#isReadOnly) on one
+     * of the replicas, when there are any, unless a transaction is open or
+     * there was a write within the sticky window. Everything else runs on
+     * the primary, and so do reads when the chosen replica turns out to be
+     * broken. Statements that are not plain reads count as writes.
+     */
+    protected Object withReadConnection(ThreadContext context, ByteList sql, SQLBlock block) {
+        ReplicaRouter router = getReplicaRouter(context);
+        if (router == null) return withConnectionAndRetry(context, block);
+
+        if (!SQLClassifier.classify(sql, backslashEscapes()).isReadOnly()) {
+            Object result = withConnectionAndRetry(context, block);
+            router.wrote();
+            return result;
+        }
+        if (router.isSticky() || inTransaction(context)) return withConnectionAndRetry(context, block);
+
+        int replica = router.choose();
+        if (replica >= 0) {
+            Connection c = null;
+            try {
+                long start = System.nanoTime();
+                c = router.connection(replica);
+                Object result = block.call(c);
+                readFromReplica = true;
+                router.succeeded(replica, System.nanoTime() - start);
+                return result;
+            } catch (SQLException e) {
+                if (c != null && !isConnectionBroken(context, c)) throw wrap(context, e);
+                router.failed(replica);
+            } catch (RaiseException e) {
+                if (c != null) throw e;
+                router.failed(replica); // could not connect
+            }
+        }
+        return withConnectionAndRetry(context, block);
+    }
+
+    /**
+     * Auto-commit mode of the current connection, as tracked locally: some
+     * drivers make a round trip to the server for every getAutoCommit, so
+     * the driver is only asked once per connection.
+     */
+    protected boolean isAutoCommit(Connection c) throws SQLException {
+        Boolean state = autoCommit;
+        if (state == null) autoCommit = state = Boolean.valueOf(c.getAutoCommit());
+        return state.booleanValue();
+    }
+
+    /**
+     * Changes the auto-commit mode of the current connection unless it is
+     * known to be in that mode already.
+     */
+    protected void setAutoCommit(Connection c, boolean value) throws SQLException {
+        Boolean state = autoCommit;
+        if (state != null && state.booleanValue() == value) return;
+
+        autoCommit = null; // unknown should the driver fail half way
+        c.setAutoCommit(value);
+        autoCommit = Boolean.valueOf(value);
+    }
+
+    /** The transaction isolation level of the connection, tracked like auto-commit. */
+    protected int getTransactionIsolation(Connection c) throws SQLException {
+        Integer level = isolation;
+        if (level == null) isolation = level = Integer.valueOf(c.getTransactionIsolation());
+        return level.intValue();
+    }
+
+    protected void setTransactionIsolation(Connection c, int level) throws SQLException {
+        isolation = null;
+        c.setTransactionIsolation(level);
+        isolation = Integer.valueOf(level);
+    }
+
+    /** Read only mode of the connection, tracked like auto-commit. */
+    protected boolean isReadOnly(Connection c) throws SQLException {
+        Boolean state = readOnly;
+        if (state == null) readOnly = state = Boolean.valueOf(c.isReadOnly());
+        return state.booleanValue();
+    }
+
+    protected void setReadOnly(Connection c, boolean value) throws SQLException {
+        readOnly = null;
+        c.setReadOnly(value);
+        readOnly = Boolean.valueOf(value);
+    }
+
+    /** Puts back what begin with options changed, once out of the transaction. */
+    private void restoreTransactionSettings(Connection c) throws SQLException {
+        Integer level = restoreIsolation;
+        Boolean state = restoreReadOnly;
+        restoreIsolation = null;
+        restoreReadOnly = null;
+        if (state != null) setReadOnly(c, state.booleanValue());
+        if (level != null) setTransactionIsolation(c, level.intValue());
+    }
+
+    private Savepoint savepoint(String name) throws SQLException {
+        Savepoint savepoint = savepoints.get(name);
+        if (savepoint == null) throw new SQLException("no savepoint named " + name);
+
+        return savepoint;
+    }
+
+    private void forgetSavepointsAfter(Savepoint savepoint, boolean inclusive) {
+        boolean after = false;
+        for (Iterator<Savepoint> i = savepoints.values().iterator(); i.hasNext(); ) {
+            Savepoint next = i.next();
+            if (next == savepoint) {
+                after = true;
+                if (!inclusive) continue;
+            }
+            if (after) i.remove();
+        }
+    }
+
+    private boolean inTransaction(ThreadContext context) {
+        if (getConnection() == null && getMultiplexPool(context) != null) return false;
+        try {
+            return !isAutoCommit(getConnection(true));
+        } catch (SQLException e) {
+            throw wrap(context, e);
+        }
+    }
+
+    /**
+     * Called after a statement that (possibly) changed data: reads go to the
+     * primary for the :replica_sticky window and cached results for the
+     * tables written to are dropped. Inside a transaction the tables are
+     * invalidated once more when it ends.
+     */
+    protected void wrote(ThreadContext context, IRubyObject sql) {
+        final RubyString string = sql.convertToString();
+        wrote(context, string.getByteList(), string.toString());
+    }
+
+    protected void wrote(ThreadContext context, String sql) {
+        wrote(context, new ByteList(ByteList.plain(sql), false), sql);
+    }
+
+    private void wrote(ThreadContext context, ByteList bytes, String sql) {
+        if (!schemaCache.isEmpty() && SQLClassifier.kindOf(bytes) == SQLClassifier.Kind.DDL) {
+            schemaCache.clear();
+        }
+
+        ReplicaRouter router = getReplicaRouter(context);
+        if (router != null) router.wrote();
+
+        ResultCache cache = getResultCache(context);
+        if (cache == null) return;
+
+        if (ResultCache.changesSchema(sql, backslashEscapes())) { // names resolve elsewhere from now on
+            resultCacheScope = resultCacheBaseScope + "|" + sql.trim().toLowerCase();
+            return;
+        }
+
+        String[] tables = ResultCache.writtenTables(sql, backslashEscapes());
+        cache.invalidate(resultCacheScope, tables);
+        if (inTransaction(context)) {
+            if (tables == null) {
+                transactionWroteAll = true;
+            } else {
+                for (String table : tables) transactionTables.add(table);
+            }
+        }
+    }
+
+    private void transactionEnded(ThreadContext context) {
+        ReplicaRouter router = getReplicaRouter(context);
+        if (router != null) router.wrote();
+
+        if (resultCache != null && (transactionWroteAll || !transactionTables.isEmpty())) {
+            resultCache.invalidate(resultCacheScope, transactionWroteAll ? null :
+                    transactionTables.toArray(new String[transactionTables.size()]));
+        }
+        transactionWroteAll = false;
+        transactionTables.clear();
+    }
+
+    /**
+     * Set up from the :result_cache config, true or a hash with
+     * :max_entries and :max_bytes limits (for the whole JVM). Results are
+     * shared by the connections with the same :url (or :jndi name).
+     */
+    private ResultCache getResultCache(ThreadContext context) {
+        if (!resultCacheConfigured) {
+            resultCacheConfigured = true;
+
+            IRubyObject config = config_value(context, "result_cache");
+            if (config.isTrue()) {
+                resultCache = ResultCache.getInstance();
+                if (config instanceof RubyHash) {
+                    RubyHash options = (RubyHash) config;
+                    IRubyObject entries = options.op_aref(context, context.getRuntime().newSymbol("max_entries"));
+                    IRubyObject bytes = options.op_aref(context, context.getRuntime().newSymbol("max_bytes"));
+                    resultCache.configure(entries.isNil() ? 1000 : RubyNumeric.fix2int(entries),
+                            bytes.isNil() ? 16 * 1024 * 1024 : RubyNumeric.num2long(bytes));
+                }
+                IRubyObject scope = config_value(context, "url");
+                if (scope.isNil()) scope = config_value(context, "jndi");
+                IRubyObject schema = config_value(context, "schema_search_path");
+                if (schema.isNil()) schema = config_value(context, "schema");
+                resultCacheBaseScope = scope + "|" + config_value(context, "username");
+                resultCacheScope = resultCacheBaseScope + "|" + schema;
+            }
+        }
+        return resultCache;
+    }
+
+    private static final int DEFAULT_STATEMENT_CACHE_SIZE = 100;
+
+    private StatementCache getStatementCache(ThreadContext context) {
+        if (multiplexPool != null) return statementCache; // the leased connection's
+        if (!statementCacheConfigured) {
+            statementCacheConfigured = true;
+
+            IRubyObject size = config_value(context, "statement_cache_size");
+            if (!size.isNil() && RubyNumeric.fix2int(size) > 0) {
+                statementCache = new StatementCache(RubyNumeric.fix2int(size));
+            }
+        }
+        return statementCache;
+    }
+
+    /**
+     * Prepares the statement through the statement cache when there is one,
+     * hand it back with {@link #release(PreparedStatement)} when done.
+     */
+    protected PreparedStatement prepare(ThreadContext context, Connection c, String sql,
+            boolean generatedKeys) throws SQLException {
+        return prepare(context, c, sql, generatedKeys, false);
+    }
+
+    /**
+     * Like {@link #prepare(ThreadContext, Connection, String, boolean)}, with
+     * <tt>record</tt> counting the statement for the workload recorder.
+     */
+    protected PreparedStatement prepare(ThreadContext context, Connection c, String sql,
+            boolean generatedKeys, boolean record) throws SQLException {
+        if (record) {
+            WorkloadRecorder recorder = getWorkloadRecorder(context);
+            if (recorder != null) {
+                if (workloadPending) primeWorkload(context, recorder, c);
+                recorder.record(sql);
+            }
+        }
+        StatementCache cache = getStatementCache(context);
+        if (cache != null) return cache.prepare(c, sql, generatedKeys);
+
+        return generatedKeys ? c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) : c.prepareStatement(sql);
+    }
+
+    protected void release(PreparedStatement ps) {
+        if (statementCache == null) close(ps);
+    }
+
+    private MultiplexPool getMultiplexPool(ThreadContext context) {
+        if (!multiplexConfigured) {
+            IRubyObject config = getInstanceVariable("@config");
+            if (config == null || config.isNil()) return null; // not configured yet
+            multiplexConfigured = true;
+
+            IRubyObject multiplex = config_value(context, "multiplex");
+            if (multiplex.isTrue()) {
+                int size = 10;
+                long timeout = 5000;
+                if (multiplex instanceof RubyHash) {
+                    RubyHash options = (RubyHash) multiplex;
+                    IRubyObject value = options.op_aref(context, context.getRuntime().newSymbol("size"));
+                    if (!value.isNil()) size = RubyNumeric.fix2int(value);
+                    value = options.op_aref(context, context.getRuntime().newSymbol("timeout"));
+                    if (!value.isNil()) timeout = (long) (RubyNumeric.num2dbl(value) * 1000);
+                }
+                IRubyObject cacheSize = config_value(context, "statement_cache_size");
+                IRubyObject scope = config_value(context, "url");
+                if (scope.isNil()) scope = config_value(context, "jndi");
+                // connections (and their session state) are only shared with the same credentials
+                IRubyObject password = config_value(context, "password");
+                multiplexPool = MultiplexPool.forScope(config_value(context, "driver") + "|" + scope + "|" +
+                        config_value(context, "username") + "|" + (password.isNil() ? "" : digest(password.toString())),
+                        getConnectionFactory(), size, timeout,
+                        cacheSize.isNil() ? DEFAULT_STATEMENT_CACHE_SIZE : RubyNumeric.fix2int(cacheSize));
+            }
+        }
+        return multiplexPool;
+    }
+
+    private static String digest(String value) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return hex.toString();
+        } catch (Exception e) { // SHA-256 and UTF-8 are always there
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Takes a connection from the :multiplex pool, held (pinned) until the
+     * statement ends or, once a transaction begins on it, until the
+     * transaction does.
+     */
+    private Connection lease(ThreadContext context) {
+        Connection c;
+        try {
+            c = multiplexPool.lease();
+        } catch (SQLException e) {
+            if (!MultiplexPool.TIMEOUT_STATE.equals(e.getSQLState())) throw wrap(context, e);
+            Ruby runtime = context.getRuntime();
+            throw new RaiseException(runtime, runtime.getModule("ActiveRecord").getClass("ConnectionTimeoutError"),
+                    e.getMessage(), false);
+        }
+        dataWrapStruct(c);
+        autoCommit = Boolean.TRUE; // only connections in auto-commit mode go back to the pool
+        isolation = null;
+        readOnly = null;
+        statementCache = multiplexPool.statementsOf(c);
+        return c;
+    }
+
+    /**
+     * Drops a connection left in a state it can not be used in any more
+     * (given up in the middle of a statement): a leased :multiplex one is
+     * closed instead of going back to the pool, otherwise the adapter
+     * reconnects (or stays disconnected when that fails).
+     */
+    protected void discardConnection() {
+        try {
+            reconnect();
+        } catch (RaiseException e) {
+            setConnection(null);
+        }
+    }
+
+    /** Hands the leased connection back unless it is in a transaction. */
+    private void releaseIfIdle() {
+        if (multiplexPool != null && leaseDepth == 0 && autoCommit == Boolean.TRUE) unpin(true);
+    }
+
+    /** Hands the leased connection back (or closes it, when not to be reused). */
+    private void unpin(boolean reuse) {
+        Connection c = getConnection();
+        if (c == null) return;
+
+        dataWrapStruct(null);
+        statementCache = null;
+        savepoints.clear();
+        multiplexPool.release(c, reuse);
+    }
+
+    /*
+     * &block
+     *
+     * Runs the block holding on to the connection leased in :multiplex mode,
+     * so that statements depending on the session (an insert and reading its
+     * identity back) run on the same one.  Without :multiplex it just runs
+     * the block.
+     */
+    @JRubyMethod(name = "with_pinned_connection", frame = true)
+    public IRubyObject with_pinned_connection(ThreadContext context, Block block) {
+        pinConnection(context);
+        try {
+            return block.yield(context, context.getRuntime().getNil());
+        } finally {
+            releaseConnection(context);
+        }
+    }
+
+    /**
+     * Holds on to the connection leased in :multiplex mode (once a statement
+     * leased it) until the matching releaseConnection. Does nothing without
+     * :multiplex.
+     */
+    protected void pinConnection(ThreadContext context) {
+        if (getMultiplexPool(context) != null) leaseDepth++;
+    }
+
+    protected void releaseConnection(ThreadContext context) {
+        if (getMultiplexPool(context) != null && --leaseDepth == 0) releaseIfIdle();
+    }
+
+    /*
+     * sql
+     *
+     * Executes a statement setting up the session (a SET of some sort), which
+     * every connection opened later on runs as well, in :multiplex mode every
+     * physical connection the next time it gets leased. Without a connection
+     * open yet (:lazy) it only runs once there is one.
+     */
+    @JRubyMethod(name = "execute_session", required = 1)
+    public IRubyObject execute_session(ThreadContext context, IRubyObject sql) {
+        String statement = sql.convertToString().getUnicodeValue();
+        if (getMultiplexPool(context) != null) {
+            multiplexPool.addSessionSQL(statement);
+        } else {
+            sessionSQL.remove(statement);
+            sessionSQL.add(statement);
+        }
+        if (getConnection() == null) return context.getRuntime().getNil();
+        return execute(context, sql);
+    }
+
+    private void initSession(ThreadContext context, Connection c) {
+        Statement stmt = null;
+        try {
+            stmt = c.createStatement();
+            for (String sql : sessionSQL) stmt.execute(sql);
+        } catch (SQLException e) {
+            throw wrap(context, e);
+        } finally {
+            close(stmt);
+        }
+    }
+
+    /*
+     * Hands a connection leased in :multiplex mode back to the shared pool,
+     * unless a transaction is open on it (there is nothing to do otherwise).
+     */
+    @JRubyMethod(name = "release_connection")
+    public IRubyObject release_connection(ThreadContext context) {
+        releaseIfIdle();
+        return context.getRuntime().getNil();
+    }
+
+    @JRubyMethod(name = "multiplexed?")
+    public IRubyObject multiplexed_p(ThreadContext context) {
+        return context.getRuntime().newBoolean(getMultiplexPool(context) != null);
+    }
+
+    @JRubyMethod(name = "multiplex_stats")
+    public IRubyObject multiplex_stats(ThreadContext context) {
+        Ruby runtime = context.getRuntime();
+        MultiplexPool pool = getMultiplexPool(context);
+        if (pool == null) return runtime.getNil();
+
+        long[] stats = pool.stats();
+        RubyHash hash = RubyHash.newHash(runtime);
+        String[] names = { "size", "open", "idle", "leases", "waits", "timeouts" };
+        for (int i = 0; i < names.length; i++) hash.op_aset(context, runtime.newSymbol(names[i]), runtime.newFixnum(stats[i]));
+        return hash;
+    }
+
+    private CircuitBreaker getCircuitBreaker(ThreadContext context) {
+        if (!circuitBreakerConfigured) {
+            circuitBreakerConfigured = true;
+
+            IRubyObject config = config_value(context, "circuit_breaker");
+            if (config.isTrue()) {
+                int threshold = 5;
+                long coolDown = 30000;
+                if (config instanceof RubyHash) {
+                    RubyHash options = (RubyHash) config;
+                    IRubyObject value = options.op_aref(context, context.getRuntime().newSymbol("failure_threshold"));
+                    if (!value.isNil()) threshold = RubyNumeric.fix2int(value);
+                    value = options.op_aref(context, context.getRuntime().newSymbol("cool_down"));
+                    if (!value.isNil()) coolDown = (long) (RubyNumeric.num2dbl(value) * 1000);
+                }
+                IRubyObject scope = config_value(context, "url");
+                if (scope.isNil()) scope = config_value(context, "jndi");
+                circuitBreaker = CircuitBreaker.forScope(config_value(context, "driver") + "|" + scope, threshold, coolDown);
+            }
+        }
+        return circuitBreaker;
+    }
+
+    private RaiseException circuitOpen(ThreadContext context, CircuitBreaker breaker) {
+        Ruby runtime = context.getRuntime();
+        RubyClass error = runtime.getModule("ActiveRecord").getClass("ConnectionCircuitOpen");
+        return new RaiseException(runtime, error, "not connecting to " + breaker.scope + " after " +
+                breaker.stats()[4] + " failed attempts, retrying in " + breaker.retryIn() + "s", false);
+    }
+
+    private WorkloadRecorder getWorkloadRecorder(ThreadContext context) {
+        if (!workloadRecorderConfigured) {
+            IRubyObject config = getInstanceVariable("@config");
+            if (config == null || config.isNil()) return null; // not configured yet
+            workloadRecorderConfigured = true;
+
+            IRubyObject file = config_value(context, "workload_file");
+            if (!file.isNil()) {
+                IRubyObject top = config_value(context, "workload_top");
+                IRubyObject interval = config_value(context, "workload_flush_interval");
+                workloadRecorder = WorkloadRecorder.forFile(file.toString(),
+                        top.isNil() ? 50 : RubyNumeric.fix2int(top),
+                        interval.isNil() ? 0 : RubyNumeric.num2long(interval));
+            }
+        }
+        return workloadRecorder;
+    }
+
+    private interface QueryRunner {
+        IRubyObject run();
+    }
+
+    private IRubyObject cachedQuery(ThreadContext context, ResultCache cache, String query, int maxRows,
+            QueryRunner uncached) {
+        if (!SQLClassifier.classify(new ByteList(ByteList.plain(query), false), backslashEscapes()).isReadOnly()) {
+            return uncached.run();
+        }
+
+        String[] tables = ResultCache.cacheableTables(query, backslashEscapes());
+        if (tables.length == 0 || inTransaction(context)) return uncached.run();
+
+        Ruby runtime = context.getRuntime();
+        ResultCache.Key key = new ResultCache.Key(runtime, resultCacheScope, query, maxRows);
+        RubyArray cached = cache.get(key);
+        if (cached != null) return ResultCache.copy(runtime, cached);
+
+        long[] versions = cache.versions(resultCacheScope, tables);
+        readFromReplica = false;
+        IRubyObject result = uncached.run();
+        if (readFromReplica) return result; // possibly lagging behind the primary
+        if (ResultCache.isRows(result)) {
+            cache.put(key, (RubyArray) result, tables, versions);
+            return ResultCache.copy(runtime, (RubyArray) result);
+        }
+        return result;
+    }
+
+    @JRubyMethod(name = "result_cache_stats", meta = true)
+    public static IRubyObject result_cache_stats(ThreadContext context, IRubyObject recv) {
+        Ruby runtime = context.getRuntime();
+        long[] stats = ResultCache.getInstance().stats();
+        long lookups = stats[0] + stats[1];
+        RubyHash hash = RubyHash.newHash(runtime);
+        hash.op_aset(context, runtime.newSymbol("hits"), runtime.newFixnum(stats[0]));
+        hash.op_aset(context, runtime.newSymbol("misses"), runtime.newFixnum(stats[1]));
+        hash.op_aset(context, runtime.newSymbol("hit_ratio"), runtime.newFloat(lookups == 0 ? 0.0 : (double) stats[0] / lookups));
+        hash.op_aset(context, runtime.newSymbol("entries"), runtime.newFixnum(stats[2]));
+        hash.op_aset(context, runtime.newSymbol("bytes"), runtime.newFixnum(stats[3]));
+        hash.op_aset(context, runtime.newSymbol("evictions"), runtime.newFixnum(stats[4]));
+        hash.op_aset(context, runtime.newSymbol("invalidations"), runtime.newFixnum(stats[5]));
+        return hash;
+    }
+
+    @JRubyMethod(name = "clear_result_cache", meta = true)
+    public static IRubyObject clear_result_cache(ThreadContext context, IRubyObject recv) {
+        ResultCache.getInstance().clear();
+        return context.getRuntime().getNil();
+    }
+
+    /**
+     * Replicas are set up from the factories the Ruby side made for the
+     * :replicas config, :replica_selection being :round_robin (default)
+     * or :latency and :replica_sticky the seconds reads stick to the
+     * primary after a write (1 by default).
+     */
+    private ReplicaRouter getReplicaRouter(ThreadContext context) {
+        if (!replicasConfigured) {
+            replicasConfigured = true;
+
+            IRubyObject factories = getInstanceVariable("@replica_factories");
+            if (factories instanceof RubyArray && ((RubyArray) factories).getLength() > 0) {
+                RubyArray list = (RubyArray) factories;
+                JdbcConnectionFactory[] replicas = new JdbcConnectionFactory[list.getLength()];
+                for (int i = 0; i < replicas.length; i++) {
+                    replicas[i] = (JdbcConnectionFactory) JavaEmbedUtils.rubyToJava(
+                            getRuntime(), list.eltInternal(i), JdbcConnectionFactory.class);
+                }
+
+                IRubyObject selection = config_value(context, "replica_selection");
+                IRubyObject sticky = config_value(context, "replica_sticky");
+                boolean byLatency = !selection.isNil() && selection.toString().equals("latency");
+                long stickyMillis = sticky.isNil() ? 1000 : (long) (RubyNumeric.num2dbl(sticky) * 1000);
+                replicaRouter = new ReplicaRouter(replicas, byLatency, stickyMillis);
+            }
+        }
+        return replicaRouter;
+    }
+
     protected Object withConnectionAndRetry(ThreadContext context, SQLBlock block) {
+        if (getMultiplexPool(context) == null) return withConnectionAndRetryPinned(context, block);
+
+        leaseDepth++;
+        try {
+            return withConnectionAndRetryPinned(context, block);
+        } finally {
+            if (--leaseDepth == 0) releaseIfIdle();
+        }
+    }
+
+    private Object withConnectionAndRetryPinned(ThreadContext context, SQLBlock block) {
         int tries = 1;
         int i = 0;
         Throwable toWrap = null;
-        boolean autoCommit = false;
+        boolean inAutoCommit = false;
         while (i < tries) {
             Connection c = getConnection(true);
             try {
-                autoCommit = c.getAutoCommit();
+                inAutoCommit = isAutoCommit(c);
+                if (inAutoCommit && failover != null && failover.getRecoveries() != failoverRecoveries) {
+                    c = failBack(c);
+                }
                 return block.call(c);
             } catch (Exception e) {
                 toWrap = e;
@@ -1193,7 +2952,8 @@ public class RubyJdbcConnection extends RubyObject {
                 }
 
                 i++;
-                if (autoCommit) {
+                if (!block.isRetryable()) throw wrap(context, toWrap);
+                if (inAutoCommit) {
                     if (i == 1) {
                         tries = (int) rubyApi.convertToRubyInteger(config_value(context, "retry_count")).getLongValue();
                         if (tries <= 0) {
@@ -1201,7 +2961,7 @@ public class RubyJdbcConnection extends RubyObject {
                         }
                     }
                     if (isConnectionBroken(context, c)) {
-                        reconnect();
+                        reconnect(); // fails fast while the circuit breaker is open
                     } else {
                         throw wrap(context, toWrap);
                     }
@@ -1211,6 +2971,19 @@ public class RubyJdbcConnection extends RubyObject {
         throw wrap(context, toWrap);
     }
 
+    /**
+     * Moves to the host the failover factory would connect to now, when a
+     * host came back up since connecting and it is a better one than the
+     * connection is on. Only done outside of transactions.
+     */
+    private Connection failBack(Connection c) {
+        failoverRecoveries = failover.getRecoveries();
+        if (!failover.hasBetterHostThan(c)) return c;
+
+        reconnect();
+        return getConnection(true);
+    }
+
     protected RuntimeException wrap(ThreadContext context, Throwable exception) {
         Ruby runtime = context.getRuntime();
         RaiseException arError = new RaiseException(runtime, runtime.getModule("ActiveRecord").getClass("JDBCError"),
@@ -1229,6 +3002,14 @@ public class RubyJdbcConnection extends RubyObject {
         return Java.java_to_ruby(this, JavaObject.wrap(getRuntime(), c), Block.NULL_BLOCK);
     }
 
+    /**
+     * Whether a backslash escapes the next character in every quoted string
+     * (rather than only in E'' strings), used when classifying statements.
+     */
+    protected boolean backslashEscapes() {
+        return false;
+    }
+
     /**
      * Some databases support schemas and others do not.
      * For ones which do this method should return true, aiding in decisions regarding schema vs database determination.
@@ -1237,35 +3018,6 @@ public class RubyJdbcConnection extends RubyObject {
         return false;
     }
 
-    private static int whitespace(int start, ByteList bl) {
-        int end = bl.begin + bl.realSize;
-
-        for (int i = start; i < end; i++) {
-            if (!Character.isWhitespace(bl.bytes[i])) return i;
-        }
-
-        return end;
-    }
-
-    private static byte[] CALL = new byte[]{'c', 'a', 'l', 'l'};
-    private static byte[] INSERT = new byte[] {'i', 'n', 's', 'e', 'r', 't'};
-    private static byte[] SELECT = new byte[] {'s', 'e', 'l', 'e', 'c', 't'};
-    private static byte[] WITH = new byte[] {'w', 'i', 't', 'h'};
-    private static byte[] SHOW = new byte[] {'s', 'h', 'o', 'w'};
-
-    private static boolean startsWithNoCaseCmp(ByteList bytelist, byte[] compare) {
-        int p = whitespace(bytelist.begin, bytelist);
-
-        // What the hell is this for?
-        if (bytelist.bytes[p] == '(') p = whitespace(p, bytelist);
-
-        for (int i = 0; i < bytelist.realSize && i < compare.length; i++) {
-            if (Character.toLowerCase(bytelist.bytes[p + i]) != compare[i]) return false;
-        }
-
-        return true;
-    }
-
     private TableNameComponents extractTableNameComponents(Connection connection, String defaultSchema, String tableName) throws SQLException {
         String schemaName = null;
 
@@ -38,6 +38,15 @@ import java.sql.Statement;
 public abstract class SQLBlock {
     protected abstract Object call(Connection c) throws SQLException;
 
+    /**
+     * Whether the block may be called again on a new connection after it
+     * failed. Blocks reading their input from a stream or handing rows out
+     * as they arrive can not be replayed once they started doing so.
+     */
+    protected boolean isRetryable() {
+        return true;
+    }
+
     public void close(Statement statement) {
         RubyJdbcConnection.close(statement);
     }
@@ -0,0 +1,312 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jruby.util.ByteList;
+
+/**
+ * Classifies SQL statements by their leading keyword and counts their
+ * <tt>?</tt> placeholders, working directly on the bytes of the statement.
+ * Leading whitespace, comments and opening parentheses are skipped, and
+ * placeholders inside literals, quoted identifiers or comments are not
+ * counted. A WITH statement is classified by its main statement, so a
+ * data-modifying one is an INSERT, UPDATE or DELETE.
+ *
+ * Backslashes only escape quotes in E'' strings, unless the dialect
+ * always honours them (MySQL).
+ *
+ * Classifications are cached per statement text (the same SQL tends to be
+ * executed over and over) up to {@link #CACHE_LIMIT} entries.
+ */
+public final class SQLClassifier {
+    public enum Kind {
+        SELECT, WITH, VALUES, SHOW, CALL, INSERT, UPDATE, DELETE, DDL, OTHER;
+
+        /** Statements that produce a result set. */
+        public boolean isQuery() {
+            return this == SELECT || this == WITH || this == VALUES || this == SHOW || this == CALL;
+        }
+    }
+
+    public static final class Classification {
+        public final Kind kind;
+        public final int placeholders;
+        private final boolean readOnly;
+
+        Classification(Kind kind, int placeholders, boolean readOnly) {
+            this.kind = kind;
+            this.placeholders = placeholders;
+            this.readOnly = readOnly;
+        }
+
+        public boolean isQuery() { return kind.isQuery(); }
+        public boolean isInsert() { return kind == Kind.INSERT; }
+        public boolean isDDL() { return kind == Kind.DDL; }
+
+        /**
+         * Plain reads: a SELECT, WITH, VALUES or SHOW that neither modifies
+         * data, locks rows (FOR UPDATE/SHARE, LOCK IN SHARE MODE), selects
+         * INTO nor uses sequences. Stored procedure CALLs are not.
+         */
+        public boolean isReadOnly() { return readOnly; }
+    }
+
+    public static final int CACHE_LIMIT = 2048;
+
+    private static final Map<ByteList, Classification> CACHE = new ConcurrentHashMap<ByteList, Classification>();
+    private static final Map<ByteList, Classification> BACKSLASH_CACHE = new ConcurrentHashMap<ByteList, Classification>();
+
+    private static final Classification[] NO_PLACEHOLDERS = new Classification[Kind.values().length * 2];
+    static {
+        for (Kind kind : Kind.values()) {
+            NO_PLACEHOLDERS[kind.ordinal() * 2] = new Classification(kind, 0, false);
+            NO_PLACEHOLDERS[kind.ordinal() * 2 + 1] = new Classification(kind, 0, true);
+        }
+    }
+
+    private static final byte[][] KEYWORDS = {
+        {'s','e','l','e','c','t'}, {'w','i','t','h'}, {'v','a','l','u','e','s'}, {'s','h','o','w'},
+        {'c','a','l','l'}, {'i','n','s','e','r','t'}, {'u','p','d','a','t','e'}, {'d','e','l','e','t','e'},
+        {'c','r','e','a','t','e'}, {'a','l','t','e','r'}, {'d','r','o','p'}, {'t','r','u','n','c','a','t','e'},
+        {'r','e','n','a','m','e'}
+    };
+    private static final Kind[] KEYWORD_KINDS = {
+        Kind.SELECT, Kind.WITH, Kind.VALUES, Kind.SHOW, Kind.CALL, Kind.INSERT, Kind.UPDATE, Kind.DELETE,
+        Kind.DDL, Kind.DDL, Kind.DDL, Kind.DDL, Kind.DDL
+    };
+
+    /** Words that make a query more than a plain read, wherever they appear. */
+    private static final byte[][] WRITE_WORDS = {
+        {'i','n','s','e','r','t'}, {'u','p','d','a','t','e'}, {'d','e','l','e','t','e'}, {'m','e','r','g','e'},
+        {'i','n','t','o'}, {'s','h','a','r','e'}, {'l','o','c','k'}, {'n','e','x','t','v','a','l'},
+        {'s','e','t','v','a','l'}, {'c','u','r','r','v','a','l'}, {'l','a','s','t','v','a','l'}
+    };
+    private static final byte[] NEXT = {'n','e','x','t'};
+    private static final byte[] VALUE = {'v','a','l','u','e'};
+    private static final byte[] MERGE = {'m','e','r','g','e'};
+
+    private SQLClassifier() {}
+
+    public static Classification classify(ByteList sql) {
+        return classify(sql, false);
+    }
+
+    /**
+     * Classify <tt>sql</tt>, with <tt>backslashEscapes</tt> for dialects
+     * where a backslash escapes the next character in any quoted string.
+     */
+    public static Classification classify(ByteList sql, boolean backslashEscapes) {
+        Map<ByteList, Classification> cache = backslashEscapes ? BACKSLASH_CACHE : CACHE;
+        Classification result = cache.get(sql);
+        if (result != null) return result;
+
+        result = scan(sql, backslashEscapes);
+
+        if (cache.size() >= CACHE_LIMIT) cache.clear();
+        cache.put(new ByteList(sql), result); // the string might get modified
+        return result;
+    }
+
+    /** The leading keyword of the statement (WITH is not resolved). */
+    public static Kind kindOf(ByteList sql) {
+        byte[] bytes = sql.getUnsafeBytes();
+        int end = sql.getBegin() + sql.getRealSize();
+        return kindAt(bytes, skipPrefix(bytes, sql.getBegin(), end), end);
+    }
+
+    public static int countPlaceholders(ByteList sql) {
+        return scan(sql, false).placeholders;
+    }
+
+    private static Kind kindAt(byte[] bytes, int p, int end) {
+        for (int k = 0; k < KEYWORDS.length; k++) {
+            if (keywordAt(bytes, p, end, KEYWORDS[k])) return KEYWORD_KINDS[k];
+        }
+        return Kind.OTHER;
+    }
+
+    private static Classification scan(ByteList sql, boolean backslashEscapes) {
+        byte[] bytes = sql.getUnsafeBytes();
+        int begin = sql.getBegin();
+        int end = begin + sql.getRealSize();
+        int start = skipPrefix(bytes, begin, end);
+        Kind kind = kindAt(bytes, start, end);
+
+        int placeholders = 0;
+        int depth = 0;
+        boolean writes = false;
+        boolean afterNext = false;
+        Kind main = null; // of a WITH, the first statement keyword outside of the CTEs
+
+        for (int p = start; p < end; p++) {
+            byte b = bytes[p];
+            switch (b) {
+            case '?':
+                placeholders++;
+                break;
+            case '\'':
+                p = skipQuoted(bytes, p, end, b, backslashEscapes || isEscapeString(bytes, begin, p));
+                break;
+            case '"':
+                p = skipQuoted(bytes, p, end, b, backslashEscapes);
+                break;
+            case '`':
+                p = skipQuoted(bytes, p, end, b, false);
+                break;
+            case '-':
+                if (p + 1 < end && bytes[p + 1] == '-') p = skipLineComment(bytes, p, end);
+                break;
+            case '/':
+                if (p + 1 < end && bytes[p + 1] == '*') p = skipBlockComment(bytes, p, end);
+                break;
+            case '(':
+                depth++;
+                break;
+            case ')':
+                depth--;
+                break;
+            default:
+                if (!isIdentifierStart(b)) break;
+
+                int wordEnd = p + 1;
+                while (wordEnd < end && isIdentifierPart(bytes[wordEnd])) wordEnd++;
+
+                if (!writes) {
+                    for (int w = 0; w < WRITE_WORDS.length; w++) {
+                        if (wordIs(bytes, p, wordEnd, WRITE_WORDS[w])) {
+                            writes = true;
+                            break;
+                        }
+                    }
+                    if (afterNext && wordIs(bytes, p, wordEnd, VALUE)) writes = true; // NEXT VALUE FOR
+                    afterNext = wordIs(bytes, p, wordEnd, NEXT);
+                }
+                if (kind == Kind.WITH && main == null && depth <= 0 && p > start) {
+                    Kind statement = kindAt(bytes, p, wordEnd);
+                    if (statement == Kind.SELECT || statement == Kind.VALUES || statement == Kind.INSERT ||
+                            statement == Kind.UPDATE || statement == Kind.DELETE) {
+                        main = statement;
+                    } else if (wordIs(bytes, p, wordEnd, MERGE)) {
+                        main = Kind.OTHER;
+                    }
+                }
+                p = wordEnd - 1;
+            }
+        }
+
+        if (kind == Kind.WITH && main != null && main != Kind.SELECT && main != Kind.VALUES) kind = main;
+        boolean readOnly = !writes &&
+            (kind == Kind.SELECT || kind == Kind.WITH || kind == Kind.VALUES || kind == Kind.SHOW);
+
+        if (placeholders == 0) return NO_PLACEHOLDERS[kind.ordinal() * 2 + (readOnly ? 1 : 0)];
+        return new Classification(kind, placeholders, readOnly);
+    }
+
+    /**
+     * Skip whitespace, comments and opening parentheses before the first
+     * keyword.
+     */
+    private static int skipPrefix(byte[] bytes, int p, int end) {
+        while (p < end) {
+            byte b = bytes[p];
+            if (b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == '(') {
+                p++;
+            } else if (b == '-' && p + 1 < end && bytes[p + 1] == '-') {
+                p = skipLineComment(bytes, p, end) + 1;
+            } else if (b == '/' && p + 1 < end && bytes[p + 1] == '*') {
+                p = skipBlockComment(bytes, p, end) + 1;
+            } else {
+                break;
+            }
+        }
+        return p;
+    }
+
+    private static boolean keywordAt(byte[] bytes, int p, int end, byte[] keyword) {
+        if (end - p < keyword.length) return false;
+
+        for (int i = 0; i < keyword.length; i++) {
+            if ((bytes[p + i] | 0x20) != keyword[i]) return false;
+        }
+
+        if (p + keyword.length == end) return true;
+        return !isIdentifierPart(bytes[p + keyword.length]);
+    }
+
+    private static boolean wordIs(byte[] bytes, int p, int end, byte[] word) {
+        if (end - p != word.length) return false;
+
+        for (int i = 0; i < word.length; i++) {
+            if ((bytes[p + i] | 0x20) != word[i]) return false;
+        }
+        return true;
+    }
+
+    private static boolean isIdentifierStart(byte b) {
+        return b == '_' || ((b | 0x20) >= 'a' && (b | 0x20) <= 'z');
+    }
+
+    private static boolean isIdentifierPart(byte b) {
+        return b == '_' || b == '$' || (b >= '0' && b <= '9') || ((b | 0x20) >= 'a' && (b | 0x20) <= 'z');
+    }
+
+    /** An E'' (PostgreSQL escape) string starts at the quote at <tt>p</tt>. */
+    private static boolean isEscapeString(byte[] bytes, int begin, int p) {
+        return p > begin && (bytes[p - 1] | 0x20) == 'e' && (p - 1 == begin || !isIdentifierPart(bytes[p - 2]));
+    }
+
+    /** Returns the position of the closing quote (or the last byte). */
+    private static int skipQuoted(byte[] bytes, int p, int end, byte quote, boolean backslashEscapes) {
+        for (p++; p < end; p++) {
+            byte b = bytes[p];
+            if (b == '\\' && backslashEscapes) {
+                p++;
+            } else if (b == quote) {
+                return p;
+            }
+        }
+        return end - 1;
+    }
+
+    /** Returns the position of the terminating new line (or the last byte). */
+    private static int skipLineComment(byte[] bytes, int p, int end) {
+        for (p += 2; p < end; p++) {
+            if (bytes[p] == '\n') return p;
+        }
+        return end - 1;
+    }
+
+    /** Returns the position of the closing slash (or the last byte). */
+    private static int skipBlockComment(byte[] bytes, int p, int end) {
+        for (p += 2; p < end - 1; p++) {
+            if (bytes[p] == '*' && bytes[p + 1] == '/') return p + 1;
+        }
+        return end - 1;
+    }
+}
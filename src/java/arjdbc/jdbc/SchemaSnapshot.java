@@ -0,0 +1,213 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A schema written to disk (by the db:schema:snapshot task) so that booting
+ * does not need to go through the database catalog: the type info used for
+ * the native database types plus the columns, primary keys and indexes of
+ * every table. It is only used while the schema version it was taken at is
+ * the current one.
+ *
+ * The file is a flat binary layout, strings being length prefixed UTF-8,
+ * read through a memory mapping.
+ */
+final class SchemaSnapshot {
+    private static final int MAGIC = 0x41524a53; // "ARJS"
+    private static final int FORMAT = 1;
+
+    private static final byte NIL = 0, STRING = 1, INTEGER = 2, FLOAT = 3, TRUE = 4, FALSE = 5;
+
+    final String version;
+    final String schema;
+    final List<Map<String, Object>> typeInfo;
+    final List<TableSchema> tables;
+
+    SchemaSnapshot(String version, String schema, List<Map<String, Object>> typeInfo, List<TableSchema> tables) {
+        this.version = version;
+        this.schema = schema;
+        this.typeInfo = typeInfo;
+        this.tables = tables;
+    }
+
+    static SchemaSnapshot read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+                throw new IOException(file + " is not a schema snapshot");
+            }
+
+            String version = readString(buffer);
+            String schema = readString(buffer);
+
+            int rows = buffer.getInt();
+            List<Map<String, Object>> typeInfo = new ArrayList<Map<String, Object>>(rows);
+            for (int i = 0; i < rows; i++) {
+                int fields = buffer.getInt();
+                Map<String, Object> row = new LinkedHashMap<String, Object>();
+                for (int j = 0; j < fields; j++) row.put(readString(buffer), readValue(buffer));
+                typeInfo.add(row);
+            }
+
+            int count = buffer.getInt();
+            List<TableSchema> tables = new ArrayList<TableSchema>(count);
+            for (int i = 0; i < count; i++) {
+                TableSchema table = new TableSchema(readString(buffer));
+                for (int j = buffer.getInt(); j > 0; j--) {
+                    table.columns.add(new TableSchema.Column(readString(buffer), readString(buffer),
+                            readString(buffer), readString(buffer), buffer.get() != 0));
+                }
+                for (int j = buffer.getInt(); j > 0; j--) table.primaryKeys.add(readString(buffer));
+                for (int j = buffer.getInt(); j > 0; j--) {
+                    TableSchema.Index index = new TableSchema.Index(readString(buffer), buffer.get() != 0);
+                    for (int k = buffer.getInt(); k > 0; k--) index.columns.add(readString(buffer));
+                    table.indexes.add(index);
+                }
+                tables.add(table);
+            }
+            return new SchemaSnapshot(version, schema, typeInfo, tables);
+        } catch (RuntimeException e) { // truncated or garbled
+            throw (IOException) new IOException(file + " is not a valid schema snapshot").initCause(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the snapshot next to +file+ first and then renames it, so that
+     * a process booting meanwhile never sees half a file.
+     */
+    void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            writeString(out, version);
+            writeString(out, schema);
+
+            out.writeInt(typeInfo.size());
+            for (Map<String, Object> row : typeInfo) {
+                out.writeInt(row.size());
+                for (Map.Entry<String, Object> field : row.entrySet()) {
+                    writeString(out, field.getKey());
+                    writeValue(out, field.getValue());
+                }
+            }
+
+            out.writeInt(tables.size());
+            for (TableSchema table : tables) {
+                writeString(out, table.name);
+                out.writeInt(table.columns.size());
+                for (TableSchema.Column column : table.columns) {
+                    writeString(out, column.name);
+                    writeString(out, column.railsName);
+                    writeString(out, column.defaultValue);
+                    writeString(out, column.type);
+                    out.writeByte(column.nullable ? 1 : 0);
+                }
+                out.writeInt(table.primaryKeys.size());
+                for (String key : table.primaryKeys) writeString(out, key);
+                out.writeInt(table.indexes.size());
+                for (TableSchema.Index index : table.indexes) {
+                    writeString(out, index.name);
+                    out.writeByte(index.unique ? 1 : 0);
+                    out.writeInt(index.columns.size());
+                    for (String column : index.columns) writeString(out, column);
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) throw new IOException("could not write " + file);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static Object readValue(ByteBuffer buffer) throws IOException {
+        switch (buffer.get()) {
+        case STRING: return readString(buffer);
+        case INTEGER: return Long.valueOf(buffer.getLong());
+        case FLOAT: return Double.valueOf(buffer.getDouble());
+        case TRUE: return Boolean.TRUE;
+        case FALSE: return Boolean.FALSE;
+        default: return null;
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NIL);
+        } else if (value instanceof Boolean) {
+            out.writeByte(((Boolean) value).booleanValue() ? TRUE : FALSE);
+        } else if (value instanceof Long) {
+            out.writeByte(INTEGER);
+            out.writeLong(((Long) value).longValue());
+        } else if (value instanceof Double) {
+            out.writeByte(FLOAT);
+            out.writeDouble(((Double) value).doubleValue());
+        } else {
+            out.writeByte(STRING);
+            writeString(out, value.toString());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Prepared statements of a single connection kept open by their SQL, so
+ * statements executed over and over (or primed at boot) get prepared once.
+ * Beyond the limit the least recently used statement is closed.
+ *
+ * Statements belong to the connection they were prepared on, the cache is
+ * to be cleared whenever that connection gets replaced or closed.
+ */
+final class StatementCache {
+    private final int limit;
+    private final Map<String, PreparedStatement> statements;
+    private long hits, misses;
+
+    StatementCache(final int limit) {
+        this.limit = limit;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= StatementCache.this.limit) return false;
+                RubyJdbcConnection.close(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached statement for the SQL (its parameters cleared) or
+     * prepares and caches a new one, callers must not close it.
+     */
+    PreparedStatement prepare(Connection c, String sql, boolean generatedKeys) throws SQLException {
+        String key = generatedKeys ? "+" + sql : sql;
+        PreparedStatement ps = statements.get(key);
+        if (ps != null) {
+            hits++;
+            ps.clearParameters();
+            return ps;
+        }
+
+        misses++;
+        ps = generatedKeys ? c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) : c.prepareStatement(sql);
+        statements.put(key, ps);
+        return ps;
+    }
+
+    int size() {
+        return statements.size();
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    void clear() {
+        for (Iterator<PreparedStatement> it = statements.values().iterator(); it.hasNext(); ) {
+            RubyJdbcConnection.close(it.next());
+            it.remove();
+        }
+    }
+}
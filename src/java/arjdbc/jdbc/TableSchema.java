@@ -0,0 +1,77 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Columns, primary keys and indexes of a table as read by load_schema (or
+ * from a schema snapshot). The Ruby column and index objects are only built
+ * when the table is first asked for.
+ */
+final class TableSchema {
+    static final class Column {
+        final String name; // as JDBC reports it
+        final String railsName;
+        final String defaultValue;
+        final String type;
+        final boolean nullable;
+
+        Column(String name, String railsName, String defaultValue, String type, boolean nullable) {
+            this.name = name;
+            this.railsName = railsName;
+            this.defaultValue = defaultValue;
+            this.type = type;
+            this.nullable = nullable;
+        }
+    }
+
+    static final class Index {
+        final String name;
+        final boolean unique;
+        final List<String> columns = new ArrayList<String>();
+
+        Index(String name, boolean unique) {
+            this.name = name;
+            this.unique = unique;
+        }
+    }
+
+    final String name;
+    final List<Column> columns = new ArrayList<Column>();
+    final List<String> primaryKeys = new ArrayList<String>();
+    final List<Index> indexes = new ArrayList<Index>();
+
+    volatile List<IRubyObject> rubyColumns;
+    volatile List<IRubyObject> rubyIndexes;
+
+    TableSchema(String name) {
+        this.name = name;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.jruby.RubyHash;
+import org.jruby.RubyNumeric;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * When and after how long with_transaction_retry runs a transaction again:
+ * on a serialization failure or a deadlock (by SQL state or vendor error
+ * code), at most <tt>max_retries</tt> times, sleeping a random time up to
+ * an exponentially growing (and capped) delay in between.
+ */
+final class TransactionRetry {
+    private static final String[] SQL_STATES = { "40001", "40P01" };
+    private static final int[] ERROR_CODES = { 1213 }; // MySQL deadlock
+
+    private static final Random JITTER = new Random();
+
+    final int maxRetries;
+    final double baseDelay, maxDelay; // seconds
+    final IRubyObject onReplay;
+    private final Set<String> sqlStates = new HashSet<String>();
+    private final Set<Integer> errorCodes = new HashSet<Integer>();
+
+    TransactionRetry(ThreadContext context, IRubyObject options) {
+        RubyHash hash = options instanceof RubyHash ? (RubyHash) options : null;
+        maxRetries = (int) number(context, hash, "max_retries", 3);
+        baseDelay = number(context, hash, "base_delay", 0.05);
+        maxDelay = number(context, hash, "max_delay", 1.0);
+        onReplay = option(context, hash, "on_replay");
+
+        IRubyObject states = option(context, hash, "sql_states");
+        if (states.isNil()) {
+            for (String state : SQL_STATES) sqlStates.add(state);
+        } else {
+            for (Object state : states.convertToArray()) sqlStates.add(state.toString());
+        }
+        IRubyObject codes = option(context, hash, "error_codes");
+        if (codes.isNil()) {
+            for (int code : ERROR_CODES) errorCodes.add(code);
+        } else {
+            for (Object code : codes.convertToArray()) errorCodes.add(((Number) code).intValue());
+        }
+    }
+
+    private static IRubyObject option(ThreadContext context, RubyHash options, String name) {
+        if (options == null) return context.getRuntime().getNil();
+        return options.op_aref(context, context.getRuntime().newSymbol(name));
+    }
+
+    private static double number(ThreadContext context, RubyHash options, String name, double defaultValue) {
+        IRubyObject value = option(context, options, name);
+        return value.isNil() ? defaultValue : RubyNumeric.num2dbl(value);
+    }
+
+    /** Whether the failure (or one chained to it) is one to retry on. */
+    boolean isRetryable(Throwable failure) {
+        for (Throwable e = failure; e != null; e = e.getCause() == e ? null : e.getCause()) {
+            if (!(e instanceof SQLException)) continue;
+            for (SQLException sqle = (SQLException) e; sqle != null; sqle = sqle.getNextException()) {
+                if (sqle.getSQLState() != null && sqlStates.contains(sqle.getSQLState())) return true;
+                if (errorCodes.contains(sqle.getErrorCode())) return true;
+            }
+        }
+        return false;
+    }
+
+    /** Sleeps before running the transaction again, <tt>attempt</tt> being the one that failed. */
+    void backOff(int attempt) {
+        double cap = Math.min(maxDelay, baseDelay * Math.pow(2, attempt - 1));
+        long millis = (long) (JITTER.nextDouble() * cap * 1000);
+        if (millis == 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
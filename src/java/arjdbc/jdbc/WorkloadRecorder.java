@@ -0,0 +1,264 @@
+/*
+ **** BEGIN LICENSE BLOCK *****
+ * Copyright (c) 2006-2011 Nick Sieger <nick@nicksieger.com>
+ * Copyright (c) 2006-2007 Ola Bini <ola.bini@gmail.com>
+ * Copyright (c) 2008-2009 Thomas E Enebo <enebo@acm.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ***** END LICENSE BLOCK *****/
+package arjdbc.jdbc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jruby.util.ByteList;
+
+/**
+ * Learns which statements a process runs the most, so that connections can
+ * get them prepared as soon as they connect (see the :workload_file config).
+ *
+ * Only statements executed with binds are counted, the others never go
+ * through a prepared statement. Counting is a variant of the space saving
+ * algorithm: a bounded number of counters, when they run out the least
+ * counted ones are dropped and new statements start above the highest count
+ * dropped. The top statements are written to the file on shutdown (and on a
+ * timer when configured) and read back as the starting counts of the next
+ * process, halved so that old hot spots fade out.
+ *
+ * Recorders are shared by every connection using the same file.
+ */
+final class WorkloadRecorder {
+    static final int MAX_SQL_LENGTH = 8192;
+
+    private static final Map<String, WorkloadRecorder> RECORDERS = new HashMap<String, WorkloadRecorder>();
+    private static ScheduledExecutorService flusher;
+
+    private final File file;
+    private final int top;
+    private final int capacity;
+    private final ConcurrentHashMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+    private volatile long dropped; // the highest count evicted
+
+    static synchronized WorkloadRecorder forFile(String path, int top, long flushInterval) {
+        File file = new File(path).getAbsoluteFile();
+        WorkloadRecorder recorder = RECORDERS.get(file.getPath());
+        if (recorder != null) return recorder;
+
+        recorder = new WorkloadRecorder(file, top);
+        recorder.load();
+        if (RECORDERS.isEmpty()) {
+            Runtime.getRuntime().addShutdownHook(new Thread("arjdbc-workload-shutdown") {
+                public void run() { flushAll(); }
+            });
+        }
+        RECORDERS.put(file.getPath(), recorder);
+        if (flushInterval > 0) scheduleFlush(recorder, flushInterval);
+        return recorder;
+    }
+
+    static synchronized void flushAll() {
+        for (WorkloadRecorder recorder : RECORDERS.values()) {
+            try {
+                recorder.flush();
+            } catch (IOException e) {
+                // nothing to be done while shutting down
+            }
+        }
+    }
+
+    private static synchronized void scheduleFlush(final WorkloadRecorder recorder, long seconds) {
+        if (flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "arjdbc-workload-flush");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    recorder.flush();
+                } catch (IOException e) {
+                    // tried again next time
+                }
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    WorkloadRecorder(File file, int top) {
+        this.file = file;
+        this.top = top;
+        this.capacity = top * 8;
+    }
+
+    /** Counts a statement executed with binds. */
+    void record(String sql) {
+        if (sql.length() > MAX_SQL_LENGTH) return;
+
+        AtomicLong counter = counts.get(sql);
+        if (counter != null) {
+            counter.incrementAndGet();
+            return;
+        }
+        if (!preparable(sql)) return;
+
+        if (counts.size() >= capacity) evict();
+        counter = new AtomicLong(dropped);
+        AtomicLong existing = counts.putIfAbsent(sql, counter);
+        (existing == null ? counter : existing).incrementAndGet();
+    }
+
+    /** Drops the least counted eighth of the counters at once. */
+    private synchronized void evict() {
+        if (counts.size() < capacity) return; // someone else just did
+
+        List<Map.Entry<String, AtomicLong>> entries = byCount();
+        int keep = capacity - Math.max(1, capacity / 8);
+        for (int i = keep; i < entries.size(); i++) {
+            Map.Entry<String, AtomicLong> entry = entries.get(i);
+            counts.remove(entry.getKey());
+            dropped = Math.max(dropped, entry.getValue().get());
+        }
+    }
+
+    /** The counters, most counted first. */
+    private List<Map.Entry<String, AtomicLong>> byCount() {
+        final Map<String, Long> snapshot = new HashMap<String, Long>();
+        List<Map.Entry<String, AtomicLong>> entries = new ArrayList<Map.Entry<String, AtomicLong>>(counts.size());
+        for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+            entries.add(entry);
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>() {
+            public int compare(Map.Entry<String, AtomicLong> a, Map.Entry<String, AtomicLong> b) {
+                return snapshot.get(b.getKey()).compareTo(snapshot.get(a.getKey()));
+            }
+        });
+        return entries;
+    }
+
+    private static boolean preparable(String sql) {
+        SQLClassifier.Kind kind = SQLClassifier.kindOf(new ByteList(ByteList.plain(sql), false));
+        return kind == SQLClassifier.Kind.SELECT || kind == SQLClassifier.Kind.WITH ||
+            kind == SQLClassifier.Kind.INSERT || kind == SQLClassifier.Kind.UPDATE ||
+            kind == SQLClassifier.Kind.DELETE;
+    }
+
+    /** The most executed statements, most executed first. */
+    List<String> hotStatements() {
+        List<String> hot = new ArrayList<String>(top);
+        for (Map.Entry<String, AtomicLong> entry : byCount()) {
+            if (hot.size() == top) break;
+            hot.add(entry.getKey());
+        }
+        return hot;
+    }
+
+    long countOf(String sql) {
+        AtomicLong counter = counts.get(sql);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Writes the top statements, one per line after their count, new lines
+     * and back slashes escaped, next to the file and renames it over.
+     */
+    void flush() throws IOException {
+        List<String> hot = hotStatements();
+        if (hot.isEmpty()) return;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            for (String sql : hot) {
+                out.write(Long.toString(countOf(sql)));
+                out.write('\t');
+                out.write(sql.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r"));
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) throw new IOException("could not write " + file);
+        }
+    }
+
+    private synchronized void load() {
+        if (!file.exists()) return;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null && counts.size() < capacity) {
+                    int tab = line.indexOf('\t');
+                    if (tab < 0) continue;
+                    long count = Long.parseLong(line.substring(0, tab));
+                    counts.put(unescape(line.substring(tab + 1)), new AtomicLong(Math.max(1, count / 2)));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            counts.clear(); // start learning from scratch
+        } catch (NumberFormatException e) {
+            counts.clear();
+        }
+    }
+
+    private static String unescape(String line) {
+        if (line.indexOf('\\') < 0) return line;
+
+        StringBuilder sql = new StringBuilder(line.length());
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                char next = line.charAt(++i);
+                sql.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sql.append(c);
+            }
+        }
+        return sql.toString();
+    }
+}
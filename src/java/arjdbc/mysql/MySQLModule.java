@@ -26,6 +26,8 @@ package arjdbc.mysql;
 
 import java.sql.Connection;
 
+import arjdbc.jdbc.QuotingService;
+
 import org.jruby.RubyModule;
 import org.jruby.RubyString;
 
@@ -42,74 +44,56 @@ public class MySQLModule {
     }
 
     private final static byte BACKQUOTE = '`';
-    private final static byte[] QUOTED_DOT = new byte[] {'`', '.', '`'};
-
-    private final static byte[] ZERO = new byte[] {'\\','0'};
-    private final static byte[] NEWLINE = new byte[] {'\\','n'};
-    private final static byte[] CARRIAGE = new byte[] {'\\','r'};
-    private final static byte[] ZED = new byte[] {'\\','Z'};
-    private final static byte[] DBL = new byte[] {'\\','"'};
-    private final static byte[] SINGLE = new byte[] {'\\','\''};
-    private final static byte[] ESCAPE = new byte[] {'\\','\\'};
 
     @JRubyMethod(name = "quote_string", required = 1, frame=false)
     public static IRubyObject quote_string(ThreadContext context, IRubyObject recv, IRubyObject string) {
-        ByteList bytes = ((RubyString) string).getByteList();
-        ByteList newBytes = new ByteList();
-
-        newBytes.append(bytes);
-
-        for(int i = newBytes.begin; i < newBytes.begin + newBytes.realSize; i++) {
-            byte[] rep = null;
-            switch (newBytes.bytes[i]) {
-            case 0: rep = ZERO; break;
-            case '\n': rep = NEWLINE; break;
-            case '\r': rep = CARRIAGE; break;
-            case 26: rep = ZED; break;
-            case '"': rep = DBL; break;
-            case '\'': rep = SINGLE; break;
-            case '\\': rep = ESCAPE; break;
-            }
-
-            if (rep != null) {
-                newBytes.replace(i, 1, rep);
-                i += rep.length - 1; // We subtract one since for loop already adds one
-            }
-        }
-
-        // Nothing changed, can return original
-        if (newBytes.length() == bytes.length()) return string;
-
-        return context.getRuntime().newString(newBytes);
+        return QuotingService.quoteString(context.getRuntime(), (RubyString) string, QuotingService.MYSQL_ESCAPES);
     }
 
     @JRubyMethod(name = "quote_column_name", frame=false)
     public static IRubyObject quote_column_name(ThreadContext context, IRubyObject recv, IRubyObject arg) {
         ByteList bytes = arg.asString().getByteList();
-        ByteList newBytes = new ByteList();
+        byte[] output = new byte[bytes.getRealSize() + 2];
 
-        newBytes.insert(0, BACKQUOTE);
-        newBytes.append(bytes);
-        newBytes.append(BACKQUOTE);
+        output[0] = BACKQUOTE;
+        System.arraycopy(bytes.getUnsafeBytes(), bytes.getBegin(), output, 1, bytes.getRealSize());
+        output[output.length - 1] = BACKQUOTE;
 
-        return context.getRuntime().newString(newBytes);
+        return context.getRuntime().newString(new ByteList(output, false));
     }
 
+    /**
+     * Quotes each dot separated part, e.g. db.table becomes `db`.`table`,
+     * sizing the output up front from the number of dots.
+     */
     @JRubyMethod(name = "quote_table_name", frame=false)
     public static IRubyObject quote_table_name(ThreadContext context, IRubyObject recv, IRubyObject arg) {
         ByteList bytes = arg.asString().getByteList();
-        ByteList newBytes = new ByteList();
-
-        newBytes.insert(0, BACKQUOTE);
-        newBytes.append(bytes);
-        int i = 0, j = 0;
-        while ((i = newBytes.indexOf('.', j)) != -1) {
-            newBytes.replace(i, 1, QUOTED_DOT);
-            j = i+3;
+        byte[] input = bytes.getUnsafeBytes();
+        int begin = bytes.getBegin();
+        int end = begin + bytes.getRealSize();
+
+        int dots = 0;
+        for (int i = begin; i < end; i++) {
+            if (input[i] == '.') dots++;
+        }
+
+        byte[] output = new byte[bytes.getRealSize() + 2 + 2 * dots];
+        int o = 0;
+        output[o++] = BACKQUOTE;
+        for (int i = begin; i < end; i++) {
+            byte b = input[i];
+            if (b == '.') {
+                output[o++] = BACKQUOTE;
+                output[o++] = '.';
+                output[o++] = BACKQUOTE;
+            } else {
+                output[o++] = b;
+            }
         }
-        newBytes.append(BACKQUOTE);
+        output[o] = BACKQUOTE;
 
-        return context.getRuntime().newString(newBytes);
+        return context.getRuntime().newString(new ByteList(output, false));
     }
 
     /**
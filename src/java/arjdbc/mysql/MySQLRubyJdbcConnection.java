@@ -25,6 +25,10 @@
  ***** END LICENSE BLOCK *****/
 package arjdbc.mysql;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
@@ -37,13 +41,20 @@ import java.util.List;
 
 import arjdbc.jdbc.SQLBlock;
 import org.jruby.Ruby;
+import org.jruby.RubyArray;
 import org.jruby.RubyClass;
+import org.jruby.RubyHash;
 import org.jruby.RubyModule;
 import org.jruby.RubyNil;
 import org.jruby.RubyString;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.Block;
 import org.jruby.runtime.ObjectAllocator;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+import org.jruby.util.IOInputStream;
 
 import arjdbc.jdbc.RubyJdbcConnection;
 
@@ -52,10 +63,274 @@ import arjdbc.jdbc.RubyJdbcConnection;
  * @author nicksieger
  */
 public class MySQLRubyJdbcConnection extends RubyJdbcConnection {
+    /**
+     * Set while a streaming result set is open. Connector/J can not run any
+     * other statement on the connection until that result set is closed.
+     */
+    private boolean streaming = false;
+
     protected MySQLRubyJdbcConnection(Ruby runtime, RubyClass metaClass) {
         super(runtime, metaClass);
     }
 
+    @Override
+    protected Object withConnectionAndRetry(ThreadContext context, SQLBlock block) {
+        if (streaming) throw streamingInProgress(context);
+
+        return super.withConnectionAndRetry(context, block);
+    }
+
+    /**
+     * Run a query with a streaming result set (fetch size Integer.MIN_VALUE),
+     * yielding each row as a hash instead of buffering the whole result on
+     * the client. The connection is locked for the duration of the iteration
+     * and nothing else may be executed on it from within the block. Rows
+     * have already been handed out when a failure happens, so the query is
+     * never retried. Leaving the block early still makes the driver read
+     * (and discard) the remaining rows when the result set gets closed.
+     */
+    @JRubyMethod(name = "execute_query_streaming", required = 1)
+    public IRubyObject execute_query_streaming(final ThreadContext context, final IRubyObject _sql, final Block block) {
+        final Ruby runtime = context.getRuntime();
+        if (!block.isGiven()) throw runtime.newArgumentError("execute_query_streaming needs a block");
+        if (streaming) throw streamingInProgress(context);
+
+        String query = _sql.convertToString().getUnicodeValue();
+        Statement stmt = null;
+        ResultSet rs = null;
+        long count = 0;
+        pinConnection(context); // the rows arrive on this connection until the result set gets closed
+        streaming = true;
+        try {
+            Connection c = getConnection(true);
+            stmt = c.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(Integer.MIN_VALUE);
+            rs = stmt.executeQuery(query);
+            ColumnData[] columns = ColumnData.setup(runtime, c.getMetaData(), rs.getMetaData(), false);
+
+            while (rs.next()) {
+                RubyHash row = RubyHash.newHash(runtime);
+                for (int i = 0; i < columns.length; i++) {
+                    row.op_aset(context, columns[i].name, jdbcToRuby(runtime, columns[i].index, columns[i].type, rs));
+                }
+                block.yield(context, row);
+                count++;
+            }
+        } catch (SQLException sqe) {
+            if (runtime.isDebug()) {
+                System.out.println("Error SQL: " + query);
+            }
+            throw wrap(context, sqe);
+        } finally {
+            close(rs);
+            close(stmt);
+            streaming = false;
+            releaseConnection(context);
+        }
+
+        return runtime.newFixnum(count);
+    }
+
+    /*
+     * table, columns, source
+     *
+     * Bulk load rows with LOAD DATA LOCAL INFILE, feeding the driver from
+     * +source+ through its local infile InputStream hook instead of a file.
+     * The source is an IO-like object already in the default LOAD DATA
+     * format or an enumerator yielding lines or arrays of values, which are
+     * encoded one at a time while the driver reads. Returns the number of
+     * rows loaded. Like streaming queries, the load is not retried once the
+     * driver started reading the source.
+     */
+    @JRubyMethod(name = "load_data_local_infile", required = 3)
+    public IRubyObject load_data_local_infile(final ThreadContext context, final IRubyObject table,
+            final IRubyObject columns, final IRubyObject source) {
+        final Ruby runtime = context.getRuntime();
+        final StringBuilder buffer = new StringBuilder("LOAD DATA LOCAL INFILE 'stream' INTO TABLE ");
+        buffer.append(table.toString());
+        if (columns instanceof RubyArray && ((RubyArray) columns).getLength() > 0) {
+            RubyArray names = (RubyArray) columns;
+            buffer.append(" (");
+            for (int i = 0; i < names.getLength(); i++) {
+                if (i > 0) buffer.append(", ");
+                buffer.append(names.eltInternal(i).toString());
+            }
+            buffer.append(')');
+        }
+        final String sql = buffer.toString();
+
+        final RaiseException[] sourceFailure = new RaiseException[1]; // raised by the source itself
+        IRubyObject count;
+        try {
+            count = (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+                private boolean consumed = false; // the source can not be rewound
+
+                public Object call(Connection c) throws SQLException {
+                    Statement stmt = null;
+                    InputStream in = new FilterInputStream(source.respondsTo("read") ? new IOInputStream(source) :
+                        new EnumeratorInputStream(context, source)) {
+                        @Override
+                        public int read() throws IOException {
+                            consumed = true;
+                            try {
+                                return super.read();
+                            } catch (RaiseException e) {
+                                throw sourceFailure[0] = e;
+                            }
+                        }
+
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            consumed = true;
+                            try {
+                                return super.read(b, off, len);
+                            } catch (RaiseException e) {
+                                throw sourceFailure[0] = e;
+                            }
+                        }
+                    };
+                    try {
+                        stmt = c.createStatement();
+                        setLocalInfileInputStream(stmt, in);
+                        return runtime.newFixnum(stmt.executeUpdate(sql));
+                    } catch (SQLException sqe) {
+                        if (runtime.isDebug()) {
+                            System.out.println("Error SQL: " + sql);
+                        }
+                        throw sqe;
+                    } finally {
+                        close(stmt);
+                        // the driver gave up in the middle of sending the rows
+                        if (sourceFailure[0] != null) discardConnection();
+                    }
+                }
+
+                @Override
+                protected boolean isRetryable() {
+                    return !consumed;
+                }
+            });
+        } catch (RaiseException e) {
+            throw sourceFailure[0] != null ? sourceFailure[0] : e;
+        }
+        if (sourceFailure[0] != null) throw sourceFailure[0];
+        wrote(context, sql);
+        return count;
+    }
+
+    private RaiseException streamingInProgress(ThreadContext context) {
+        Ruby runtime = context.getRuntime();
+        RubyClass err = runtime.getModule("ActiveRecord").getClass("StatementInvalid");
+        return new RaiseException(runtime, err, "connection is busy streaming a result set", false);
+    }
+
+    private static void setLocalInfileInputStream(Statement stmt, InputStream in) throws SQLException {
+        try {
+            Class<?> mysqlStatement = Class.forName("com.mysql.jdbc.Statement", true, stmt.getClass().getClassLoader());
+            Object target = mysqlStatement.isInstance(stmt) ? stmt : stmt.unwrap(mysqlStatement);
+            Method setter = mysqlStatement.getMethod("setLocalInfileInputStream", InputStream.class);
+            setter.invoke(target, in);
+        } catch (SQLException e) {
+            throw e;
+        } catch (Exception e) {
+            throw (SQLException) new SQLException("LOAD DATA LOCAL streams are not supported by this driver").initCause(e);
+        }
+    }
+
+    /**
+     * Pulls rows from a Ruby enumerator as the driver reads, encoding array
+     * rows in the default LOAD DATA format (tab separated, backslash escapes,
+     * \N for NULL).
+     */
+    private static class EnumeratorInputStream extends InputStream {
+        private static final byte[] NULL = new byte[] {'\\', 'N'};
+
+        private final ThreadContext context;
+        private final IRubyObject enumerator;
+        private final ByteList buffer = new ByteList(8192);
+        private int position = 0;
+        private boolean done = false;
+
+        EnumeratorInputStream(ThreadContext context, IRubyObject enumerator) {
+            this.context = context;
+            this.enumerator = enumerator;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            return buffer.getUnsafeBytes()[buffer.getBegin() + position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+
+            int n = Math.min(len, buffer.getRealSize() - position);
+            System.arraycopy(buffer.getUnsafeBytes(), buffer.getBegin() + position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        private boolean fill() {
+            while (position >= buffer.getRealSize()) {
+                if (done) return false;
+                buffer.setRealSize(0);
+                position = 0;
+
+                IRubyObject row;
+                try {
+                    row = enumerator.callMethod(context, "next");
+                } catch (RaiseException e) {
+                    if (!context.getRuntime().getStopIteration().isInstance(e.getException())) throw e;
+                    done = true;
+                    return false;
+                }
+
+                if (row instanceof RubyArray) {
+                    encode((RubyArray) row);
+                } else {
+                    ByteList line = row.asString().getByteList();
+                    buffer.append(line);
+                    if (line.getRealSize() == 0 || line.getUnsafeBytes()[line.getBegin() + line.getRealSize() - 1] != '\n') buffer.append('\n');
+                }
+            }
+            return true;
+        }
+
+        private void encode(RubyArray row) {
+            for (int i = 0, n = row.getLength(); i < n; i++) {
+                if (i > 0) buffer.append('\t');
+
+                IRubyObject value = row.eltInternal(i);
+                if (value.isNil()) {
+                    buffer.append(NULL);
+                    continue;
+                }
+
+                ByteList bytes = value.asString().getByteList();
+                byte[] input = bytes.getUnsafeBytes();
+                for (int j = bytes.getBegin(), end = bytes.getBegin() + bytes.getRealSize(); j < end; j++) {
+                    byte b = input[j];
+                    switch (b) {
+                    case '\\': buffer.append('\\'); buffer.append('\\'); break;
+                    case '\t': buffer.append('\\'); buffer.append('t'); break;
+                    case '\n': buffer.append('\\'); buffer.append('n'); break;
+                    case 0: buffer.append('\\'); buffer.append('0'); break;
+                    default: buffer.append(b);
+                    }
+                }
+            }
+            buffer.append('\n');
+        }
+    }
+
+    @Override
+    protected boolean backslashEscapes() {
+        return true;
+    }
+
     @Override
     protected boolean genericExecute(Statement stmt, String query) throws SQLException {
         return stmt.execute(query, Statement.RETURN_GENERATED_KEYS);
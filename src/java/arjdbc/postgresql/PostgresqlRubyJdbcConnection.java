@@ -26,15 +26,35 @@
 package arjdbc.postgresql;
 
 import arjdbc.jdbc.RubyJdbcConnection;
+import arjdbc.jdbc.SQLBlock;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 
 import org.jruby.Ruby;
+import org.jruby.RubyArray;
 import org.jruby.RubyClass;
+import org.jruby.RubyEnumerable;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.BlockCallback;
 import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+import org.jruby.util.IOInputStream;
+import org.jruby.util.IOOutputStream;
 
 /**
  *
@@ -74,6 +94,462 @@ public class PostgresqlRubyJdbcConnection extends RubyJdbcConnection {
         return super.jdbcToRuby(runtime, column, type, resultSet);
     }
 
+    /*
+     * table, columns, io_or_enumerator, format = :text
+     *
+     * Streams rows into +table+ using COPY ... FROM STDIN.  The source is
+     * either an IO-like object (anything responding to read) which is fed
+     * to the driver as is, or an enumerable yielding one row at a time,
+     * either as a preformatted line or as an array of values which will be
+     * encoded for the requested format.  Identifiers are used verbatim so
+     * callers are expected to quote them.  Returns the number of rows copied.
+     * Once the source has been read from, failures are not retried.
+     */
+    @JRubyMethod(name = "copy_in", required = 3, optional = 1)
+    public IRubyObject copy_in(final ThreadContext context, final IRubyObject[] args) {
+        final Ruby runtime = context.getRuntime();
+        final boolean csv = args.length > 3 && !args[3].isNil() && args[3].toString().equalsIgnoreCase("csv");
+        final String sql = copyInSQL(args[0].toString(), args[1], csv);
+        final IRubyObject source = args[2];
+
+        IRubyObject count = (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+            private boolean consumed = false; // the source can not be rewound
+
+            public Object call(Connection c) throws SQLException {
+                Object copyManager = CopyAPI.copyManager(c);
+                try {
+                    if (source.respondsTo("read")) {
+                        InputStream in = new FilterInputStream(new IOInputStream(source)) {
+                            @Override
+                            public int read() throws IOException {
+                                consumed = true;
+                                return super.read();
+                            }
+
+                            @Override
+                            public int read(byte[] b, int off, int len) throws IOException {
+                                consumed = true;
+                                return super.read(b, off, len);
+                            }
+                        };
+                        return runtime.newFixnum(CopyAPI.copyIn(copyManager, sql, in));
+                    }
+                    Object copyIn = CopyAPI.copyIn(copyManager, sql);
+                    consumed = true;
+                    return runtime.newFixnum(copyRowsIn(context, copyIn, source, csv));
+                } catch (SQLException sqe) {
+                    if (runtime.isDebug()) {
+                        System.out.println("Error SQL: " + sql);
+                    }
+                    throw sqe;
+                }
+            }
+
+            @Override
+            protected boolean isRetryable() {
+                return !consumed;
+            }
+        });
+        wrote(context, sql);
+        return count;
+    }
+
+    /*
+     * sql, io = nil
+     *
+     * Runs a COPY ... TO STDOUT statement (a plain query gets wrapped into
+     * one) and writes the output to +io+ or, when no io is given, yields
+     * each row to the block as it arrives.  Returns the number of rows copied.
+     * Once output has been written or yielded, failures are not retried.
+     */
+    @JRubyMethod(name = "copy_out", required = 1, optional = 1)
+    public IRubyObject copy_out(final ThreadContext context, final IRubyObject[] args, final Block block) {
+        final Ruby runtime = context.getRuntime();
+        final String sql = copyOutSQL(args[0].convertToString().getUnicodeValue());
+        final IRubyObject io = args.length > 1 ? args[1] : runtime.getNil();
+        if (io.isNil() && !block.isGiven()) {
+            throw runtime.newArgumentError("copy_out needs an io or a block");
+        }
+
+        return (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+            private boolean delivered = false; // rows went out already
+
+            public Object call(Connection c) throws SQLException {
+                Object copyManager = CopyAPI.copyManager(c);
+                try {
+                    if (!io.isNil()) {
+                        OutputStream sink = new FilterOutputStream(new IOOutputStream(io)) {
+                            @Override
+                            public void write(int b) throws IOException {
+                                delivered = true;
+                                out.write(b);
+                            }
+
+                            @Override
+                            public void write(byte[] b, int off, int len) throws IOException {
+                                delivered = true;
+                                out.write(b, off, len);
+                            }
+                        };
+                        return runtime.newFixnum(CopyAPI.copyOut(copyManager, sql, sink));
+                    }
+
+                    Object copyOut = CopyAPI.copyOut(copyManager, sql);
+                    long rows = 0;
+                    try {
+                        for (byte[] row = CopyAPI.readFromCopy(copyOut); row != null; row = CopyAPI.readFromCopy(copyOut)) {
+                            delivered = true;
+                            block.yield(context, runtime.newString(new ByteList(row, false)));
+                            rows++;
+                        }
+                    } finally {
+                        CopyAPI.cancelIfActive(copyOut);
+                    }
+                    return runtime.newFixnum(rows);
+                } catch (SQLException sqe) {
+                    if (runtime.isDebug()) {
+                        System.out.println("Error SQL: " + sql);
+                    }
+                    throw sqe;
+                }
+            }
+
+            @Override
+            protected boolean isRetryable() {
+                return !delivered;
+            }
+        });
+    }
+
+    /*
+     * sql, returning, values = nil, types = nil
+     *
+     * Runs an INSERT with a RETURNING clause appended for the +returning+
+     * column in a single round trip.  Returns the value of that column for
+     * the (first) inserted row or, when +returning+ is an array of columns,
+     * an array with a hash of those columns for every inserted row (handy
+     * for defaults computed by the database).  The optional +values+ and
+     * +types+ are bound to the statement placeholders like insert_bind does.
+     * Identifiers are used verbatim so callers are expected to quote them.
+     */
+    @JRubyMethod(name = "insert_returning", required = 2, optional = 2)
+    public IRubyObject insert_returning(final ThreadContext context, final IRubyObject[] args) {
+        final Ruby runtime = context.getRuntime();
+        final boolean rows = args[1] instanceof RubyArray;
+        if (rows && ((RubyArray) args[1]).isEmpty()) {
+            throw runtime.newArgumentError("insert_returning needs at least one column");
+        }
+        final String sql = insertReturningSQL(args[0].convertToString().getUnicodeValue(), args[1]);
+        final boolean binds = args.length > 2 && !args[2].isNil();
+
+        IRubyObject result = (IRubyObject) withConnectionAndRetry(context, new SQLBlock() {
+            public Object call(Connection c) throws SQLException {
+                PreparedStatement ps = null;
+                try {
+                    ps = c.prepareStatement(sql);
+                    if (binds) setValuesOnPS(ps, context, args[2], args[3]);
+                    ResultSet rs = ps.executeQuery();
+                    if (rows) return unmarshalResult(context, c.getMetaData(), rs, false);
+
+                    try {
+                        if (!rs.next()) return runtime.getNil();
+                        return jdbcToRuby(runtime, 1, rs.getMetaData().getColumnType(1), rs);
+                    } finally {
+                        close(rs);
+                    }
+                } catch (SQLException sqe) {
+                    if (runtime.isDebug()) {
+                        System.out.println("Error SQL: " + sql);
+                    }
+                    throw sqe;
+                } finally {
+                    close(ps);
+                }
+            }
+        });
+        wrote(context, sql);
+        return result;
+    }
+
+    private static String insertReturningSQL(String insert, IRubyObject returning) {
+        StringBuilder sql = new StringBuilder(insert).append(" RETURNING ");
+        if (returning instanceof RubyArray) {
+            RubyArray names = (RubyArray) returning;
+            for (int i = 0; i < names.getLength(); i++) {
+                if (i > 0) sql.append(", ");
+                sql.append(names.eltInternal(i).toString());
+            }
+        } else {
+            sql.append(returning.toString());
+        }
+        return sql.toString();
+    }
+
+    private static String copyInSQL(String table, IRubyObject columns, boolean csv) {
+        StringBuilder sql = new StringBuilder("COPY ").append(table);
+        if (columns instanceof RubyArray && ((RubyArray) columns).getLength() > 0) {
+            RubyArray names = (RubyArray) columns;
+            sql.append(" (");
+            for (int i = 0; i < names.getLength(); i++) {
+                if (i > 0) sql.append(", ");
+                sql.append(names.eltInternal(i).toString());
+            }
+            sql.append(')');
+        }
+        sql.append(" FROM STDIN");
+        if (csv) sql.append(" WITH CSV");
+
+        return sql.toString();
+    }
+
+    private static String copyOutSQL(String sql) {
+        String trimmed = sql.trim();
+        if (trimmed.regionMatches(true, 0, "copy", 0, 4)) return trimmed;
+
+        return "COPY (" + trimmed + ") TO STDOUT";
+    }
+
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    /**
+     * Feed rows yielded by +source+ into an open CopyIn, flushing to the
+     * driver whenever the shared buffer fills up so the whole payload never
+     * has to be held in memory.
+     */
+    private long copyRowsIn(ThreadContext context, final Object copyIn, IRubyObject source,
+                            final boolean csv) throws SQLException {
+        final ByteList buffer = new ByteList(COPY_BUFFER_SIZE + 1024);
+        final SQLException[] failure = new SQLException[1];
+        boolean completed = false;
+
+        try {
+            RubyEnumerable.callEach(context.getRuntime(), context, source, new BlockCallback() {
+                public IRubyObject call(ThreadContext ctx, IRubyObject[] largs, Block blk) {
+                    IRubyObject row = largs.length == 1 ? largs[0] : ctx.getRuntime().newArrayNoCopy(largs);
+                    if (row instanceof RubyArray) {
+                        encodeCopyRow(ctx, buffer, (RubyArray) row, csv);
+                    } else {
+                        ByteList line = row.asString().getByteList();
+                        buffer.append(line);
+                        if (line.getRealSize() == 0 || line.getUnsafeBytes()[line.getBegin() + line.getRealSize() - 1] != '\n') {
+                            buffer.append('\n');
+                        }
+                    }
+                    if (buffer.getRealSize() >= COPY_BUFFER_SIZE) {
+                        try {
+                            CopyAPI.writeToCopy(copyIn, buffer);
+                        } catch (SQLException e) {
+                            failure[0] = e;
+                            throw ctx.getRuntime().newIOError(e.getMessage());
+                        }
+                    }
+                    return ctx.getRuntime().getNil();
+                }
+            });
+            CopyAPI.writeToCopy(copyIn, buffer);
+            long rows = CopyAPI.endCopy(copyIn);
+            completed = true;
+            return rows;
+        } catch (RuntimeException e) {
+            if (failure[0] != null) throw failure[0];
+            throw e;
+        } finally {
+            if (!completed) CopyAPI.cancelIfActive(copyIn);
+        }
+    }
+
+    private static final byte[] TEXT_NULL = new byte[] {'\\', 'N'};
+
+    /**
+     * Encode one array of values as a COPY row, using the text format
+     * (tab separated, backslash escapes, \N for NULL) or CSV (comma
+     * separated, quoted when needed, empty unquoted field for NULL).
+     */
+    private static void encodeCopyRow(ThreadContext context, ByteList out, RubyArray row, boolean csv) {
+        for (int i = 0, n = row.getLength(); i < n; i++) {
+            if (i > 0) out.append(csv ? ',' : '\t');
+
+            IRubyObject value = row.eltInternal(i);
+            if (value.isNil()) {
+                if (!csv) out.append(TEXT_NULL);
+                continue;
+            }
+
+            ByteList bytes = (value instanceof RubyString ? (RubyString) value : RubyString.objAsString(context, value)).getByteList();
+            if (csv) {
+                appendCSVField(out, bytes);
+            } else {
+                appendTextField(out, bytes);
+            }
+        }
+        out.append('\n');
+    }
+
+    private static void appendTextField(ByteList out, ByteList value) {
+        byte[] bytes = value.getUnsafeBytes();
+        int end = value.getBegin() + value.getRealSize();
+        for (int i = value.getBegin(); i < end; i++) {
+            byte b = bytes[i];
+            switch (b) {
+            case '\\': out.append('\\'); out.append('\\'); break;
+            case '\t': out.append('\\'); out.append('t'); break;
+            case '\n': out.append('\\'); out.append('n'); break;
+            case '\r': out.append('\\'); out.append('r'); break;
+            default: out.append(b);
+            }
+        }
+    }
+
+    private static void appendCSVField(ByteList out, ByteList value) {
+        byte[] bytes = value.getUnsafeBytes();
+        int end = value.getBegin() + value.getRealSize();
+        boolean quote = value.getRealSize() == 0;
+        for (int i = value.getBegin(); i < end && !quote; i++) {
+            switch (bytes[i]) {
+            case ',': case '"': case '\n': case '\r': case '\\': quote = true;
+            }
+        }
+
+        if (!quote) {
+            out.append(value);
+            return;
+        }
+
+        out.append('"');
+        for (int i = value.getBegin(); i < end; i++) {
+            if (bytes[i] == '"') out.append('"');
+            out.append(bytes[i]);
+        }
+        out.append('"');
+    }
+
+    /**
+     * The PostgreSQL driver is loaded at runtime by JRuby, so its COPY API
+     * is reached reflectively. Method lookups are cached per driver class.
+     */
+    private static class CopyAPI {
+        private static volatile Method getCopyAPI, copyInStream, copyInOpen, copyOutStream, copyOutOpen,
+            writeToCopy, endCopy, readFromCopy, isActive, cancelCopy;
+
+        static Object copyManager(Connection c) throws SQLException {
+            try {
+                // the driver loaded along with the adapter (what PGConnection.class
+                // would be), unwrapped from pool proxies through the JDBC API
+                Class<?> pgConnection = pgConnectionClass(CopyAPI.class.getClassLoader());
+                Object connection = pgConnection == null ? null : unwrap(c, pgConnection);
+                if (connection == null) { // a driver loaded elsewhere, as seen by the connection
+                    pgConnection = pgConnectionClass(c.getClass().getClassLoader());
+                    if (pgConnection == null) throw new ClassNotFoundException("org.postgresql.PGConnection");
+                    connection = unwrap(c, pgConnection);
+                    if (connection == null) throw new ClassCastException(c.getClass().getName() + " is no PGConnection");
+                }
+                Method api = getCopyAPI;
+                if (api == null || api.getDeclaringClass() != pgConnection) {
+                    getCopyAPI = api = pgConnection.getMethod("getCopyAPI");
+                }
+                Object manager = api.invoke(connection);
+                if (copyInStream == null || copyInStream.getDeclaringClass() != manager.getClass()) {
+                    lookup(manager.getClass());
+                }
+                return manager;
+            } catch (SQLException e) {
+                throw e;
+            } catch (Exception e) {
+                throw copyError("COPY is not supported by this connection", e);
+            }
+        }
+
+        private static Class<?> pgConnectionClass(ClassLoader loader) {
+            try {
+                return Class.forName("org.postgresql.PGConnection", true, loader);
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        }
+
+        private static Object unwrap(Connection c, Class<?> pgConnection) {
+            if (pgConnection.isInstance(c)) return c;
+            try {
+                return c.isWrapperFor(pgConnection) ? c.unwrap(pgConnection) : null;
+            } catch (SQLException e) {
+                return null;
+            } catch (AbstractMethodError e) { // a driver (or pool) older than JDBC 4
+                return null;
+            }
+        }
+
+        private static void lookup(Class<?> manager) throws Exception {
+            ClassLoader loader = manager.getClassLoader();
+            Class<?> copyIn = Class.forName("org.postgresql.copy.CopyIn", true, loader);
+            Class<?> copyOut = Class.forName("org.postgresql.copy.CopyOut", true, loader);
+            Class<?> copyOperation = Class.forName("org.postgresql.copy.CopyOperation", true, loader);
+
+            copyInOpen = manager.getMethod("copyIn", String.class);
+            copyOutOpen = manager.getMethod("copyOut", String.class);
+            copyOutStream = manager.getMethod("copyOut", String.class, OutputStream.class);
+            writeToCopy = copyIn.getMethod("writeToCopy", byte[].class, int.class, int.class);
+            endCopy = copyIn.getMethod("endCopy");
+            readFromCopy = copyOut.getMethod("readFromCopy");
+            isActive = copyOperation.getMethod("isActive");
+            cancelCopy = copyOperation.getMethod("cancelCopy");
+            copyInStream = manager.getMethod("copyIn", String.class, InputStream.class);
+        }
+
+        static long copyIn(Object manager, String sql, InputStream in) throws SQLException {
+            return ((Long) invoke(copyInStream, manager, sql, in)).longValue();
+        }
+
+        static Object copyIn(Object manager, String sql) throws SQLException {
+            return invoke(copyInOpen, manager, sql);
+        }
+
+        static long copyOut(Object manager, String sql, OutputStream out) throws SQLException {
+            return ((Long) invoke(copyOutStream, manager, sql, out)).longValue();
+        }
+
+        static Object copyOut(Object manager, String sql) throws SQLException {
+            return invoke(copyOutOpen, manager, sql);
+        }
+
+        static void writeToCopy(Object copyIn, ByteList buffer) throws SQLException {
+            if (buffer.getRealSize() == 0) return;
+            invoke(writeToCopy, copyIn, buffer.getUnsafeBytes(), Integer.valueOf(buffer.getBegin()), Integer.valueOf(buffer.getRealSize()));
+            buffer.setRealSize(0);
+        }
+
+        static long endCopy(Object copyIn) throws SQLException {
+            return ((Long) invoke(endCopy, copyIn)).longValue();
+        }
+
+        static byte[] readFromCopy(Object copyOut) throws SQLException {
+            return (byte[]) invoke(readFromCopy, copyOut);
+        }
+
+        static void cancelIfActive(Object copyOperation) {
+            try {
+                if (((Boolean) invoke(isActive, copyOperation)).booleanValue()) invoke(cancelCopy, copyOperation);
+            } catch (SQLException e) {
+            }
+        }
+
+        private static Object invoke(Method method, Object target, Object... args) throws SQLException {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) throw (SQLException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw copyError(cause.getMessage(), cause);
+            } catch (IllegalAccessException e) {
+                throw copyError(e.getMessage(), e);
+            }
+        }
+
+        private static SQLException copyError(String message, Throwable cause) {
+            return (SQLException) new SQLException(message).initCause(cause);
+        }
+    }
+
     private static ObjectAllocator POSTGRESQL_JDBCCONNECTION_ALLOCATOR = new ObjectAllocator() {
         public IRubyObject allocate(Ruby runtime, RubyClass klass) {
             return new PostgresqlRubyJdbcConnection(runtime, klass);
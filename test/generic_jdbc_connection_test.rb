@@ -26,4 +26,84 @@ class GenericJdbcConnectionTest < Test::Unit::TestCase
   ensure
     ActiveRecord::Base.establish_connection conn
   end
+
+  def test_driver_configs_connect_through_java_factory
+    factory = ActiveRecord::Base.connection.raw_connection.connection_factory
+    assert_kind_of ActiveRecord::ConnectionAdapters::DriverConnectionFactory, factory
+    assert_not_nil factory.new_connection.tap { |c| c.close }
+  end
+
+  def test_native_types_shared_between_connections
+    config = ActiveRecord::Base.connection.config
+    first = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+    second = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+    types = first.instance_variable_get(:@native_types)
+    assert types.frozen?
+    assert_same types, second.instance_variable_get(:@native_types)
+  ensure
+    first.disconnect! if first
+    second.disconnect! if second
+  end
+
+  def test_circuit_breaker_fails_fast_once_open
+    config = ActiveRecord::Base.connection.config.merge(:circuit_breaker => { :failure_threshold => 2, :cool_down => 60 })
+    conn = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+    live = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+    factory = conn.connection_factory
+    conn.instance_variable_set(:@connection_factory, ActiveRecord::ConnectionAdapters::JdbcConnectionFactory.impl { raise "down" })
+
+    2.times { assert_raises(RuntimeError) { conn.reconnect! } }
+    assert_raises(ActiveRecord::ConnectionCircuitOpen) { conn.reconnect! }
+    stats = conn.circuit_breaker_stats
+    assert_equal :open, stats[:state]
+    assert_equal 1, stats[:rejections]
+
+    # a working connection sharing the breaker still reports its own errors
+    assert_raises(ActiveRecord::JDBCError) { live.execute_query("SELECT * FROM no_such_table") }
+
+    other = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config.merge(:circuit_breaker => true))
+    assert_equal :closed, other.circuit_breaker_stats[:state] # other options, another breaker
+  ensure
+    live.disconnect! if live
+    other.disconnect! if other
+    if conn
+      conn.reset_circuit_breaker
+      conn.instance_variable_set(:@connection_factory, factory)
+      conn.disconnect!
+    end
+  end
+
+  def test_java_parts_load_once_on_demand
+    assert ArJdbc.load_java_part(:Derby)
+    assert ArJdbc.load_java_part(:Derby)
+    assert !ArJdbc.load_java_part(:NoSuchAdapter)
+    assert_equal ["Derby", "Jdbc"], ArJdbc.java_load_times.keys.select { |k| %w(Jdbc Derby).include?(k) }.sort
+  end
+
+  def test_sql_classification
+    conn = ActiveRecord::ConnectionAdapters::JdbcConnection
+    assert conn.select?("  /* hint */ -- note\n ( SELECT 1)")
+    assert conn.select?("WITH t AS (SELECT 1) SELECT * FROM t")
+    assert conn.insert?("-- audit\ninsert into entries values (?, ?)")
+    assert !conn.insert?("inserted_at")
+    assert conn.ddl?("CREATE TABLE t (id int)")
+    assert_equal :update, conn.sql_kind("Update entries SET title = 'x'")
+    assert_equal :other, conn.sql_kind("")
+    assert_equal 2, conn.placeholder_count("SELECT '?', \"a?\" FROM t /* ? */ WHERE a = ? AND b = ? -- ?")
+    assert_equal 2, conn.placeholder_count("SELECT * FROM t WHERE a = 'a\\' AND b = ? AND c = ?")
+    assert_equal 1, conn.placeholder_count("SELECT * FROM t WHERE a = E'a\\' ?' AND b = ?")
+  end
+
+  def test_sql_read_only_classification
+    conn = ActiveRecord::ConnectionAdapters::JdbcConnection
+    assert conn.read_only?("SELECT * FROM entries WHERE title = 'for update'")
+    assert conn.read_only?("WITH t AS (SELECT 1) SELECT * FROM t")
+    assert !conn.read_only?("SELECT * FROM entries FOR UPDATE")
+    assert !conn.read_only?("SELECT * FROM entries LOCK IN SHARE MODE")
+    assert !conn.read_only?("SELECT nextval('entries_id_seq')")
+    assert !conn.read_only?("CALL refresh_entries()")
+    assert !conn.read_only?("WITH moved AS (DELETE FROM entries RETURNING *) SELECT * FROM moved")
+    assert_equal :insert, conn.sql_kind("WITH t AS (SELECT 1 AS id) INSERT INTO entries (id) SELECT id FROM t")
+    assert conn.select?("CALL report_entries()")
+  end
 end
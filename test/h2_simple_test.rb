@@ -1,5 +1,6 @@
 require 'jdbc_common'
 require 'db/h2'
+require 'tmpdir'
 
 class H2SimpleTest < Test::Unit::TestCase
   include SimpleTestMethods
@@ -39,3 +40,335 @@ class H2SchemaTest < Test::Unit::TestCase
     assert !Entry.all(:include => :user).empty?
   end
 end
+
+class H2LoadSchemaTest < Test::Unit::TestCase
+  def setup
+    CreateEntries.up
+    @connection = ActiveRecord::Base.connection
+  end
+
+  def teardown
+    @connection.clear_schema_cache
+    CreateEntries.down
+  end
+
+  def test_load_schema_answers_from_memory_until_ddl
+    columns = @connection.columns(:entries).map(&:name)
+    assert @connection.load_schema.include?("entries")
+    assert_equal columns, @connection.columns(:entries).map(&:name)
+    assert_equal ["id"], @connection.primary_keys("entries")
+
+    @connection.add_column :entries, :summary, :string
+    assert @connection.columns(:entries).map(&:name).include?("summary")
+  end
+
+  def test_schema_snapshot_is_only_used_at_its_version
+    path = File.join(Dir.tmpdir, "h2_schema.snapshot")
+    @connection.initialize_schema_migrations_table
+    @connection.execute("INSERT INTO schema_migrations (version) VALUES ('20120101000000')")
+    columns = @connection.columns(:entries).map(&:name)
+    assert @connection.dump_schema_snapshot(path) > 0
+
+    raw = @connection.raw_connection
+    version = raw.schema_version
+    assert !raw.load_schema_snapshot(path, "#{version}1")
+    assert !raw.load_schema_snapshot(path, version, "OTHER")
+    assert raw.load_schema_snapshot(path, version)
+    assert_equal columns, @connection.columns(:entries).map(&:name)
+
+    @connection.execute("INSERT INTO schema_migrations (version) VALUES ('20110101000000')")
+    assert_not_equal version, raw.schema_version
+  ensure
+    @connection.execute("DELETE FROM schema_migrations WHERE version IN ('20120101000000', '20110101000000')")
+    File.delete(path) rescue nil
+  end
+end
+
+class H2LazyConnectionTest < Test::Unit::TestCase
+  def test_lazy_connection_opens_on_first_use
+    config = ActiveRecord::Base.connection.config.merge(:lazy => true)
+    adapter = ActiveRecord::ConnectionAdapters::JdbcAdapter.new(nil, nil, config)
+    raw = adapter.raw_connection
+    assert raw.connect_pending?
+    assert adapter.active?
+
+    assert adapter.native_database_types[:string]
+    assert_equal 1, adapter.select_value("SELECT 1").to_i
+    assert !raw.connect_pending?
+
+    adapter.disconnect!
+    assert !adapter.active?
+  end
+
+  def test_session_set_up_once_connected
+    config = ActiveRecord::Base.connection.config.merge(:lazy => true)
+    adapter = ActiveRecord::ConnectionAdapters::JdbcAdapter.new(nil, nil, config)
+    adapter.execute_session("SET @arjdbc_session = 42")
+    assert adapter.raw_connection.connect_pending?
+
+    assert_equal 42, adapter.select_value("SELECT @arjdbc_session").to_i
+    adapter.reconnect!
+    assert_equal 42, adapter.select_value("SELECT @arjdbc_session").to_i
+  ensure
+    adapter.disconnect! if adapter
+  end
+end
+
+class H2WarmUpTest < Test::Unit::TestCase
+  def setup
+    CreateEntries.up
+  end
+
+  def teardown
+    CreateEntries.down
+  end
+
+  def test_warm_up_opens_and_primes_connections
+    sql = "SELECT title FROM entries WHERE id = ?"
+    pool = ActiveRecord::ConnectionAdapters::ConnectionPool.new(ActiveRecord::Base.connection_pool.spec)
+    assert_equal 2, ArJdbc.warm_up(pool, 2, [sql])
+    assert_equal 2, pool.connections.size
+
+    raw = pool.connections.first.raw_connection
+    assert_equal 1, raw.statement_cache_stats[:statements]
+    raw.select_bind(sql, [1], [:integer])
+    assert_equal 1, raw.statement_cache_stats[:hits]
+
+    connection = pool.checkout # what was warmed up got checked back in
+    assert pool.connections.include?(connection)
+    assert_equal 2, pool.connections.size
+    pool.checkin(connection)
+  ensure
+    pool.disconnect! if pool
+  end
+end
+
+class H2WorkloadRecorderTest < Test::Unit::TestCase
+  def setup
+    CreateEntries.up
+    @path = File.join(Dir.tmpdir, "h2_workload.txt")
+  end
+
+  def teardown
+    CreateEntries.down
+    File.delete(@path) rescue nil
+  end
+
+  def test_hot_statements_get_prepared_on_reconnect
+    config = ActiveRecord::Base.connection.config.merge(:workload_file => @path, :workload_top => 2)
+    raw = ActiveRecord::ConnectionAdapters::JdbcAdapter.new(nil, nil, config).raw_connection
+    sql = "SELECT title FROM entries WHERE id = ?"
+    3.times { |i| raw.select_bind(sql, [i], [:integer]) }
+    raw.select_bind("SELECT count(*) FROM entries WHERE title = ?", ["once"], [:string])
+    raw.execute_query("SELECT title FROM entries WHERE id = 1") # never prepared, not recorded
+
+    assert_equal [sql, "SELECT count(*) FROM entries WHERE title = ?"], raw.flush_workload
+    assert File.read(@path).include?(sql)
+
+    raw.reconnect!
+    assert_equal 0, raw.statement_cache_stats[:statements] # primed on first use, not while reconnecting
+    hits = raw.statement_cache_stats[:hits]
+    raw.select_bind(sql, [1], [:integer])
+    assert_equal 2, raw.statement_cache_stats[:statements]
+    assert_equal hits + 1, raw.statement_cache_stats[:hits]
+  ensure
+    raw.disconnect! if raw
+  end
+end
+
+class H2FailoverTest < Test::Unit::TestCase
+  def start_server(port)
+    org.h2.tools.Server.createTcpServer(["-tcpPort", port.to_s].to_java(:string)).start
+  end
+
+  def test_fails_over_and_back_between_hosts
+    first, second = start_server(19091), start_server(19092)
+    config = ActiveRecord::Base.connection.config.merge(:url => nil, :failover => { :probe_interval => 0.1 },
+      :urls => [ "jdbc:h2:tcp://localhost:19091/mem:first", "jdbc:h2:tcp://localhost:19092/mem:second" ])
+    conn = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+    database = lambda { conn.execute_query("CALL DATABASE()").first.values.first }
+    assert_equal "FIRST", database.call
+
+    first.stop
+    assert_equal "SECOND", database.call
+    assert conn.connection_factory.is_down(0)
+
+    first = start_server(19091)
+    sleep 0.5
+    assert_equal "FIRST", database.call
+
+    conn.disconnect! # the last connection using the factory stops its probe
+    assert !conn.connection_factory.probing?
+  ensure
+    conn.disconnect! if conn
+    first.stop if first
+    second.stop if second
+  end
+end
+
+class H2TransactionRetryTest < Test::Unit::TestCase
+  def setup
+    CreateEntries.up
+    @connection = ActiveRecord::Base.connection
+  end
+
+  def teardown
+    CreateEntries.down
+  end
+
+  def test_transaction_replayed_on_retryable_errors
+    replays, entries = [], []
+    # H2's table not found code stands in for a deadlock
+    options = { :error_codes => [42102], :base_delay => 0.001, :on_replay => lambda { |attempt, e| replays << attempt } }
+    result = @connection.with_transaction_retry(options) do |attempt|
+      entries << Entry.create!(:title => "attempt #{attempt}")
+      @connection.execute("SELECT * FROM no_such_table") if attempt < 3
+      attempt
+    end
+
+    assert_equal 3, result
+    assert_equal [1, 2], replays
+    assert_equal ["attempt 3"], Entry.all.map(&:title)
+    assert entries.first.new_record? # rolled back with its attempt
+    assert !entries.last.new_record?
+    assert_equal 0, @connection.open_transactions
+    assert_equal 2, @connection.raw_connection.transaction_retry_stats[:replays]
+  end
+
+  def test_only_retryable_errors_exhaust_the_retries
+    stats = @connection.raw_connection.transaction_retry_stats
+    options = { :error_codes => [42102], :max_retries => 1, :base_delay => 0.001 }
+    assert_raises(ActiveRecord::StatementInvalid) do
+      @connection.with_transaction_retry(options) do |attempt|
+        @connection.execute(attempt == 1 ? "SELECT * FROM no_such_table" : "SELECT no_such_column FROM entries")
+      end
+    end
+    assert_raises(ActiveRecord::StatementInvalid) do
+      @connection.with_transaction_retry(options) { @connection.execute("SELECT * FROM no_such_table") }
+    end
+    assert_equal stats[:exhausted] + 1, @connection.raw_connection.transaction_retry_stats[:exhausted]
+  end
+end
+
+class H2TransactionOptionsTest < Test::Unit::TestCase
+  def test_isolation_set_for_the_transaction_only
+    connection = ActiveRecord::Base.connection
+    jdbc = connection.jdbc_connection
+    default = jdbc.transaction_isolation
+
+    connection.transaction_with(:isolation => :serializable) do
+      assert_equal java.sql.Connection::TRANSACTION_SERIALIZABLE, jdbc.transaction_isolation
+    end
+    assert_equal default, jdbc.transaction_isolation
+  end
+
+  def test_options_can_not_join_an_open_transaction
+    connection = ActiveRecord::Base.connection
+    assert connection.supports_transaction_isolation?(:serializable)
+    connection.transaction do
+      assert_raises(ActiveRecord::TransactionIsolationError) do
+        connection.transaction_with(:isolation => :serializable) { }
+      end
+    end
+  end
+end
+
+class H2MultiplexTest < Test::Unit::TestCase
+  def test_connections_leased_per_statement_and_pinned_per_transaction
+    config = ActiveRecord::Base.connection.config.merge(:multiplex => { :size => 1, :timeout => 0.1 })
+    first = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+    second = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+
+    assert_equal [{ "one" => 1 }], first.execute_query("SELECT 1 AS one")
+    assert_equal [{ "one" => 1 }], second.execute_query("SELECT 1 AS one")
+    assert_equal 1, first.multiplex_stats[:open]
+
+    first.begin
+    first.execute_query("SELECT 1")
+    assert_raises(ActiveRecord::ConnectionTimeoutError) { second.execute_query("SELECT 1") }
+    first.commit
+    assert_equal [{ "two" => 2 }], second.execute_query("SELECT 2 AS two")
+  ensure
+    first.disconnect! if first
+    second.disconnect! if second
+  end
+
+  def test_session_set_up_on_every_connection
+    config = ActiveRecord::Base.connection.config.merge(:multiplex => { :size => 2, :timeout => 1 })
+    first = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+    second = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+    first.execute_session("SET @arjdbc_session = 42")
+
+    first.begin # holds on to the connection the SET ran on
+    first.execute_query("SELECT 1")
+    assert_equal [{ "v" => 42 }], second.execute_query("SELECT @arjdbc_session AS v")
+    assert_equal 2, second.multiplex_stats[:open]
+    first.commit
+  ensure
+    first.disconnect! if first
+    second.disconnect! if second
+  end
+
+  def test_raw_connection_only_handed_out_pinned
+    config = ActiveRecord::Base.connection.config.merge(:multiplex => { :size => 1, :timeout => 0.1 })
+    first = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+    second = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+
+    assert_raises(ArgumentError) { first.connection }
+    first.connection do |connection|
+      assert connection.auto_commit
+      assert_raises(ActiveRecord::ConnectionTimeoutError) { second.execute_query("SELECT 1") }
+    end
+    assert_equal [{ "one" => 1 }], second.execute_query("SELECT 1 AS one")
+  ensure
+    first.disconnect! if first
+    second.disconnect! if second
+  end
+
+  def test_connections_shared_only_with_the_same_credentials
+    ActiveRecord::Base.connection.execute("CREATE USER IF NOT EXISTS multiplexed PASSWORD 'secret' ADMIN")
+    config = ActiveRecord::Base.connection.config.merge(:multiplex => { :size => 1, :timeout => 1 })
+    first = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+    second = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config.merge(:username => "multiplexed", :password => "secret"))
+    first.execute_session("SET @arjdbc_session = 42")
+
+    assert_equal [{ "v" => nil }], second.execute_query("SELECT @arjdbc_session AS v")
+    assert_equal 1, first.multiplex_stats[:open]
+    assert_equal 1, second.multiplex_stats[:open]
+  ensure
+    first.disconnect! if first
+    second.disconnect! if second
+    ActiveRecord::Base.connection.execute("DROP USER IF EXISTS multiplexed")
+  end
+end
+
+class H2MultiplexInsertTest < Test::Unit::TestCase
+  def setup
+    CreateEntries.up
+  end
+
+  def teardown
+    CreateEntries.down
+  end
+
+  def test_inserts_get_their_own_ids_across_threads
+    config = ActiveRecord::Base.connection.config.merge(:multiplex => { :size => 2, :timeout => 5 })
+    adapters = (1..2).map { ActiveRecord::ConnectionAdapters::JdbcAdapter.new(nil, nil, config) }
+    threads = adapters.each_with_index.map do |adapter, t|
+      Thread.new do
+        (1..20).map do |i|
+          title = "thread #{t} entry #{i}"
+          [ adapter.insert("INSERT INTO entries (title) VALUES ('#{title}')"), title ]
+        end
+      end
+    end
+    inserted = threads.map { |thread| thread.value }.flatten(1)
+
+    assert_equal 40, inserted.map(&:first).uniq.size
+    inserted.each do |id, title|
+      assert_equal title, adapters.first.select_value("SELECT title FROM entries WHERE id = #{id}")
+    end
+  ensure
+    adapters.each { |adapter| adapter.disconnect! } if adapters
+  end
+end
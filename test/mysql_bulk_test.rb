@@ -0,0 +1,67 @@
+require 'jdbc_common'
+require 'db/mysql'
+
+class MysqlBulkTest < Test::Unit::TestCase
+  def setup
+    CreateEntries.up
+    @connection = ActiveRecord::Base.connection
+  end
+
+  def teardown
+    CreateEntries.down
+  end
+
+  def test_load_data_local_from_enumerator
+    rows = [["first", 1], ["tab\there", nil], ["back\\slash", 3]]
+    assert_equal 3, @connection.load_data_local(:entries, [:title, :user_id], rows)
+
+    assert_equal ["back\\slash", "first", "tab\there"], Entry.all.map(&:title).sort
+    assert_nil Entry.find_by_title("tab\there").user_id
+  end
+
+  def test_load_data_local_from_io
+    io = StringIO.new("one\t1\ntwo\t2\n")
+    assert_equal 2, @connection.load_data_local(:entries, [:title, :user_id], io)
+    assert_equal 2, Entry.find_by_title("two").user_id
+  end
+
+  def test_load_data_local_raises_source_errors_and_recovers
+    rows = Enumerator.new do |y|
+      y << ["first", 1]
+      raise ArgumentError, "bad row"
+    end
+    error = assert_raise(ArgumentError) do
+      @connection.raw_connection.load_data_local_infile("entries", ["title", "user_id"], rows)
+    end
+    assert_equal "bad row", error.message
+    assert_equal 1, @connection.select_value("SELECT 1").to_i
+  end
+
+  def test_load_data_local_evicts_cached_results
+    config = @connection.config.merge(:result_cache => { :max_entries => 10 })
+    cached = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+    assert_equal 0, cached.execute_query("SELECT title FROM entries").size
+    cached.load_data_local_infile("entries", ["title"], StringIO.new("loaded\n"))
+    assert_equal [{"title" => "loaded"}], cached.execute_query("SELECT title FROM entries")
+  ensure
+    cached.disconnect! if cached
+  end
+
+  def test_select_each_streams_rows
+    3.times { |i| Entry.create!(:title => "entry #{i}") }
+
+    titles = []
+    count = @connection.select_each("SELECT title FROM entries ORDER BY title") { |row| titles << row["title"] }
+    assert_equal 3, count
+    assert_equal ["entry 0", "entry 1", "entry 2"], titles
+  end
+
+  def test_select_each_locks_the_connection
+    Entry.create!(:title => "locked")
+
+    assert_raise(ActiveRecord::StatementInvalid) do
+      @connection.select_each("SELECT * FROM entries") { @connection.select_all("SELECT 1") }
+    end
+    assert_equal 1, Entry.count
+  end
+end
@@ -0,0 +1,58 @@
+require 'jdbc_common'
+require 'db/postgres'
+
+class PostgresAsyncTest < Test::Unit::TestCase
+  def setup
+    CreateEntries.up
+    @connection = ActiveRecord::Base.connection
+  end
+
+  def teardown
+    CreateEntries.down
+  end
+
+  def test_select_async_overlaps_queries
+    Entry.create!(:title => "first")
+    started = Time.now
+    futures = (1..4).map { @connection.select_async("SELECT title, pg_sleep(0.5) FROM entries") }
+    assert_equal ["first"] * 4, futures.map { |f| f.value.first["title"] }
+    assert Time.now - started < 2.0
+  end
+
+  def test_update_async_returns_update_count
+    Entry.create!(:title => "first")
+    Entry.create!(:title => "second")
+    future = @connection.update_async("UPDATE entries SET title = 'changed'")
+    assert future.wait(10)
+    assert future.done?
+    assert_equal 2, future.value
+  end
+
+  def test_value_raises_statement_errors
+    future = @connection.select_async("SELECT nope FROM entries")
+    assert_raise(ActiveRecord::JDBCError) { future.value }
+  end
+
+  def test_cancel_running_query
+    future = @connection.select_async("SELECT pg_sleep(10)")
+    sleep 0.2
+    assert future.cancel
+    assert_raise(ActiveRecord::JDBCError) { future.value }
+  end
+
+  def test_parallel_select_keeps_order_and_isolates_errors
+    Entry.create!(:title => "first")
+    results = @connection.parallel_select(["SELECT title FROM entries", "SELECT nope FROM entries", "SELECT 1 AS one"], 2)
+    assert_equal [{"title" => "first"}], results[0]
+    assert_kind_of ActiveRecord::JDBCError, results[1]
+    assert_equal [{"one" => 1}], results[2]
+  end
+
+  def test_parallel_select_deadline
+    started = Time.now
+    results = @connection.parallel_select(["SELECT pg_sleep(10)", "SELECT 1 AS one"], nil, 1)
+    assert Time.now - started < 5
+    assert_kind_of ActiveRecord::JDBCError, results[0]
+    assert_equal [{"one" => 1}], results[1]
+  end
+end
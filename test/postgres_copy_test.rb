@@ -0,0 +1,43 @@
+require 'jdbc_common'
+require 'db/postgres'
+
+class PostgresCopyTest < Test::Unit::TestCase
+  def setup
+    CreateEntries.up
+    @connection = ActiveRecord::Base.connection
+  end
+
+  def teardown
+    CreateEntries.down
+  end
+
+  def test_copy_in_from_enumerator_of_arrays
+    rows = [["first", 1], ["tab\there", nil], ["back\\slash", 3]]
+    count = @connection.copy_in(:entries, [:title, :user_id], rows.each)
+
+    assert_equal 3, count
+    assert_equal ["back\\slash", "first", "tab\there"], Entry.all.map(&:title).sort
+    assert_nil Entry.find_by_title("tab\there").user_id
+  end
+
+  def test_copy_in_csv_from_io
+    io = StringIO.new(%Q{"quoted, title",7\nplain,8\n})
+    count = @connection.copy_in(:entries, [:title, :user_id], io, :csv)
+
+    assert_equal 2, count
+    assert_equal 7, Entry.find_by_title("quoted, title").user_id
+  end
+
+  def test_copy_out_to_io_and_block
+    Entry.create!(:title => "one", :user_id => 1)
+    Entry.create!(:title => "two", :user_id => 2)
+
+    io = StringIO.new
+    assert_equal 2, @connection.copy_out("SELECT title, user_id FROM entries ORDER BY title", io)
+    assert_equal "one\t1\ntwo\t2\n", io.string
+
+    rows = []
+    @connection.copy_out("COPY entries (title) TO STDOUT") { |row| rows << row }
+    assert_equal ["one\n", "two\n"], rows.sort
+  end
+end
@@ -0,0 +1,60 @@
+require 'jdbc_common'
+require 'db/postgres'
+
+class PostgresReplicaTest < Test::Unit::TestCase
+  def setup
+    CreateEntries.up
+    url = ActiveRecord::Base.connection.config[:url]
+    config = POSTGRES_CONFIG.merge(:replicas => [{ :url => url }, { :url => "jdbc:postgresql://localhost:1/none" }],
+                                   :replica_sticky => 0.5)
+    @replicated = ActiveRecord::ConnectionAdapters::JdbcConnection.new(ActiveRecord::Base.connection.config.merge(config))
+  end
+
+  def teardown
+    @replicated.disconnect!
+    CreateEntries.down
+  end
+
+  def test_reads_fall_back_to_primary_when_a_replica_is_down
+    @replicated.execute_update("INSERT INTO entries (title) VALUES ('first')")
+    sleep 0.6
+    3.times do
+      assert_equal [{"title" => "first"}], @replicated.execute_query("SELECT title FROM entries")
+    end
+  end
+
+  def test_plain_reads_go_to_a_replica
+    read_only = (1..4).map { @replicated.execute_query("SHOW transaction_read_only").first["transaction_read_only"] }
+    assert read_only.include?("on")
+  end
+
+  def test_writes_shaped_like_reads_stay_on_primary
+    Entry.create!(:title => "first")
+    # replica connections are read-only, any of these would fail on one
+    assert_equal 1, @replicated.execute_query("SELECT title FROM entries FOR UPDATE").size
+    assert @replicated.execute_query("SELECT nextval('entries_id_seq') AS id").first["id"]
+    assert_equal [{"title" => "second"}],
+      @replicated.execute_query("WITH e AS (INSERT INTO entries (title) VALUES ('second') RETURNING title) SELECT title FROM e")
+    assert_equal ["off"], @replicated.execute_query("SHOW transaction_read_only").map { |r| r["transaction_read_only"] }
+  end
+
+  def test_replica_reads_are_not_cached
+    config = ActiveRecord::Base.connection.config
+    cached = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config.merge(:replicas => [{ :url => config[:url] }],
+                                                                                :result_cache => { :max_entries => 10 }))
+    ActiveRecord::ConnectionAdapters::JdbcConnection.clear_result_cache
+    4.times { cached.execute_query("SELECT title FROM entries") }
+    stats = ActiveRecord::ConnectionAdapters::JdbcConnection.result_cache_stats
+    assert_equal 0, stats[:entries]
+  ensure
+    cached.disconnect! if cached
+  end
+
+  def test_reads_stay_on_primary_inside_transactions
+    @replicated.begin
+    @replicated.execute_update("INSERT INTO entries (title) VALUES ('uncommitted')")
+    assert_equal 1, @replicated.execute_query("SELECT title FROM entries").size
+  ensure
+    @replicated.rollback
+  end
+end
@@ -0,0 +1,73 @@
+require 'jdbc_common'
+require 'db/postgres'
+
+class PostgresResultCacheTest < Test::Unit::TestCase
+  def setup
+    CreateEntries.up
+    config = ActiveRecord::Base.connection.config.merge(:result_cache => { :max_entries => 10 })
+    @cached = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+    @other = ActiveRecord::ConnectionAdapters::JdbcConnection.new(config)
+    ActiveRecord::ConnectionAdapters::JdbcConnection.clear_result_cache
+  end
+
+  def teardown
+    @cached.disconnect!
+    @other.disconnect!
+    CreateEntries.down
+  end
+
+  def test_results_are_cached_and_copied
+    @cached.execute_update("INSERT INTO entries (title) VALUES ('first')")
+    stats = ActiveRecord::ConnectionAdapters::JdbcConnection.result_cache_stats
+    rows = @cached.execute_query("SELECT title FROM entries")
+    rows.first["title"] << " changed"
+    assert_equal [{"title" => "first"}], @other.execute_query("SELECT title FROM entries")
+    assert_equal stats[:hits] + 1, ActiveRecord::ConnectionAdapters::JdbcConnection.result_cache_stats[:hits]
+  end
+
+  def test_writes_invalidate_tables_read
+    @cached.execute_update("INSERT INTO entries (title) VALUES ('first')")
+    assert_equal 1, @cached.execute_query("SELECT title FROM entries").size
+    @other.execute_update("INSERT INTO entries (title) VALUES ('second')")
+    assert_equal 2, @cached.execute_query("SELECT title FROM entries").size
+  end
+
+  def test_copy_in_invalidates_tables_read
+    assert_equal 0, @cached.execute_query("SELECT title FROM entries").size
+    @cached.copy_in("entries", ["title"], [["copied"]].each)
+    assert_equal [{"title" => "copied"}], @cached.execute_query("SELECT title FROM entries")
+  end
+
+  def test_async_updates_invalidate_tables_read
+    @cached.execute_update("INSERT INTO entries (title) VALUES ('first')")
+    assert_equal [{"title" => "first"}], @cached.execute_query("SELECT title FROM entries")
+    assert_equal 1, @cached.execute_update_async("UPDATE entries SET title = 'changed'").value
+    assert_equal [{"title" => "changed"}], @cached.execute_query("SELECT title FROM entries")
+  end
+
+  def test_backslashes_do_not_escape_in_standard_strings
+    @cached.execute_update("INSERT INTO entries (title) VALUES ('first')")
+    stats = ActiveRecord::ConnectionAdapters::JdbcConnection.result_cache_stats
+    2.times { @cached.execute_query("SELECT 'C:\\' AS path, title FROM entries") }
+    assert_equal stats[:hits] + 1, ActiveRecord::ConnectionAdapters::JdbcConnection.result_cache_stats[:hits]
+  end
+
+  def test_volatile_queries_are_not_cached
+    @cached.execute_update("INSERT INTO entries (title) VALUES ('first')")
+    first = @cached.execute_query("SELECT title, clock_timestamp() AS at FROM entries").first["at"]
+    sleep 0.01
+    assert_not_equal first, @cached.execute_query("SELECT title, clock_timestamp() AS at FROM entries").first["at"]
+  end
+
+  def test_search_path_is_part_of_the_scope
+    @cached.execute("CREATE SCHEMA cache_test")
+    @cached.execute("CREATE TABLE cache_test.entries (title VARCHAR(255))")
+    @other.execute("SET search_path TO cache_test")
+    @cached.execute_update("INSERT INTO entries (title) VALUES ('first')")
+    assert_equal 1, @cached.execute_query("SELECT title FROM entries").size
+    assert_equal 0, @other.execute_query("SELECT title FROM entries").size
+  ensure
+    @other.execute("SET search_path TO public")
+    @cached.execute("DROP SCHEMA cache_test CASCADE")
+  end
+end
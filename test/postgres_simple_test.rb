@@ -36,6 +36,28 @@ class PostgresSimpleTest < Test::Unit::TestCase
     assert_equal ["login"], results[1].first.keys
   end
 
+  def test_insert_returning
+    id = @connection.insert_returning("INSERT INTO entries (title) VALUES ('returning')", :id)
+    assert_equal Entry.find_by_title('returning').id, id
+
+    rows = @connection.insert_returning("INSERT INTO entries (title, rating) VALUES (?, ?)",
+                                        [:id, :title], [[nil, 'binds'], [nil, 1.5]])
+    assert_equal 1, rows.size
+    assert_equal 'binds', rows.first['title']
+    assert_equal Entry.find_by_title('binds').id, rows.first['id']
+  end
+
+  def test_nested_transaction_rolls_back_to_savepoint
+    Entry.transaction do
+      Entry.create!(:title => 'outer')
+      Entry.transaction(:requires_new => true) do
+        Entry.create!(:title => 'inner')
+        raise ActiveRecord::Rollback
+      end
+    end
+    assert_equal ['outer'], Entry.all.map(&:title)
+  end
+
   def test_create_xml_column
     return unless PG_VERSION >= 80300
     assert_nothing_raised do